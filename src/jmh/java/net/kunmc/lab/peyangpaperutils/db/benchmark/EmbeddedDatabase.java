@@ -0,0 +1,98 @@
+package net.kunmc.lab.peyangpaperutils.db.benchmark;
+
+import lombok.Getter;
+import net.kunmc.lab.peyangpaperutils.db.ConnectionPool;
+import net.kunmc.lab.peyangpaperutils.db.Transaction;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * ベンチマークで使用する組み込みDBです。
+ * {@code bench_players} に {@link #ROWS} 行のプレイヤを、{@code bench_log} に挿入のベンチマーク用の空のテーブルを用意します。
+ */
+@State(Scope.Benchmark)
+public class EmbeddedDatabase
+{
+    /**
+     * {@code bench_players} の行数です。
+     */
+    public static final int ROWS = 1000;
+
+    @Param({"h2", "sqlite"})
+    public String database;
+
+    @Getter
+    private ConnectionPool pool;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        this.pool = ConnectionPool.of(this.createUrl(), new ConnectionPool.Settings()
+                .setMaxSize(2)
+                .setStatementCacheSize(32)
+        );
+
+        Transaction.create(this.pool, "DROP TABLE IF EXISTS bench_players").executeUpdate();
+        Transaction.create(this.pool, "DROP TABLE IF EXISTS bench_log").executeUpdate();
+        Transaction.create(this.pool, "CREATE TABLE bench_players (" +
+                "id INT PRIMARY KEY, " +
+                "uuid VARCHAR(36) NOT NULL, " +
+                "name VARCHAR(16) NOT NULL, " +
+                "coins BIGINT NOT NULL, " +
+                "score DOUBLE NOT NULL, " +
+                "online BOOLEAN NOT NULL)"
+        ).executeUpdate();
+        Transaction.create(this.pool, "CREATE TABLE bench_log (id BIGINT NOT NULL, message VARCHAR(64) NOT NULL)")
+                .executeUpdate();
+
+        Transaction insert = Transaction.create(this.pool, "INSERT INTO bench_players VALUES (?, ?, ?, ?, ?, ?)");
+        for (int i = 0; i < ROWS; i++)
+            insert.set(1, i)
+                    .set(2, UUID.randomUUID().toString())
+                    .set(3, "player" + i)
+                    .set(4, i * 10L)
+                    .set(5, i * 0.5)
+                    .set(6, i % 2 == 0)
+                    .addBatch();
+        insert.executeBatch();
+    }
+
+    @TearDown(Level.Iteration)
+    public void clearLog()
+    {
+        // 挿入のベンチマークでテーブルが大きくなり続けないようにする
+        Transaction.create(this.pool, "DELETE FROM bench_log").executeUpdate();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        this.pool.close();
+        if (this.file != null && !this.file.delete())
+            this.file.deleteOnExit();
+    }
+
+    private String createUrl() throws IOException
+    {
+        switch (this.database)
+        {
+            case "h2":
+                return "jdbc:h2:mem:bench;DB_CLOSE_DELAY=-1";
+            case "sqlite":
+                // インメモリの SQLite はコネクションごとに別のDBになるため、一時ファイルを使用する
+                this.file = File.createTempFile("peyangpaperutils-bench", ".db");
+                return "jdbc:sqlite:" + this.file.getAbsolutePath();
+            default:
+                throw new IllegalArgumentException("Unknown database: " + this.database);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package net.kunmc.lab.peyangpaperutils.db.benchmark;
+
+import net.kunmc.lab.peyangpaperutils.db.QueryResult;
+import net.kunmc.lab.peyangpaperutils.db.ResultRow;
+import net.kunmc.lab.peyangpaperutils.db.ResultSnapshot;
+import net.kunmc.lab.peyangpaperutils.db.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * {@link EmbeddedDatabase#ROWS} 行の結果を読み込む方法ごとのスループットを計測します。
+ * {@code -prof gc} で行ごとの割り当て量を比較します。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryResultBenchmark
+{
+    private static final String SELECT_ALL = "SELECT id, uuid, name, coins, score, online FROM bench_players";
+
+    private static Player toPlayer(ResultRow row)
+    {
+        Player player = new Player();
+        player.id = row.getInt("id");
+        player.uuid = row.getString("uuid");
+        player.name = row.getString("name");
+        player.coins = row.getLong("coins");
+        player.score = row.getDouble("score");
+        player.online = row.getBoolean("online");
+        return player;
+    }
+
+    @Benchmark
+    public List<Player> mapToList(EmbeddedDatabase db)
+    {
+        try (Transaction transaction = Transaction.create(db.getPool(), SELECT_ALL))
+        {
+            QueryResult<Player> result = transaction.executeQuery();
+            return result.mapToList(QueryResultBenchmark::toPlayer);
+        }
+    }
+
+    @Benchmark
+    public List<Player> stream(EmbeddedDatabase db)
+    {
+        try (Transaction transaction = Transaction.create(db.getPool(), SELECT_ALL))
+        {
+            QueryResult<Player> result = transaction.executeQuery();
+            return result.stream()
+                    .map(QueryResultBenchmark::toPlayer)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    @Benchmark
+    public List<Player> mapTo(EmbeddedDatabase db)
+    {
+        try (Transaction transaction = Transaction.create(db.getPool(), SELECT_ALL))
+        {
+            QueryResult<Player> result = transaction.executeQuery();
+            return result.mapTo(Player.class);
+        }
+    }
+
+    /**
+     * {@link #mapTo(EmbeddedDatabase)} の比較用に、列番号で読み込んで直接生成する手書きの変換です。
+     */
+    @Benchmark
+    public List<Player> handWritten(EmbeddedDatabase db)
+    {
+        try (Transaction transaction = Transaction.create(db.getPool(), SELECT_ALL))
+        {
+            QueryResult<Player> result = transaction.executeQuery();
+            ResultSet resultSet = result.getResult();
+            List<Player> players = new ArrayList<>();
+            while (result.next())
+            {
+                Player player = new Player();
+                player.id = resultSet.getInt(1);
+                player.uuid = resultSet.getString(2);
+                player.name = resultSet.getString(3);
+                player.coins = resultSet.getLong(4);
+                player.score = resultSet.getDouble(5);
+                player.online = resultSet.getBoolean(6);
+                players.add(player);
+            }
+            return players;
+        }
+        catch (SQLException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Benchmark
+    public long[] toLongArray(EmbeddedDatabase db)
+    {
+        try (Transaction transaction = Transaction.create(db.getPool(), "SELECT coins FROM bench_players"))
+        {
+            QueryResult<Void> result = transaction.executeQuery();
+            return result.toLongArray("coins");
+        }
+    }
+
+    @Benchmark
+    public ResultSnapshot materialize(EmbeddedDatabase db)
+    {
+        return Transaction.create(db.getPool(), SELECT_ALL)
+                .executeQuery()
+                .materialize();
+    }
+
+    /**
+     * {@link QueryResult#mapTo(Class)} で変換される行です。
+     */
+    public static class Player
+    {
+        public int id;
+        public String uuid;
+        public String name;
+        public long coins;
+        public double score;
+        public boolean online;
+    }
+}
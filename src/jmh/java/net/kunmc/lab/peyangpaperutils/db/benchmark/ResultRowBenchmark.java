@@ -0,0 +1,91 @@
+package net.kunmc.lab.peyangpaperutils.db.benchmark;
+
+import net.kunmc.lab.peyangpaperutils.db.BooleanColumn;
+import net.kunmc.lab.peyangpaperutils.db.DoubleColumn;
+import net.kunmc.lab.peyangpaperutils.db.IntColumn;
+import net.kunmc.lab.peyangpaperutils.db.LongColumn;
+import net.kunmc.lab.peyangpaperutils.db.QueryResult;
+import net.kunmc.lab.peyangpaperutils.db.StringColumn;
+import net.kunmc.lab.peyangpaperutils.db.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link net.kunmc.lab.peyangpaperutils.db.ResultRow} の列の読み込み方法ごとのスループットを計測します。
+ * 列名、列番号、型付きの列ハンドルで、同じ {@link EmbeddedDatabase#ROWS} 行を読み込みます。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResultRowBenchmark
+{
+    private static final String SELECT_ALL = "SELECT id, uuid, name, coins, score, online FROM bench_players";
+
+    @Benchmark
+    public long byLabel(EmbeddedDatabase db, Blackhole blackhole)
+    {
+        try (Transaction transaction = Transaction.create(db.getPool(), SELECT_ALL))
+        {
+            QueryResult<Void> result = transaction.executeQuery();
+            return result.forEachRow(row -> {
+                blackhole.consume(row.getInt("id"));
+                blackhole.consume(row.getString("uuid"));
+                blackhole.consume(row.getString("name"));
+                blackhole.consume(row.getLong("coins"));
+                blackhole.consume(row.getDouble("score"));
+                blackhole.consume(row.getBoolean("online"));
+            });
+        }
+    }
+
+    @Benchmark
+    public long byIndex(EmbeddedDatabase db, Blackhole blackhole)
+    {
+        try (Transaction transaction = Transaction.create(db.getPool(), SELECT_ALL))
+        {
+            QueryResult<Void> result = transaction.executeQuery();
+            return result.forEachRow(row -> {
+                blackhole.consume(row.getInt(1));
+                blackhole.consume(row.getString(2));
+                blackhole.consume(row.getString(3));
+                blackhole.consume(row.getLong(4));
+                blackhole.consume(row.getDouble(5));
+                blackhole.consume(row.getBoolean(6));
+            });
+        }
+    }
+
+    @Benchmark
+    public long byColumnHandle(EmbeddedDatabase db, Blackhole blackhole)
+    {
+        try (Transaction transaction = Transaction.create(db.getPool(), SELECT_ALL))
+        {
+            QueryResult<Void> result = transaction.executeQuery();
+            IntColumn id = result.intColumn("id");
+            StringColumn uuid = result.stringColumn("uuid");
+            StringColumn name = result.stringColumn("name");
+            LongColumn coins = result.longColumn("coins");
+            DoubleColumn score = result.doubleColumn("score");
+            BooleanColumn online = result.booleanColumn("online");
+
+            return result.forEachRow(row -> {
+                blackhole.consume(id.get(row));
+                blackhole.consume(uuid.get(row));
+                blackhole.consume(name.get(row));
+                blackhole.consume(coins.get(row));
+                blackhole.consume(score.get(row));
+                blackhole.consume(online.get(row));
+            });
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package net.kunmc.lab.peyangpaperutils.db.benchmark;
+
+import net.kunmc.lab.peyangpaperutils.db.BatchResult;
+import net.kunmc.lab.peyangpaperutils.db.QueryResult;
+import net.kunmc.lab.peyangpaperutils.db.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Transaction} の挿入、更新、検索の1件あたりのスループットを計測します。
+ * コネクションの取得と返却、ステートメントキャッシュを含みます。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransactionBenchmark
+{
+    private static final int BATCH_SIZE = 100;
+
+    private long sequence;
+
+    private int nextId()
+    {
+        return (int) (this.sequence++ % EmbeddedDatabase.ROWS);
+    }
+
+    @Benchmark
+    public int insert(EmbeddedDatabase db)
+    {
+        return Transaction.create(db.getPool(), "INSERT INTO bench_log (id, message) VALUES (?, ?)")
+                .set(1, this.sequence++)
+                .set(2, "benchmark")
+                .executeUpdate();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public BatchResult insertBatch(EmbeddedDatabase db)
+    {
+        Transaction transaction = Transaction.create(db.getPool(), "INSERT INTO bench_log (id, message) VALUES (?, ?)");
+        for (int i = 0; i < BATCH_SIZE; i++)
+            transaction.set(1, this.sequence++)
+                    .set(2, "benchmark")
+                    .addBatch();
+        return transaction.executeBatch();
+    }
+
+    @Benchmark
+    public int update(EmbeddedDatabase db)
+    {
+        return Transaction.create(db.getPool(), "UPDATE bench_players SET coins = coins + 1 WHERE id = ?")
+                .set(1, this.nextId())
+                .executeUpdate();
+    }
+
+    @Benchmark
+    public long selectById(EmbeddedDatabase db) throws SQLException
+    {
+        try (Transaction transaction = Transaction.create(db.getPool(), "SELECT coins FROM bench_players WHERE id = ?"))
+        {
+            QueryResult<Long> result = transaction.set(1, this.nextId()).executeQuery();
+            long coins = result.next() ? result.getRow().getLong("coins"): -1L;
+            result.close();
+            return coins;
+        }
+    }
+
+    @Benchmark
+    public boolean exists(EmbeddedDatabase db)
+    {
+        return Transaction.create(db.getPool(), "SELECT 1 FROM bench_players WHERE id = ?")
+                .set(1, this.nextId())
+                .isExists();
+    }
+}
@@ -1,6 +1,7 @@
 package net.kunmc.lab.peyangpaperutils;
 
 import lombok.Getter;
+import net.kunmc.lab.peyangpaperutils.db.DatabaseLifecycle;
 import net.kunmc.lab.peyangpaperutils.lib.terminal.InputManager;
 import net.kunmc.lab.peyangpaperutils.lib.terminal.PlayerTerminal;
 import net.kunmc.lab.peyangpaperutils.lib.terminal.Terminals;
@@ -12,6 +13,7 @@ import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.plugin.Plugin;
 
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 public final class PeyangPaperUtils implements Listener
 {
@@ -67,5 +69,6 @@ public final class PeyangPaperUtils implements Listener
             throw new IllegalStateException("PeyangPaperUtils is not initialized.");
 
         instance.inputManager.cancelAll();
+        DatabaseLifecycle.shutdown(5, TimeUnit.SECONDS);
     }
 }
@@ -0,0 +1,49 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import lombok.Value;
+
+import java.sql.Statement;
+
+/**
+ * {@link Transaction#executeBatch(boolean)} の実行結果を表すクラスです。
+ */
+@Value
+public class BatchResult
+{
+    /**
+     * 追加した順の、各文の更新件数です。
+     * ドライバによっては {@link Statement#SUCCESS_NO_INFO} が格納されます。
+     */
+    int[] updateCounts;
+    /**
+     * 生成されたキーです。
+     * 生成されたキーを取得するトランザクションでない場合は空です。
+     * 返される件数はドライバに依存します。
+     */
+    long[] generatedKeys;
+
+    /**
+     * 更新件数の合計を取得します。
+     * {@link Statement#SUCCESS_NO_INFO} などの件数不明の文は数えません。
+     *
+     * @return 更新件数の合計
+     */
+    public long getTotalUpdateCount()
+    {
+        long total = 0;
+        for (int count : this.updateCounts)
+            if (count > 0)
+                total += count;
+        return total;
+    }
+
+    /**
+     * 実行された文の数を取得します。
+     *
+     * @return 実行された文の数
+     */
+    public int size()
+    {
+        return this.updateCounts.length;
+    }
+}
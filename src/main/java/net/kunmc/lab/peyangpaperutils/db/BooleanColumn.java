@@ -0,0 +1,23 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+/**
+ * 真偽値の列を表すクラスです。
+ */
+public final class BooleanColumn extends Column
+{
+    BooleanColumn(String label, int index)
+    {
+        super(label, index);
+    }
+
+    /**
+     * 行からこの列の値を取得します。
+     *
+     * @param row 行
+     * @return 値
+     */
+    public boolean get(ResultRow row)
+    {
+        return row.getBoolean(this.getIndex());
+    }
+}
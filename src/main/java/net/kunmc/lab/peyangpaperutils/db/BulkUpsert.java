@@ -0,0 +1,490 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 複数行の「挿入、または既にある場合は更新」をまとめて行うクラスです。
+ * <p>
+ * 行は複数行の VALUES を持つ一つの文にまとめられ、ドライバのパラメータ数の上限に収まる件数ごとに実行されます。
+ * 同じ件数の文は一度だけ準備して使い回すため、1万行の保存も数回の文の実行で済みます。
+ * 同じキーの行を複数回追加した場合は、最後に追加した行のみが保存されます。
+ *
+ * <pre>
+ *     new BulkUpsert("players", "uuid", "name", "coins")
+ *             .keys("uuid")
+ *             .row(uuid1, "Peyang", 100)
+ *             .row(uuid2, "Notch", 200)
+ *             .execute(pool);
+ * </pre>
+ */
+public class BulkUpsert
+{
+    private static final int DEFAULT_MAX_ROWS_PER_STATEMENT = 1000;
+
+    private final String table;
+    private final String[] columns;
+    private String[] keys;
+    private int[] keyIndexes;
+    private String[] updates;
+    @Nullable
+    private Dialect dialect;
+    private int maxParameters;
+    private int maxRowsPerStatement;
+
+    private Object[] values;
+    private int rowCount;
+    // キーから行番号への対応。キーが設定されていない場合は重複を除かない
+    private final HashMap<Object, Integer> rowIndexes;
+
+    /**
+     * 一括更新を生成します。
+     *
+     * @param table   テーブル名
+     * @param columns 列名
+     */
+    public BulkUpsert(@NotNull String table, @NotNull String... columns)
+    {
+        if (columns.length == 0)
+            throw new IllegalArgumentException("columns must not be empty.");
+
+        this.table = table;
+        this.columns = columns.clone();
+        this.keys = new String[0];
+        this.keyIndexes = new int[0];
+        this.updates = null;
+        this.dialect = null;
+        this.maxParameters = 0;
+        this.maxRowsPerStatement = DEFAULT_MAX_ROWS_PER_STATEMENT;
+
+        this.values = new Object[columns.length * 16];
+        this.rowCount = 0;
+        this.rowIndexes = new HashMap<>();
+    }
+
+    /**
+     * 重複を判定するキーとなる列を設定します。
+     * MySQL/MariaDB 以外では必須で、テーブルの主キーまたは一意制約と一致している必要があります。
+     * 行を追加する前に呼び出してください。
+     *
+     * @param keys キーとなる列名
+     * @return この一括更新
+     */
+    public BulkUpsert keys(@NotNull String... keys)
+    {
+        if (this.rowCount > 0)
+            throw new IllegalStateException("keys must be set before adding rows.");
+
+        int[] keyIndexes = new int[keys.length];
+        for (int i = 0; i < keys.length; i++)
+            keyIndexes[i] = this.indexOf(keys[i]);
+        this.keys = keys.clone();
+        this.keyIndexes = keyIndexes;
+        return this;
+    }
+
+    /**
+     * 既にある場合に更新する列を設定します。デフォルトはキー以外のすべての列です。
+     * 空の場合は既にある行を更新しません。
+     * H2 ではこの設定に関わらず、すべての列を更新します。
+     *
+     * @param updates 更新する列名
+     * @return この一括更新
+     */
+    public BulkUpsert update(@NotNull String... updates)
+    {
+        for (String update : updates)
+            this.indexOf(update);
+        this.updates = updates.clone();
+        return this;
+    }
+
+    /**
+     * データベースの種類を設定します。設定しない場合はコネクションから判定します。
+     *
+     * @param dialect データベースの種類
+     * @return この一括更新
+     */
+    public BulkUpsert dialect(@NotNull Dialect dialect)
+    {
+        this.dialect = dialect;
+        return this;
+    }
+
+    /**
+     * 一つの文のパラメータ数の上限を設定します。0 の場合はデータベースの種類ごとの上限を使用します。
+     *
+     * @param maxParameters パラメータ数の上限
+     * @return この一括更新
+     */
+    public BulkUpsert maxParameters(int maxParameters)
+    {
+        this.maxParameters = maxParameters;
+        return this;
+    }
+
+    /**
+     * 一つの文にまとめる行数の上限を設定します。デフォルトは 1000 です。
+     *
+     * @param maxRowsPerStatement 行数の上限
+     * @return この一括更新
+     */
+    public BulkUpsert maxRowsPerStatement(int maxRowsPerStatement)
+    {
+        if (maxRowsPerStatement <= 0)
+            throw new IllegalArgumentException("maxRowsPerStatement must be positive.");
+
+        this.maxRowsPerStatement = maxRowsPerStatement;
+        return this;
+    }
+
+    private int indexOf(String column)
+    {
+        for (int i = 0; i < this.columns.length; i++)
+            if (this.columns[i].equals(column))
+                return i;
+
+        throw new IllegalArgumentException("Unknown column: " + column);
+    }
+
+    /**
+     * 行を追加します。値はコンストラクタで指定した列の順番で渡してください。
+     *
+     * @param values 値
+     * @return この一括更新
+     */
+    public BulkUpsert row(@Nullable Object... values)
+    {
+        if (values.length != this.columns.length)
+            throw new IllegalArgumentException("Expected " + this.columns.length + " values, but got " + values.length + ".");
+
+        int row = this.rowCount;
+        if (this.keys.length > 0)
+        {
+            Integer existing = this.rowIndexes.putIfAbsent(this.keyOf(values), row);
+            if (existing != null)
+                row = existing;
+        }
+
+        int offset = row * this.columns.length;
+        if (row == this.rowCount)
+        {
+            if (this.values.length < offset + this.columns.length)
+                this.values = Arrays.copyOf(this.values, this.values.length << 1);
+            this.rowCount++;
+        }
+        System.arraycopy(values, 0, this.values, offset, values.length);
+        return this;
+    }
+
+    private Object keyOf(Object[] values)
+    {
+        if (this.keyIndexes.length == 1)
+            return values[this.keyIndexes[0]];
+
+        Object[] key = new Object[this.keyIndexes.length];
+        for (int i = 0; i < key.length; i++)
+            key[i] = values[this.keyIndexes[i]];
+        return Arrays.asList(key);
+    }
+
+    /**
+     * 追加された行数を取得します。
+     *
+     * @return 行数
+     */
+    public int size()
+    {
+        return this.rowCount;
+    }
+
+    /**
+     * 追加された行をすべて削除します。設定はそのまま残ります。
+     *
+     * @return この一括更新
+     */
+    public BulkUpsert clear()
+    {
+        Arrays.fill(this.values, 0, this.rowCount * this.columns.length, null);
+        this.rowCount = 0;
+        this.rowIndexes.clear();
+        return this;
+    }
+
+    private int getRowsPerStatement(Dialect dialect)
+    {
+        int maxParameters = this.maxParameters > 0 ? this.maxParameters: dialect.getMaxParameters();
+        return Math.max(1, Math.min(this.maxRowsPerStatement, maxParameters / this.columns.length));
+    }
+
+    private String[] getUpdates()
+    {
+        if (this.updates != null)
+            return this.updates;
+
+        String[] updates = new String[this.columns.length];
+        int size = 0;
+        for (String column : this.columns)
+            if (!Arrays.asList(this.keys).contains(column))
+                updates[size++] = column;
+        return Arrays.copyOf(updates, size);
+    }
+
+    /**
+     * 指定した行数の文を生成します。
+     *
+     * @param dialect データベースの種類
+     * @param rows    行数
+     * @return SQL文
+     */
+    public String toSql(@NotNull Dialect dialect, int rows)
+    {
+        if (dialect != Dialect.MYSQL && this.keys.length == 0)
+            throw new IllegalStateException("keys are required for " + dialect + ".");
+
+        String columnList = String.join(", ", this.columns);
+        StringBuilder builder = new StringBuilder(64 + rows * (this.columns.length * 3 + 4));
+
+        if (dialect == Dialect.H2)
+            builder.append("MERGE INTO ").append(this.table).append(" (").append(columnList)
+                    .append(") KEY (").append(String.join(", ", this.keys)).append(") VALUES ");
+        else
+            builder.append("INSERT INTO ").append(this.table).append(" (").append(columnList).append(") VALUES ");
+
+        for (int i = 0; i < rows; i++)
+        {
+            if (i > 0)
+                builder.append(", ");
+            builder.append("(?");
+            for (int j = 1; j < this.columns.length; j++)
+                builder.append(", ?");
+            builder.append(')');
+        }
+
+        String[] updates = this.getUpdates();
+        switch (dialect)
+        {
+            case MYSQL:
+                builder.append(" ON DUPLICATE KEY UPDATE ");
+                if (updates.length == 0)
+                {
+                    // 何もしない更新で重複を無視する
+                    String column = this.keys.length > 0 ? this.keys[0]: this.columns[0];
+                    builder.append(column).append(" = ").append(column);
+                    break;
+                }
+
+                for (int i = 0; i < updates.length; i++)
+                {
+                    if (i > 0)
+                        builder.append(", ");
+                    builder.append(updates[i]).append(" = VALUES(").append(updates[i]).append(')');
+                }
+                break;
+            case SQLITE:
+            case POSTGRESQL:
+                builder.append(" ON CONFLICT (").append(String.join(", ", this.keys)).append(')');
+                if (updates.length == 0)
+                {
+                    builder.append(" DO NOTHING");
+                    break;
+                }
+
+                builder.append(" DO UPDATE SET ");
+                for (int i = 0; i < updates.length; i++)
+                {
+                    if (i > 0)
+                        builder.append(", ");
+                    builder.append(updates[i]).append(" = excluded.").append(updates[i]);
+                }
+                break;
+            default:
+                break;
+        }
+
+        return builder.toString();
+    }
+
+    private static void bind(PreparedStatement statement, int index, @Nullable Object value) throws SQLException
+    {
+        if (value == null)
+            statement.setNull(index, Types.NULL);
+        else if (value instanceof String)
+            statement.setString(index, (String) value);
+        else if (value instanceof Integer)
+            statement.setInt(index, (Integer) value);
+        else if (value instanceof Long)
+            statement.setLong(index, (Long) value);
+        else if (value instanceof Double)
+            statement.setDouble(index, (Double) value);
+        else if (value instanceof Boolean)
+            statement.setBoolean(index, (Boolean) value);
+        else if (value instanceof byte[])
+            statement.setBytes(index, (byte[]) value);
+        else if (value instanceof UUID)
+            statement.setString(index, value.toString());
+        else if (value instanceof Enum)
+            statement.setString(index, ((Enum<?>) value).name());
+        else
+            statement.setObject(index, value);
+    }
+
+    private int executeChunk(Transaction transaction, PreparedStatement statement, String sql, int firstRow, int rows)
+            throws SQLException
+    {
+        int offset = firstRow * this.columns.length;
+        int parameters = rows * this.columns.length;
+        for (int i = 0; i < parameters; i++)
+            bind(statement, i + 1, this.values[offset + i]);
+
+        // トランザクションのタイムアウトと統計情報を適用し、終了時に取り消せるようにする
+        return transaction.executeUpdate(statement, sql);
+    }
+
+    /**
+     * トランザクションのコネクションで実行します。コミットはしません。
+     * 各文にはトランザクションの {@link Transaction#queryTimeout(int)} が適用され、{@link QueryMetrics} に記録されます。
+     * {@link Transaction#doTransaction(TransactionRun)} の中で呼び出した場合、例外が発生するとロールバックされます。
+     * <p>
+     * 更新件数はドライバに依存します。MySQL では更新された行を 2 件として数えます。
+     *
+     * @param transaction トランザクション
+     * @return 実行した文ごとの更新件数
+     * @throws SQLException 実行に失敗した場合
+     */
+    public BatchResult execute(@NotNull Transaction transaction) throws SQLException
+    {
+        if (this.rowCount == 0)
+            return new BatchResult(new int[0], new long[0]);
+
+        Connection connection = transaction.getConnection();
+        Dialect dialect = this.dialect != null ? this.dialect: Dialect.detect(connection);
+        int rowsPerStatement = this.getRowsPerStatement(dialect);
+        int fullStatements = this.rowCount / rowsPerStatement;
+        int remainder = this.rowCount % rowsPerStatement;
+        int[] updateCounts = new int[fullStatements + (remainder > 0 ? 1: 0)];
+
+        if (fullStatements > 0)
+        {
+            String sql = this.toSql(dialect, rowsPerStatement);
+            try (PreparedStatement statement = connection.prepareStatement(sql))
+            {
+                for (int i = 0; i < fullStatements; i++)
+                    updateCounts[i] = this.executeChunk(transaction, statement, sql, i * rowsPerStatement, rowsPerStatement);
+            }
+        }
+
+        if (remainder > 0)
+        {
+            String sql = this.toSql(dialect, remainder);
+            try (PreparedStatement statement = connection.prepareStatement(sql))
+            {
+                updateCounts[fullStatements] = this.executeChunk(transaction, statement, sql, fullStatements * rowsPerStatement, remainder);
+            }
+        }
+
+        if (QueryCache.isActive())
+            transaction.touch(QueryCache.normalizeTable(this.table));
+
+        return new BatchResult(updateCounts, new long[0]);
+    }
+
+    /**
+     * 一つのトランザクションで実行し、コミットします。失敗した場合はロールバックされます。
+     *
+     * @param dataSource データソース
+     * @return 実行した文ごとの更新件数
+     */
+    public BatchResult execute(@NotNull DataSource dataSource)
+    {
+        BatchResult[] result = new BatchResult[1];
+        Transaction.create(dataSource, null)
+                .doTransaction(transaction -> result[0] = this.execute(transaction));
+        return result[0];
+    }
+
+    /**
+     * {@link DatabaseExecutor#getDefault()} で非同期に実行し、コミットします。
+     * 完了するまで行を追加したり、{@link #clear()} したりしないでください。
+     *
+     * @param dataSource データソース
+     * @return 実行した文ごとの更新件数
+     */
+    public CompletableFuture<BatchResult> executeAsync(@NotNull DataSource dataSource)
+    {
+        return DatabaseExecutor.getDefault().submit(() -> this.execute(dataSource));
+    }
+
+    /**
+     * 一括更新に対応しているデータベースの種類です。
+     */
+    public enum Dialect
+    {
+        /**
+         * SQLite 3.24 以降です。3.32 より前の上限に合わせ、パラメータ数を 999 までとします。
+         */
+        SQLITE(999),
+        /**
+         * MySQL または MariaDB です。
+         */
+        MYSQL(65535),
+        /**
+         * H2 です。{@code MERGE INTO ... KEY} を使用します。
+         */
+        H2(32767),
+        /**
+         * PostgreSQL 9.5 以降です。
+         */
+        POSTGRESQL(32767);
+
+        private final int maxParameters;
+
+        Dialect(int maxParameters)
+        {
+            this.maxParameters = maxParameters;
+        }
+
+        /**
+         * 一つの文のパラメータ数の上限を取得します。
+         *
+         * @return パラメータ数の上限
+         */
+        public int getMaxParameters()
+        {
+            return this.maxParameters;
+        }
+
+        /**
+         * コネクションのデータベースの種類を判定します。
+         *
+         * @param connection コネクション
+         * @return データベースの種類
+         * @throws SQLException 判定に失敗した場合、または対応していないデータベースの場合
+         */
+        public static Dialect detect(@NotNull Connection connection) throws SQLException
+        {
+            String product = connection.getMetaData().getDatabaseProductName().toLowerCase(Locale.ROOT);
+            if (product.contains("sqlite"))
+                return SQLITE;
+            else if (product.contains("mysql") || product.contains("mariadb"))
+                return MYSQL;
+            else if (product.contains("h2"))
+                return H2;
+            else if (product.contains("postgres"))
+                return POSTGRESQL;
+
+            throw new SQLException("Unsupported database: " + product);
+        }
+    }
+}
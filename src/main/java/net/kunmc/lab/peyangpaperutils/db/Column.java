@@ -0,0 +1,31 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import lombok.Getter;
+
+/**
+ * 列番号を解決済みの列を表すクラスです。
+ * ループの中で列ラベルを毎回解決しないために、{@link QueryResult#intColumn(String)} などで事前に取得して使用します。
+ *
+ * <pre>
+ *     IntColumn score = result.intColumn("score");
+ *     result.forEachRow(row -&gt; total += score.get(row));
+ * </pre>
+ */
+@Getter
+public abstract class Column
+{
+    /**
+     * 列ラベルです。
+     */
+    private final String label;
+    /**
+     * 列番号(1始まり)です。
+     */
+    private final int index;
+
+    Column(String label, int index)
+    {
+        this.label = label;
+        this.index = index;
+    }
+}
@@ -0,0 +1,221 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * 複数の列の値を、列ごとのプリミティブ配列として保持するクラスです。
+ * 値はボクシングされずに列ごとの配列へ直接読み込まれます。SQLのNULLは 0 や false として読み込まれます。
+ *
+ * <pre>
+ *     IntColumn kills = result.intColumn("kills");
+ *     IntColumn deaths = result.intColumn("deaths");
+ *     ColumnArrays arrays = result.toColumnArrays(kills, deaths);
+ *
+ *     int[] k = arrays.getInts(kills);
+ *     int[] d = arrays.getInts(deaths);
+ *     for (int i = 0; i &lt; arrays.size(); i++)
+ *         ratio[i] = (double) k[i] / Math.max(1, d[i]);
+ * </pre>
+ *
+ * @see QueryResult#toColumnArrays(Column...)
+ */
+public class ColumnArrays
+{
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final byte INT = 0;
+    private static final byte LONG = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte BOOLEAN = 3;
+    private static final byte STRING = 4;
+
+    private final Column[] columns;
+    private final byte[] types;
+    private final Object[] arrays;
+    private int size;
+
+    ColumnArrays(Column[] columns)
+    {
+        this.columns = columns;
+        this.types = new byte[columns.length];
+        this.arrays = new Object[columns.length];
+
+        for (int i = 0; i < columns.length; i++)
+        {
+            Column column = columns[i];
+            if (column instanceof IntColumn)
+            {
+                this.types[i] = INT;
+                this.arrays[i] = new int[INITIAL_CAPACITY];
+            }
+            else if (column instanceof LongColumn)
+            {
+                this.types[i] = LONG;
+                this.arrays[i] = new long[INITIAL_CAPACITY];
+            }
+            else if (column instanceof DoubleColumn)
+            {
+                this.types[i] = DOUBLE;
+                this.arrays[i] = new double[INITIAL_CAPACITY];
+            }
+            else if (column instanceof BooleanColumn)
+            {
+                this.types[i] = BOOLEAN;
+                this.arrays[i] = new boolean[INITIAL_CAPACITY];
+            }
+            else if (column instanceof StringColumn)
+            {
+                this.types[i] = STRING;
+                this.arrays[i] = new String[INITIAL_CAPACITY];
+            }
+            else
+                throw new IllegalArgumentException("Unsupported column: " + column.getClass().getName());
+        }
+    }
+
+    /**
+     * 残りのすべての行を読み込みます。
+     */
+    void readAll(ResultSet result) throws SQLException
+    {
+        int capacity = INITIAL_CAPACITY;
+
+        while (result.next())
+        {
+            if (this.size == capacity)
+            {
+                capacity <<= 1;
+                this.resize(capacity);
+            }
+
+            for (int i = 0; i < this.columns.length; i++)
+            {
+                int index = this.columns[i].getIndex();
+                switch (this.types[i])
+                {
+                    case INT:
+                        ((int[]) this.arrays[i])[this.size] = result.getInt(index);
+                        break;
+                    case LONG:
+                        ((long[]) this.arrays[i])[this.size] = result.getLong(index);
+                        break;
+                    case DOUBLE:
+                        ((double[]) this.arrays[i])[this.size] = result.getDouble(index);
+                        break;
+                    case BOOLEAN:
+                        ((boolean[]) this.arrays[i])[this.size] = result.getBoolean(index);
+                        break;
+                    default:
+                        ((String[]) this.arrays[i])[this.size] = result.getString(index);
+                        break;
+                }
+            }
+            this.size++;
+        }
+
+        if (this.size != capacity)
+            this.resize(this.size);
+    }
+
+    private void resize(int capacity)
+    {
+        for (int i = 0; i < this.arrays.length; i++)
+        {
+            switch (this.types[i])
+            {
+                case INT:
+                    this.arrays[i] = Arrays.copyOf((int[]) this.arrays[i], capacity);
+                    break;
+                case LONG:
+                    this.arrays[i] = Arrays.copyOf((long[]) this.arrays[i], capacity);
+                    break;
+                case DOUBLE:
+                    this.arrays[i] = Arrays.copyOf((double[]) this.arrays[i], capacity);
+                    break;
+                case BOOLEAN:
+                    this.arrays[i] = Arrays.copyOf((boolean[]) this.arrays[i], capacity);
+                    break;
+                default:
+                    this.arrays[i] = Arrays.copyOf((String[]) this.arrays[i], capacity);
+                    break;
+            }
+        }
+    }
+
+    private Object getArray(Column column)
+    {
+        for (int i = 0; i < this.columns.length; i++)
+            if (this.columns[i] == column || this.columns[i].getIndex() == column.getIndex()
+                    && this.columns[i].getClass() == column.getClass())
+                return this.arrays[i];
+
+        throw new IllegalArgumentException("Column " + column.getLabel() + " was not extracted.");
+    }
+
+    /**
+     * 読み込んだ行数を取得します。
+     *
+     * @return 行数
+     */
+    public int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * 32ビット整数の列の値を取得します。
+     *
+     * @param column 列
+     * @return 値の配列。長さは {@link #size()} と等しくなります。
+     */
+    public int[] getInts(IntColumn column)
+    {
+        return (int[]) this.getArray(column);
+    }
+
+    /**
+     * 64ビット整数の列の値を取得します。
+     *
+     * @param column 列
+     * @return 値の配列。長さは {@link #size()} と等しくなります。
+     */
+    public long[] getLongs(LongColumn column)
+    {
+        return (long[]) this.getArray(column);
+    }
+
+    /**
+     * 64ビット浮動小数点数の列の値を取得します。
+     *
+     * @param column 列
+     * @return 値の配列。長さは {@link #size()} と等しくなります。
+     */
+    public double[] getDoubles(DoubleColumn column)
+    {
+        return (double[]) this.getArray(column);
+    }
+
+    /**
+     * 真偽値の列の値を取得します。
+     *
+     * @param column 列
+     * @return 値の配列。長さは {@link #size()} と等しくなります。
+     */
+    public boolean[] getBooleans(BooleanColumn column)
+    {
+        return (boolean[]) this.getArray(column);
+    }
+
+    /**
+     * 文字列の列の値を取得します。
+     *
+     * @param column 列
+     * @return 値の配列。長さは {@link #size()} と等しくなります。
+     */
+    public String[] getStrings(StringColumn column)
+    {
+        return (String[]) this.getArray(column);
+    }
+}
@@ -0,0 +1,82 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * 列ラベルから列番号への対応表です。
+ * {@link ResultSetMetaData} から一度だけ生成し、行ごとのラベル解決をドライバに任せないようにします。
+ * JDBC と同様に大文字と小文字を区別せず、同じラベルが複数ある場合は最初の列を返します。
+ */
+class ColumnIndex
+{
+    private final HashMap<String, Integer> indexes;
+    private final int columnCount;
+
+    private ColumnIndex(HashMap<String, Integer> indexes, int columnCount)
+    {
+        this.indexes = indexes;
+        this.columnCount = columnCount;
+    }
+
+    /**
+     * 対応表を生成します。
+     *
+     * @param result ResultSet
+     * @return 対応表
+     * @throws SQLException メタデータの取得に失敗した場合
+     */
+    static ColumnIndex of(ResultSet result) throws SQLException
+    {
+        ResultSetMetaData metaData = result.getMetaData();
+        int columnCount = metaData.getColumnCount();
+        HashMap<String, Integer> indexes = new HashMap<>(columnCount * 4);
+
+        for (int i = 1; i <= columnCount; i++)
+        {
+            String label = metaData.getColumnLabel(i);
+            indexes.putIfAbsent(label, i);
+            indexes.putIfAbsent(label.toLowerCase(Locale.ROOT), i);
+        }
+
+        return new ColumnIndex(indexes, columnCount);
+    }
+
+    /**
+     * 列番号を取得します。
+     *
+     * @param label 列ラベル
+     * @return 列番号。存在しない場合は -1
+     */
+    int indexOf(String label)
+    {
+        Integer index = this.indexes.get(label);
+        if (index == null)
+            index = this.indexes.get(label.toLowerCase(Locale.ROOT));
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * ドライバで解決した列番号を登録します。
+     *
+     * @param label 列ラベル
+     * @param index 列番号
+     */
+    void put(String label, int index)
+    {
+        this.indexes.put(label, index);
+    }
+
+    /**
+     * 列の数を取得します。
+     *
+     * @return 列の数
+     */
+    int getColumnCount()
+    {
+        return this.columnCount;
+    }
+}
@@ -0,0 +1,645 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * 行をクラスのインスタンスに変換する、事前にコンパイルされたマッパーです。
+ * 列とコンストラクタ引数、またはフィールドの対応は、クラスと列構成の組ごとに一度だけ解決され、行全体を変換する一つの {@link MethodHandle} としてキャッシュされます。
+ * <p>
+ * 対応付けは以下の順で行われます。列ラベルとの比較では大文字と小文字、およびアンダースコアを無視します(例: {@code player_id} と {@code playerId})。
+ * <ol>
+ *     <li>レコードクラスの場合は、正規コンストラクタ</li>
+ *     <li>すべての引数名が列と対応するコンストラクタのうち、引数が最も多いもの(引数名の取得には {@code -parameters} でのコンパイルが必要です)</li>
+ *     <li>引数なしのコンストラクタと、static でも final でもないフィールド</li>
+ * </ol>
+ * プリミティブ型とそのラッパー型、{@link String}、{@code byte[]}、{@link BigDecimal}、{@link java.sql.Date} などの日時型、
+ * 列挙型(名前または序数)、{@link UUID}(文字列または16バイトのバイナリ)に対応しています。ラッパー型の場合、SQLのNULLは null になります。
+ * {@link ResultSnapshot} の行は {@link #of(Class, ResultSnapshot)} で取得したマッパーで変換できます。
+ *
+ * @param <T> 変換後の型
+ * @see QueryResult#mapTo(Class)
+ * @see ResultSnapshot#mapTo(Class)
+ */
+public final class CompiledRowMapper<T> implements Function<ResultRow, T>
+{
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, CompiledRowMapper<?>>> CACHE
+            = new ConcurrentHashMap<>();
+
+    private static final MethodHandle READ_VALUE;
+    private static final MethodHandle READ_ROW_VALUE;
+
+    static
+    {
+        try
+        {
+            READ_VALUE = LOOKUP.findVirtual(ValueReader.class, "read", MethodType.methodType(Object.class, ResultSet.class));
+            READ_ROW_VALUE = LOOKUP.findVirtual(RowValueReader.class, "read", MethodType.methodType(Object.class, ResultRow.class));
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Class<T> type;
+    // 値を読み込む元。ResultSet または、ResultSet を持たない ResultSnapshot の行を読み込む ResultRow
+    private final Class<?> source;
+    // 列の読み込み、コンストラクタの呼び出し、フィールドへの代入を一つにまとめた (source)Object
+    // 行ごとに引数の配列を作らず、プリミティブ型の値はボクシングせずに渡される
+    private final MethodHandle mapper;
+
+    private CompiledRowMapper(Class<T> type, Class<?> source, MethodHandle mapper)
+    {
+        this.type = type;
+        this.source = source;
+        this.mapper = mapper;
+    }
+
+    /**
+     * 結果の列構成に対応するマッパーを取得します。同じクラスと列構成のマッパーは再利用されます。
+     *
+     * @param type   変換後の型
+     * @param result ResultSet
+     * @param <T>    変換後の型
+     * @return マッパー
+     * @throws IllegalArgumentException 対応するコンストラクタが見つからない場合
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> CompiledRowMapper<T> of(@NotNull Class<T> type, @NotNull ResultSet result)
+    {
+        try
+        {
+            ResultSetMetaData metaData = result.getMetaData();
+            String[] labels = new String[metaData.getColumnCount()];
+            int[] sqlTypes = new int[labels.length];
+            for (int i = 0; i < labels.length; i++)
+            {
+                labels[i] = metaData.getColumnLabel(i + 1);
+                sqlTypes[i] = metaData.getColumnType(i + 1);
+            }
+
+            return (CompiledRowMapper<T>) CACHE.computeIfAbsent(type, k -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(layoutKey(ResultSet.class, labels, sqlTypes), k -> compile(type, ResultSet.class, labels, sqlTypes));
+        }
+        catch (SQLException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * スナップショットの列構成に対応するマッパーを取得します。同じクラスと列構成のマッパーは再利用されます。
+     * 返されるマッパーは {@link #apply(ResultRow)} でスナップショットの行を変換します。
+     *
+     * @param type     変換後の型
+     * @param snapshot スナップショット
+     * @param <T>      変換後の型
+     * @return マッパー
+     * @throws IllegalArgumentException 対応するコンストラクタが見つからない場合
+     * @see ResultSnapshot#mapTo(Class)
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> CompiledRowMapper<T> of(@NotNull Class<T> type, @NotNull ResultSnapshot snapshot)
+    {
+        String[] labels = new String[snapshot.getColumnCount()];
+        int[] sqlTypes = new int[labels.length];
+        for (int i = 0; i < labels.length; i++)
+        {
+            labels[i] = snapshot.getColumnLabel(i + 1);
+            sqlTypes[i] = snapshot.getColumnType(i + 1);
+        }
+
+        return (CompiledRowMapper<T>) CACHE.computeIfAbsent(type, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(layoutKey(ResultRow.class, labels, sqlTypes), k -> compile(type, ResultRow.class, labels, sqlTypes));
+    }
+
+    private static String layoutKey(Class<?> source, String[] labels, int[] sqlTypes)
+    {
+        StringBuilder builder = new StringBuilder(source.getSimpleName()).append('|');
+        for (int i = 0; i < labels.length; i++)
+            builder.append(labels[i]).append(':').append(sqlTypes[i]).append(';');
+        return builder.toString();
+    }
+
+    private static String normalize(String name)
+    {
+        return name.replace("_", "").toLowerCase(Locale.ROOT);
+    }
+
+    private static <T> CompiledRowMapper<T> compile(Class<T> type, Class<?> source, String[] labels, int[] sqlTypes)
+    {
+        try
+        {
+            HashMap<String, Integer> columns = new HashMap<>();
+            for (int i = 0; i < labels.length; i++)
+                columns.putIfAbsent(normalize(labels[i]), i + 1);
+
+            Constructor<?> constructor = findRecordConstructor(type);
+            if (constructor == null)
+                constructor = findNamedConstructor(type, columns);
+
+            if (constructor != null)
+            {
+                constructor.setAccessible(true);
+                Parameter[] parameters = constructor.getParameters();
+                String[] names = getParameterNames(type, constructor);
+                MethodHandle[] readers = new MethodHandle[parameters.length];
+
+                for (int i = 0; i < parameters.length; i++)
+                {
+                    Integer index = columns.get(normalize(names[i]));
+                    readers[i] = index == null ? defaultValue(source, parameters[i].getType())
+                            : reader(source, parameters[i].getType(), index, sqlTypes[index - 1]);
+                }
+
+                // (P1, P2, ...)T の各引数に (source)Pn を適用し、すべての引数に同じ読み込み元を渡す
+                MethodHandle handle = LOOKUP.unreflectConstructor(constructor);
+                handle = MethodHandles.filterArguments(handle, 0, readers);
+                handle = MethodHandles.permuteArguments(
+                        handle,
+                        MethodType.methodType(handle.type().returnType(), source),
+                        new int[parameters.length]
+                );
+                return new CompiledRowMapper<>(type, source, handle.asType(MethodType.methodType(Object.class, source)));
+            }
+
+            Constructor<T> noArgs;
+            try
+            {
+                noArgs = type.getDeclaredConstructor();
+            }
+            catch (NoSuchMethodException e)
+            {
+                throw new IllegalArgumentException("No constructor of " + type.getName() + " matches the result columns.", e);
+            }
+            noArgs.setAccessible(true);
+
+            List<MethodHandle> writers = new ArrayList<>();
+            for (Class<?> clazz = type; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass())
+            {
+                for (Field field : clazz.getDeclaredFields())
+                {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers) || Modifier.isTransient(modifiers)
+                            || field.isSynthetic())
+                        continue;
+
+                    Integer index = columns.get(normalize(field.getName()));
+                    if (index == null)
+                        continue;
+
+                    field.setAccessible(true);
+                    writers.add(writer(source, field, index, sqlTypes[index - 1]));
+                }
+            }
+
+            // (Object, source)Object でインスタンスをそのまま返す処理の前に、フィールドへの代入を順に差し込む
+            MethodHandle handle = MethodHandles.dropArguments(MethodHandles.identity(Object.class), 1, source);
+            for (int i = writers.size() - 1; i >= 0; i--)
+                handle = MethodHandles.foldArguments(handle, writers.get(i));
+            handle = MethodHandles.foldArguments(handle, LOOKUP.unreflectConstructor(noArgs).asType(MethodType.methodType(Object.class)));
+            return new CompiledRowMapper<>(type, source, handle);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Constructor<?> findRecordConstructor(Class<?> type)
+    {
+        try
+        {
+            Method isRecord = Class.class.getMethod("isRecord");
+            if (!(boolean) isRecord.invoke(type))
+                return null;
+
+            Object[] components = (Object[]) Class.class.getMethod("getRecordComponents").invoke(type);
+            Class<?>[] types = new Class<?>[components.length];
+            for (int i = 0; i < components.length; i++)
+                types[i] = (Class<?>) components[i].getClass().getMethod("getType").invoke(components[i]);
+
+            return type.getDeclaredConstructor(types);
+        }
+        catch (NoSuchMethodException e)
+        {
+            // Java 16 未満
+            return null;
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String[] getParameterNames(Class<?> type, Constructor<?> constructor)
+    {
+        try
+        {
+            Method isRecord = Class.class.getMethod("isRecord");
+            if ((boolean) isRecord.invoke(type))
+            {
+                Object[] components = (Object[]) Class.class.getMethod("getRecordComponents").invoke(type);
+                String[] names = new String[components.length];
+                for (int i = 0; i < components.length; i++)
+                    names[i] = (String) components[i].getClass().getMethod("getName").invoke(components[i]);
+                return names;
+            }
+        }
+        catch (NoSuchMethodException ignored)
+        {
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException(e);
+        }
+
+        Parameter[] parameters = constructor.getParameters();
+        String[] names = new String[parameters.length];
+        for (int i = 0; i < parameters.length; i++)
+            names[i] = parameters[i].getName();
+        return names;
+    }
+
+    private static Constructor<?> findNamedConstructor(Class<?> type, HashMap<String, Integer> columns)
+    {
+        Constructor<?> best = null;
+        for (Constructor<?> constructor : type.getDeclaredConstructors())
+        {
+            Parameter[] parameters = constructor.getParameters();
+            if (parameters.length == 0 || constructor.isSynthetic())
+                continue;
+            if (best != null && best.getParameterCount() >= parameters.length)
+                continue;
+
+            boolean matches = true;
+            for (Parameter parameter : parameters)
+            {
+                if (!parameter.isNamePresent() || !columns.containsKey(normalize(parameter.getName())))
+                {
+                    matches = false;
+                    break;
+                }
+            }
+
+            if (matches)
+                best = constructor;
+        }
+        return best;
+    }
+
+    private static MethodHandle defaultValue(Class<?> source, Class<?> type)
+    {
+        Object value;
+        if (type == boolean.class)
+            value = false;
+        else if (type == char.class)
+            value = '\0';
+        else if (type == int.class)
+            value = 0;
+        else if (type == long.class)
+            value = 0L;
+        else if (type == double.class)
+            value = 0.0;
+        else if (type == float.class)
+            value = 0.0f;
+        else if (type == short.class)
+            value = (short) 0;
+        else if (type == byte.class)
+            value = (byte) 0;
+        else
+            value = null;
+
+        return MethodHandles.dropArguments(MethodHandles.constant(type, value), 0, source);
+    }
+
+    private static boolean isBinary(int sqlType)
+    {
+        return sqlType == Types.BINARY || sqlType == Types.VARBINARY || sqlType == Types.LONGVARBINARY
+                || sqlType == Types.BLOB;
+    }
+
+    private static boolean isNumeric(int sqlType)
+    {
+        switch (sqlType)
+        {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 列を読み込む (source)type を生成します。
+     * プリミティブ型は {@link ResultSet#getInt(int)} などを直接呼び出すため、ボクシングされません。
+     */
+    private static MethodHandle reader(Class<?> source, Class<?> type, int index, int sqlType)
+            throws ReflectiveOperationException
+    {
+        if (source == ResultRow.class)
+            return rowReader(type, index);
+
+        String getter = null;
+        if (type == int.class)
+            getter = "getInt";
+        else if (type == long.class)
+            getter = "getLong";
+        else if (type == double.class)
+            getter = "getDouble";
+        else if (type == float.class)
+            getter = "getFloat";
+        else if (type == boolean.class)
+            getter = "getBoolean";
+        else if (type == short.class)
+            getter = "getShort";
+        else if (type == byte.class)
+            getter = "getByte";
+
+        if (getter != null)
+        {
+            MethodHandle handle = LOOKUP.findVirtual(ResultSet.class, getter, MethodType.methodType(type, int.class));
+            return MethodHandles.insertArguments(handle, 1, index);
+        }
+
+        return READ_VALUE.bindTo(objectReader(type, index, sqlType))
+                .asType(MethodType.methodType(type, ResultSet.class));
+    }
+
+    /**
+     * {@link ResultRow} から列を読み込む (ResultRow)type を生成します。
+     * スナップショットの行は SQL の型を保持しないため、プリミティブ型以外は {@link ResultRow#getObject(int)} の値を変換します。
+     */
+    private static MethodHandle rowReader(Class<?> type, int index) throws ReflectiveOperationException
+    {
+        String getter = null;
+        Class<?> read = type;
+        if (type == int.class)
+            getter = "getInt";
+        else if (type == long.class)
+            getter = "getLong";
+        else if (type == double.class)
+            getter = "getDouble";
+        else if (type == float.class)
+            getter = "getFloat";
+        else if (type == boolean.class)
+            getter = "getBoolean";
+        else if (type == short.class || type == byte.class)
+        {
+            getter = "getInt";
+            read = int.class;
+        }
+        else if (type == String.class)
+            getter = "getString";
+        else if (type == byte[].class)
+            getter = "getBytes";
+        else if (type == java.sql.Date.class)
+            getter = "getDate";
+        else if (type == java.sql.Time.class)
+            getter = "getTime";
+        else if (type == java.sql.Timestamp.class)
+            getter = "getTimestamp";
+
+        if (getter != null)
+        {
+            MethodHandle handle = LOOKUP.findVirtual(ResultRow.class, getter, MethodType.methodType(read, int.class));
+            handle = MethodHandles.insertArguments(handle, 1, index);
+            return MethodHandles.explicitCastArguments(handle, MethodType.methodType(type, ResultRow.class));
+        }
+
+        RowValueReader reader = row -> convert(row.getObject(index), type);
+        return READ_ROW_VALUE.bindTo(reader).asType(MethodType.methodType(type, ResultRow.class));
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object convert(Object value, Class<?> type)
+    {
+        if (value == null || type.isInstance(value))
+            return value;
+
+        if (value instanceof Number)
+        {
+            Number number = (Number) value;
+            if (type == Integer.class || type == int.class)
+                return number.intValue();
+            if (type == Long.class || type == long.class)
+                return number.longValue();
+            if (type == Double.class || type == double.class)
+                return number.doubleValue();
+            if (type == Float.class || type == float.class)
+                return number.floatValue();
+            if (type == Short.class || type == short.class)
+                return number.shortValue();
+            if (type == Byte.class || type == byte.class)
+                return number.byteValue();
+            if (type == Boolean.class || type == boolean.class)
+                return number.longValue() != 0;
+            if (type == BigDecimal.class)
+                return new BigDecimal(number.toString());
+            if (type.isEnum())
+            {
+                Enum[] constants = ((Class<? extends Enum>) type).getEnumConstants();
+                int ordinal = number.intValue();
+                if (ordinal < 0 || ordinal >= constants.length)
+                    throw new IllegalStateException(ordinal + " is not an ordinal of " + type.getName());
+                return constants[ordinal];
+            }
+        }
+
+        if (value instanceof String)
+        {
+            if (type == UUID.class)
+                return UUID.fromString((String) value);
+            if (type.isEnum())
+                return Enum.valueOf((Class<? extends Enum>) type, (String) value);
+        }
+
+        if (value instanceof byte[] && type == UUID.class && ((byte[]) value).length == 16)
+        {
+            ByteBuffer buffer = ByteBuffer.wrap((byte[]) value);
+            return new UUID(buffer.getLong(), buffer.getLong());
+        }
+
+        throw new IllegalStateException("Cannot convert " + value.getClass().getName() + " to " + type.getName());
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ValueReader objectReader(Class<?> type, int index, int sqlType)
+    {
+        if (type == Integer.class)
+            return rs -> nullable(rs, rs.getInt(index));
+        if (type == Long.class)
+            return rs -> nullable(rs, rs.getLong(index));
+        if (type == Double.class)
+            return rs -> nullable(rs, rs.getDouble(index));
+        if (type == Float.class)
+            return rs -> nullable(rs, rs.getFloat(index));
+        if (type == Boolean.class)
+            return rs -> nullable(rs, rs.getBoolean(index));
+        if (type == Short.class)
+            return rs -> nullable(rs, rs.getShort(index));
+        if (type == Byte.class)
+            return rs -> nullable(rs, rs.getByte(index));
+
+        if (type == String.class)
+            return rs -> rs.getString(index);
+        if (type == byte[].class)
+            return rs -> rs.getBytes(index);
+        if (type == BigDecimal.class)
+            return rs -> rs.getBigDecimal(index);
+        if (type == java.sql.Date.class)
+            return rs -> rs.getDate(index);
+        if (type == java.sql.Time.class)
+            return rs -> rs.getTime(index);
+        if (type == java.sql.Timestamp.class)
+            return rs -> rs.getTimestamp(index);
+
+        if (type == UUID.class)
+        {
+            if (isBinary(sqlType))
+                return rs -> {
+                    byte[] bytes = rs.getBytes(index);
+                    if (bytes == null)
+                        return null;
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                    return new UUID(buffer.getLong(), buffer.getLong());
+                };
+            return rs -> {
+                String value = rs.getString(index);
+                return value == null ? null : UUID.fromString(value);
+            };
+        }
+
+        if (type.isEnum())
+        {
+            Enum[] constants = ((Class<? extends Enum>) type).getEnumConstants();
+            if (isNumeric(sqlType))
+                return rs -> {
+                    int ordinal = rs.getInt(index);
+                    if (rs.wasNull())
+                        return null;
+                    if (ordinal < 0 || ordinal >= constants.length)
+                        throw new IllegalStateException("Failed to map column " + rs.getMetaData().getColumnLabel(index)
+                                + ": " + ordinal + " is not an ordinal of " + type.getName());
+                    return constants[ordinal];
+                };
+            return rs -> {
+                String value = rs.getString(index);
+                return value == null ? null : Enum.valueOf((Class<? extends Enum>) type, value);
+            };
+        }
+
+        return rs -> {
+            Object value = rs.getObject(index);
+            return value == null || type.isInstance(value) ? value : rs.getObject(index, type);
+        };
+    }
+
+    private static Object nullable(ResultSet result, Object value) throws SQLException
+    {
+        return result.wasNull() ? null : value;
+    }
+
+    /**
+     * フィールドに列の値を代入する (Object, source)void を生成します。
+     */
+    private static MethodHandle writer(Class<?> source, Field field, int index, int sqlType)
+            throws ReflectiveOperationException
+    {
+        MethodHandle setter = LOOKUP.unreflectSetter(field);
+        setter = MethodHandles.filterArguments(setter, 1, reader(source, field.getType(), index, sqlType));
+        return setter.asType(MethodType.methodType(void.class, Object.class, source));
+    }
+
+    /**
+     * 現在行を変換します。
+     *
+     * @param result ResultSet
+     * @return 変換されたインスタンス
+     */
+    public T map(@NotNull ResultSet result)
+    {
+        if (this.source != ResultSet.class)
+            throw new IllegalStateException("This mapper reads snapshot rows. Use apply(ResultRow) instead.");
+
+        try
+        {
+            return this.type.cast((Object) this.mapper.invokeExact(result));
+        }
+        catch (Throwable e)
+        {
+            throw this.failure(e);
+        }
+    }
+
+    /**
+     * 行を変換します。{@link #of(Class, ResultSnapshot)} で取得したマッパーでは、スナップショットの行を変換できます。
+     *
+     * @param row 行
+     * @return 変換されたインスタンス
+     */
+    @Override
+    public T apply(ResultRow row)
+    {
+        if (this.source == ResultSet.class)
+            return this.map(row.getResultSet());
+
+        try
+        {
+            return this.type.cast((Object) this.mapper.invokeExact(row));
+        }
+        catch (Throwable e)
+        {
+            throw this.failure(e);
+        }
+    }
+
+    private RuntimeException failure(Throwable e)
+    {
+        if (e instanceof SQLException)
+            return new IllegalStateException(e);
+        if (e instanceof RuntimeException)
+            return (RuntimeException) e;
+        if (e instanceof Error)
+            throw (Error) e;
+        return new IllegalStateException("Failed to map a row to " + this.type.getName(), e);
+    }
+
+    @FunctionalInterface
+    private interface ValueReader
+    {
+        Object read(ResultSet result) throws SQLException;
+    }
+
+    @FunctionalInterface
+    private interface RowValueReader
+    {
+        Object read(ResultRow row);
+    }
+}
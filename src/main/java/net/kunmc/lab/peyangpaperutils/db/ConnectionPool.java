@@ -0,0 +1,602 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * 上限付きのコネクションプールです。
+ * {@link #getConnection()} で取得したコネクションの {@link Connection#close()} を呼び出すと、物理コネクションは閉じられずにプールへ返却されます。
+ * {@link Transaction#create(DataSource, String)} と組み合わせて使用します。
+ *
+ * <pre>
+ *     ConnectionPool pool = ConnectionPool.of("jdbc:sqlite:plugins/MyPlugin/data.db", new ConnectionPool.Settings().setMaxSize(4));
+ *     Transaction.create(pool, "UPDATE players SET coins = ? WHERE uuid = ?")
+ *             .set(1, coins)
+ *             .set(2, uuid.toString())
+ *             .executeUpdate();  // コネクションはプールへ返却される
+ * </pre>
+ */
+public class ConnectionPool implements DataSource, AutoCloseable
+{
+    private static final AtomicInteger POOL_ID = new AtomicInteger();
+
+    private final ConnectionFactory factory;
+    @Getter
+    private final Settings settings;
+
+    private final ReentrantLock lock;
+    private final Condition available;
+    private final ArrayDeque<PooledConnection> idle;
+    private final ScheduledExecutorService housekeeper;
+
+    private final LongAdder acquireCount;
+    private final LongAdder timeoutCount;
+    private final LongAdder createdCount;
+    private final LongAdder destroyedCount;
+    private final LongAdder totalWaitNanos;
+    private final AtomicLong maxWaitNanos;
+    private final LongAdder statementCacheHits;
+    private final LongAdder statementCacheMisses;
+
+    private int totalConnections;
+    private int waitingThreads;
+    private boolean closed;
+
+    /**
+     * コネクションプールを生成します。
+     *
+     * @param factory  物理コネクションを生成する関数
+     * @param settings プールの設定
+     */
+    public ConnectionPool(@NotNull ConnectionFactory factory, @NotNull Settings settings)
+    {
+        if (settings.getMaxSize() < 1)
+            throw new IllegalArgumentException("maxSize must be greater than 0.");
+        if (settings.getMinIdle() > settings.getMaxSize())
+            throw new IllegalArgumentException("minIdle must not be greater than maxSize.");
+
+        this.factory = factory;
+        this.settings = settings;
+
+        this.lock = new ReentrantLock();
+        this.available = this.lock.newCondition();
+        this.idle = new ArrayDeque<>();
+
+        this.acquireCount = new LongAdder();
+        this.timeoutCount = new LongAdder();
+        this.createdCount = new LongAdder();
+        this.destroyedCount = new LongAdder();
+        this.totalWaitNanos = new LongAdder();
+        this.maxWaitNanos = new AtomicLong();
+        this.statementCacheHits = new LongAdder();
+        this.statementCacheMisses = new LongAdder();
+
+        int id = POOL_ID.incrementAndGet();
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "PeyangPaperUtils-ConnectionPool-" + id);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.housekeeper.scheduleWithFixedDelay(
+                this::runHousekeeping,
+                settings.getHousekeepingInterval(),
+                settings.getHousekeepingInterval(),
+                TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * JDBC URLからコネクションプールを生成します。
+     *
+     * @param url      JDBC URL
+     * @param user     ユーザ名
+     * @param password パスワード
+     * @param settings プールの設定
+     * @return コネクションプール
+     */
+    public static ConnectionPool of(@NotNull String url, @Nullable String user, @Nullable String password, @NotNull Settings settings)
+    {
+        return new ConnectionPool(() -> DriverManager.getConnection(url, user, password), settings);
+    }
+
+    /**
+     * JDBC URLからコネクションプールを生成します。
+     *
+     * @param url      JDBC URL
+     * @param settings プールの設定
+     * @return コネクションプール
+     */
+    public static ConnectionPool of(@NotNull String url, @NotNull Settings settings)
+    {
+        return new ConnectionPool(() -> DriverManager.getConnection(url), settings);
+    }
+
+    /**
+     * プールからコネクションを取得します。
+     * 空きがない場合は {@link Settings#getAcquireTimeout()} ミリ秒まで返却を待機します。
+     *
+     * @return コネクション。{@link Connection#close()} でプールへ返却されます。
+     * @throws SQLTimeoutException 待機がタイムアウトした場合
+     * @throws SQLException        コネクションの生成に失敗した場合、またはプールが閉じられている場合
+     */
+    @Override
+    public Connection getConnection() throws SQLException
+    {
+        long start = System.nanoTime();
+        long remaining = TimeUnit.MILLISECONDS.toNanos(this.settings.getAcquireTimeout());
+
+        try
+        {
+            while (true)
+            {
+                PooledConnection candidate = null;
+                boolean create = false;
+
+                this.lock.lock();
+                try
+                {
+                    while (true)
+                    {
+                        if (this.closed)
+                            throw new SQLException("This ConnectionPool is closed.");
+
+                        candidate = this.idle.pollFirst();
+                        if (candidate != null)
+                            break;
+
+                        if (this.totalConnections < this.settings.getMaxSize())
+                        {
+                            this.totalConnections++;
+                            create = true;
+                            break;
+                        }
+
+                        if (remaining <= 0L)
+                        {
+                            this.timeoutCount.increment();
+                            throw new SQLTimeoutException("Timed out waiting for a connection after "
+                                    + this.settings.getAcquireTimeout() + "ms.");
+                        }
+
+                        this.waitingThreads++;
+                        try
+                        {
+                            remaining = this.available.awaitNanos(remaining);
+                        }
+                        catch (InterruptedException e)
+                        {
+                            Thread.currentThread().interrupt();
+                            throw new SQLException("Interrupted while waiting for a connection.", e);
+                        }
+                        finally
+                        {
+                            this.waitingThreads--;
+                        }
+                    }
+                }
+                finally
+                {
+                    this.lock.unlock();
+                }
+
+                if (create)
+                    return this.createConnection().borrow();
+
+                if (this.isUsable(candidate))
+                    return candidate.borrow();
+
+                this.destroy(candidate);
+            }
+        }
+        finally
+        {
+            this.recordWait(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * このプールはユーザ名とパスワードを指定した取得をサポートしません。
+     *
+     * @throws SQLFeatureNotSupportedException 常に
+     */
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException
+    {
+        throw new SQLFeatureNotSupportedException("ConnectionPool does not support per-call credentials.");
+    }
+
+    private PooledConnection createConnection() throws SQLException
+    {
+        try
+        {
+            Connection physical = this.factory.create();
+            this.createdCount.increment();
+            return new PooledConnection(
+                    this,
+                    physical,
+                    this.settings.getStatementCacheSize(),
+                    this.statementCacheHits,
+                    this.statementCacheMisses
+            );
+        }
+        catch (SQLException | RuntimeException e)
+        {
+            this.lock.lock();
+            try
+            {
+                this.totalConnections--;
+                this.available.signal();
+            }
+            finally
+            {
+                this.lock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    private boolean isUsable(PooledConnection connection)
+    {
+        long now = System.currentTimeMillis();
+        if (connection.isExpired(now, this.settings.getMaxLifetime()))
+            return false;
+
+        if (now - connection.getLastUsedAt() < this.settings.getValidationInterval())
+            return true;
+
+        return this.validate(connection.getPhysical());
+    }
+
+    private boolean validate(Connection physical)
+    {
+        try
+        {
+            if (this.settings.getValidationQuery() == null)
+                return physical.isValid(this.settings.getValidationTimeout());
+
+            try (Statement statement = physical.createStatement())
+            {
+                statement.setQueryTimeout(this.settings.getValidationTimeout());
+                statement.execute(this.settings.getValidationQuery());
+            }
+            return true;
+        }
+        catch (SQLException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * 貸し出していたコネクションを返却します。
+     *
+     * @param connection 返却するコネクション
+     */
+    void release(PooledConnection connection)
+    {
+        boolean reusable = !connection.isBroken() && connection.reset();
+
+        if (reusable && !connection.isExpired(System.currentTimeMillis(), this.settings.getMaxLifetime()))
+        {
+            this.lock.lock();
+            try
+            {
+                if (!this.closed)
+                {
+                    this.idle.addFirst(connection);
+                    this.available.signal();
+                    return;
+                }
+            }
+            finally
+            {
+                this.lock.unlock();
+            }
+        }
+
+        this.destroy(connection);
+    }
+
+    private void destroy(PooledConnection connection)
+    {
+        connection.closePhysical();
+        this.destroyedCount.increment();
+
+        this.lock.lock();
+        try
+        {
+            this.totalConnections--;
+            this.available.signal();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    private void recordWait(long nanos)
+    {
+        this.acquireCount.increment();
+        this.totalWaitNanos.add(nanos);
+        this.maxWaitNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    private void runHousekeeping()
+    {
+        try
+        {
+            this.evictIdle();
+            this.fillMinIdle();
+        }
+        catch (Exception e)
+        {
+            System.out.println("An exception has occurred during connection pool housekeeping.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 寿命を超えたコネクションと、{@link Settings#getIdleTimeout()} を超えて使用されていないコネクションを閉じます。
+     * 通常は一定間隔で自動的に呼び出されます。
+     */
+    public void evictIdle()
+    {
+        long now = System.currentTimeMillis();
+        List<PooledConnection> evicted = new ArrayList<>();
+
+        this.lock.lock();
+        try
+        {
+            int removable = this.idle.size() - this.settings.getMinIdle();
+            Iterator<PooledConnection> iterator = this.idle.descendingIterator();
+            while (iterator.hasNext())
+            {
+                PooledConnection connection = iterator.next();
+                boolean expired = connection.isExpired(now, this.settings.getMaxLifetime());
+                boolean idleTooLong = removable > 0 && this.settings.getIdleTimeout() > 0
+                        && now - connection.getLastUsedAt() > this.settings.getIdleTimeout();
+
+                if (expired || idleTooLong)
+                {
+                    iterator.remove();
+                    evicted.add(connection);
+                    removable--;
+                }
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+
+        evicted.forEach(this::destroy);
+    }
+
+    private void fillMinIdle() throws SQLException
+    {
+        while (true)
+        {
+            this.lock.lock();
+            try
+            {
+                if (this.closed || this.idle.size() >= this.settings.getMinIdle()
+                        || this.totalConnections >= this.settings.getMaxSize())
+                    return;
+                this.totalConnections++;
+            }
+            finally
+            {
+                this.lock.unlock();
+            }
+
+            this.release(this.createConnection());
+        }
+    }
+
+    /**
+     * プールの統計情報を取得します。
+     *
+     * @return 統計情報
+     */
+    public PoolStats getStats()
+    {
+        this.lock.lock();
+        try
+        {
+            return new PoolStats(
+                    this.totalConnections,
+                    this.idle.size(),
+                    this.waitingThreads,
+                    this.acquireCount.sum(),
+                    this.timeoutCount.sum(),
+                    this.createdCount.sum(),
+                    this.destroyedCount.sum(),
+                    this.totalWaitNanos.sum(),
+                    this.maxWaitNanos.get(),
+                    this.statementCacheHits.sum(),
+                    this.statementCacheMisses.sum()
+            );
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * プールを閉じ、待機中のコネクションをすべて閉じます。
+     * 貸し出し中のコネクションは返却された時点で閉じられます。
+     */
+    @Override
+    public void close()
+    {
+        List<PooledConnection> connections;
+
+        this.lock.lock();
+        try
+        {
+            if (this.closed)
+                return;
+            this.closed = true;
+
+            connections = new ArrayList<>(this.idle);
+            this.idle.clear();
+            this.available.signalAll();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+
+        this.housekeeper.shutdownNow();
+        connections.forEach(this::destroy);
+    }
+
+    /**
+     * プールが閉じられているかどうかを返します。
+     *
+     * @return 閉じられているかどうか
+     */
+    public boolean isClosed()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.closed;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter()
+    {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out)
+    {
+    }
+
+    @Override
+    public int getLoginTimeout()
+    {
+        return (int) TimeUnit.MILLISECONDS.toSeconds(this.settings.getAcquireTimeout());
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds)
+    {
+        this.settings.setAcquireTimeout(TimeUnit.SECONDS.toMillis(seconds));
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException
+    {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException
+    {
+        if (iface.isInstance(this))
+            return iface.cast(this);
+        throw new SQLException("ConnectionPool is not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface)
+    {
+        return iface.isInstance(this);
+    }
+
+    /**
+     * 物理コネクションを生成する関数です。
+     */
+    @FunctionalInterface
+    public interface ConnectionFactory
+    {
+        Connection create() throws SQLException;
+    }
+
+    /**
+     * コネクションプールの設定です。
+     * 時間の単位は、特に記載がない限りミリ秒です。
+     */
+    @Getter
+    @Setter
+    @Accessors(chain = true)
+    public static class Settings
+    {
+        /**
+         * プールが保持するコネクションの最大数です。
+         */
+        private int maxSize = 10;
+        /**
+         * 待機状態で保持し続けるコネクションの最小数です。
+         */
+        private int minIdle = 0;
+        /**
+         * コネクションの取得を待機する最大時間です。
+         */
+        private long acquireTimeout = 30_000L;
+        /**
+         * コネクションの最大寿命です。0以下の場合は無制限です。
+         */
+        private long maxLifetime = 1_800_000L;
+        /**
+         * 使用されていないコネクションを閉じるまでの時間です。0以下の場合は閉じません。
+         */
+        private long idleTimeout = 600_000L;
+        /**
+         * 最後に使用されてからこの時間以上経過したコネクションは、貸し出し前に検証されます。
+         */
+        private long validationInterval = 500L;
+        /**
+         * 検証のタイムアウト(秒)です。
+         */
+        private int validationTimeout = 5;
+        /**
+         * 検証に使用するSQL文です。nullの場合は {@link Connection#isValid(int)} を使用します。
+         */
+        @Nullable
+        private String validationQuery = null;
+        /**
+         * 期限切れのコネクションを掃除する間隔です。
+         */
+        private long housekeepingInterval = 30_000L;
+        /**
+         * コネクションごとにキャッシュする {@link java.sql.PreparedStatement} の最大数です。0以下の場合はキャッシュしません。
+         * キャッシュされたステートメントは同じSQL文で共有されるため、同じSQL文の結果を同時に複数開く場合は無効にしてください。
+         */
+        private int statementCacheSize = 0;
+    }
+}
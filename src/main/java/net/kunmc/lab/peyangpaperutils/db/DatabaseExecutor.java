@@ -0,0 +1,351 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import net.kunmc.lab.peyangpaperutils.lib.utils.Runner;
+import org.bukkit.Bukkit;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * DB操作を非同期で実行するための、上限付きのスレッドプールです。
+ * キューが一杯の場合、タスクは {@link RejectedExecutionException} で失敗します。
+ *
+ * <pre>
+ *     Transaction.create(pool, "SELECT coins FROM players WHERE uuid = ?")
+ *             .set(1, uuid.toString())
+ *             .executeQueryAsync(row -> row.getInt("coins"))
+ *             .thenAcceptAsync(coins -> player.sendMessage("Coins: " + coins), DatabaseExecutor.mainThread());
+ * </pre>
+ */
+public class DatabaseExecutor implements Executor
+{
+    private static final Executor MAIN_THREAD = runnable -> {
+        if (Bukkit.isPrimaryThread())
+            runnable.run();
+        else
+            Runner.run(runnable::run);
+    };
+
+    private static final AtomicInteger EXECUTOR_ID = new AtomicInteger();
+
+    private static DatabaseExecutor defaultExecutor;
+
+    private final ThreadPoolExecutor executor;
+
+    private final LongAdder submittedCount;
+    private final LongAdder completedCount;
+    private final LongAdder failedCount;
+    private final LongAdder rejectedCount;
+    private final LongAdder totalQueueWaitNanos;
+    private final LongAdder totalExecutionNanos;
+    private final AtomicLong maxExecutionNanos;
+
+    /**
+     * 非同期実行用のスレッドプールを生成します。
+     *
+     * @param threads       スレッド数
+     * @param queueCapacity 待機できるタスクの最大数
+     */
+    public DatabaseExecutor(int threads, int queueCapacity)
+    {
+        int id = EXECUTOR_ID.incrementAndGet();
+        AtomicInteger threadId = new AtomicInteger();
+
+        this.executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread thread = new Thread(r, "PeyangPaperUtils-DB-" + id + "-" + threadId.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+
+        this.submittedCount = new LongAdder();
+        this.completedCount = new LongAdder();
+        this.failedCount = new LongAdder();
+        this.rejectedCount = new LongAdder();
+        this.totalQueueWaitNanos = new LongAdder();
+        this.totalExecutionNanos = new LongAdder();
+        this.maxExecutionNanos = new AtomicLong();
+    }
+
+    /**
+     * デフォルトのスレッドプールを取得します。
+     * 初回呼び出し時に、2スレッド・キュー長1024で生成されます。
+     * {@link #shutdownDefault(long, TimeUnit)} の後は再生成されず、停止済みのスレッドプールが返されるため、
+     * タスクは {@link RejectedExecutionException} で失敗します。
+     *
+     * @return デフォルトのスレッドプール
+     */
+    public static synchronized DatabaseExecutor getDefault()
+    {
+        if (defaultExecutor == null)
+            defaultExecutor = new DatabaseExecutor(2, 1024);
+        return defaultExecutor;
+    }
+
+    /**
+     * デフォルトのスレッドプールを置き換えます。以前のスレッドプールは停止されません。
+     *
+     * @param executor 新しいスレッドプール
+     */
+    public static synchronized void setDefault(@NotNull DatabaseExecutor executor)
+    {
+        defaultExecutor = executor;
+    }
+
+    /**
+     * デフォルトのスレッドプールを停止して、実行中のタスクの終了を待ちます。
+     * 停止後に {@link #getDefault()} で投入されたタスクは、{@link RejectedExecutionException} で失敗します。
+     *
+     * @param timeout 待機する最大時間
+     * @param unit    時間の単位
+     * @return 時間内にすべてのタスクが終了したかどうか
+     */
+    public static boolean shutdownDefault(long timeout, TimeUnit unit)
+    {
+        DatabaseExecutor executor;
+        synchronized (DatabaseExecutor.class)
+        {
+            // 停止後に新しいスレッドプールが生成されないよう、停止済みのものを残しておく
+            if (defaultExecutor == null)
+                defaultExecutor = new DatabaseExecutor(1, 1);
+            executor = defaultExecutor;
+        }
+
+        return executor.shutdown(timeout, unit);
+    }
+
+    /**
+     * Bukkitのメインスレッドで処理を実行する {@link Executor} を取得します。
+     * 既にメインスレッドの場合はその場で実行し、そうでない場合は {@link Runner#run(Runner.GeneralExceptableRunner)} で次のチックに実行します。
+     *
+     * @return メインスレッドで実行する {@link Executor}
+     */
+    public static Executor mainThread()
+    {
+        return MAIN_THREAD;
+    }
+
+    /**
+     * 非同期処理の結果をBukkitのメインスレッドで受け取ります。
+     *
+     * @param future    非同期処理
+     * @param onSuccess 成功時にメインスレッドで呼び出される関数
+     * @param onError   失敗時にメインスレッドで呼び出される関数。nullの場合はスタックトレースを出力します。
+     * @param <T>       結果の型
+     * @return 受け取り処理の完了を表すFuture
+     */
+    public static <T> CompletableFuture<Void> acceptOnMainThread(@NotNull CompletableFuture<T> future,
+                                                                 @NotNull Consumer<? super T> onSuccess,
+                                                                 @Nullable Consumer<? super Throwable> onError)
+    {
+        return future.handleAsync((result, throwable) -> {
+            if (throwable == null)
+                onSuccess.accept(result);
+            else if (onError != null)
+                onError.accept(throwable);
+            else
+                throwable.printStackTrace();
+            return null;
+        }, MAIN_THREAD);
+    }
+
+    /**
+     * 非同期処理の結果をBukkitのメインスレッドで受け取ります。
+     *
+     * @param future    非同期処理
+     * @param onSuccess 成功時にメインスレッドで呼び出される関数
+     * @param <T>       結果の型
+     * @return 受け取り処理の完了を表すFuture
+     */
+    public static <T> CompletableFuture<Void> acceptOnMainThread(@NotNull CompletableFuture<T> future,
+                                                                 @NotNull Consumer<? super T> onSuccess)
+    {
+        return acceptOnMainThread(future, onSuccess, null);
+    }
+
+    /**
+     * タスクを非同期で実行します。
+     *
+     * @param task 実行するタスク
+     * @param <T>  結果の型
+     * @return タスクの結果。キューが一杯の場合は {@link RejectedExecutionException} で失敗します。
+     */
+    public <T> CompletableFuture<T> submit(@NotNull Task<? extends T> task)
+    {
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        try
+        {
+            this.dispatch(task, future);
+        }
+        catch (RejectedExecutionException e)
+        {
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    /**
+     * タスクを実行します。
+     * {@link Executor} の規約に従い、キューが一杯の場合は {@link RejectedExecutionException} をスローします。
+     * タスクで発生した例外は出力されます。
+     *
+     * @param command 実行するタスク
+     */
+    @Override
+    public void execute(@NotNull Runnable command)
+    {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.whenComplete((result, throwable) -> {
+            if (throwable == null)
+                return;
+
+            System.out.println("An exception has occurred during executing a database task.");
+            throwable.printStackTrace();
+        });
+
+        this.dispatch(() -> {
+            command.run();
+            return null;
+        }, future);
+    }
+
+    private <T> void dispatch(Task<? extends T> task, CompletableFuture<T> future)
+    {
+        long submittedAt = System.nanoTime();
+
+        try
+        {
+            this.executor.execute(() -> {
+                long startedAt = System.nanoTime();
+                this.totalQueueWaitNanos.add(startedAt - submittedAt);
+
+                try
+                {
+                    future.complete(task.run());
+                    this.completedCount.increment();
+                }
+                catch (Throwable e)
+                {
+                    this.failedCount.increment();
+                    future.completeExceptionally(e);
+                }
+                finally
+                {
+                    long elapsed = System.nanoTime() - startedAt;
+                    this.totalExecutionNanos.add(elapsed);
+                    this.maxExecutionNanos.accumulateAndGet(elapsed, Math::max);
+                }
+            });
+            this.submittedCount.increment();
+        }
+        catch (RejectedExecutionException e)
+        {
+            this.rejectedCount.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * 待機中のタスクの数を取得します。
+     *
+     * @return 待機中のタスクの数
+     */
+    public int getQueueDepth()
+    {
+        return this.executor.getQueue().size();
+    }
+
+    /**
+     * 統計情報を取得します。
+     *
+     * @return 統計情報
+     */
+    public ExecutorStats getStats()
+    {
+        return new ExecutorStats(
+                this.executor.getQueue().size(),
+                this.executor.getActiveCount(),
+                this.submittedCount.sum(),
+                this.completedCount.sum(),
+                this.failedCount.sum(),
+                this.rejectedCount.sum(),
+                this.totalQueueWaitNanos.sum(),
+                this.totalExecutionNanos.sum(),
+                this.maxExecutionNanos.get()
+        );
+    }
+
+    /**
+     * 停止されているかどうかを返します。
+     *
+     * @return 停止されているかどうか
+     */
+    public boolean isShutdown()
+    {
+        return this.executor.isShutdown();
+    }
+
+    /**
+     * 新しいタスクの受付を停止し、待機中および実行中のタスクの終了を待ちます。
+     * 時間内に終了しなかったタスクは中断されます。
+     *
+     * @param timeout 待機する最大時間
+     * @param unit    時間の単位
+     * @return 時間内にすべてのタスクが終了したかどうか
+     */
+    public boolean shutdown(long timeout, TimeUnit unit)
+    {
+        this.executor.shutdown();
+        try
+        {
+            if (this.executor.awaitTermination(timeout, unit))
+                return true;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        List<Runnable> dropped = this.executor.shutdownNow();
+        if (!dropped.isEmpty())
+            System.out.println(dropped.size() + " database tasks were dropped on shutdown.");
+        return false;
+    }
+
+    /**
+     * 非同期で実行するタスクです。
+     *
+     * @param <T> 結果の型
+     */
+    @FunctionalInterface
+    public interface Task<T>
+    {
+        /**
+         * 実行します。
+         *
+         * @return 結果
+         * @throws Exception 例外
+         */
+        T run() throws Exception;
+    }
+}
@@ -0,0 +1,279 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import lombok.experimental.UtilityClass;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DB操作をプラグインのライフサイクルに結び付けるレジストリです。
+ * <p>
+ * {@link Transaction} が実行中のステートメントはここに登録され、タイムアウトを超えたものは
+ * {@link Statement#cancel()} で取り消されます。{@link #shutdown(long, TimeUnit)} では、
+ * 書き込みの待機と非同期処理の完了を猶予時間内で待ち、終わらなかったステートメントを取り消した後、
+ * 登録されたリソースを登録と逆の順に閉じます。{@code PeyangPaperUtils.dispose()} から呼び出されます。
+ *
+ * <pre>
+ *     ConnectionPool pool = DatabaseLifecycle.register(ConnectionPool.of(url, new ConnectionPool.Settings()));
+ *     DatabaseLifecycle.defaultQueryTimeout(10);  // 10秒を超えたステートメントを取り消す
+ * </pre>
+ */
+@UtilityClass
+public class DatabaseLifecycle
+{
+    private static final long WATCHDOG_INTERVAL_MILLIS = 500L;
+
+    private static final Set<RunningStatement> RUNNING = ConcurrentHashMap.newKeySet();
+    private static final Deque<AutoCloseable> RESOURCES = new ArrayDeque<>();
+
+    private static volatile int defaultQueryTimeout;
+    @Nullable
+    private static volatile ScheduledExecutorService watchdog;
+
+    /**
+     * タイムアウトを設定していないステートメントに適用するタイムアウトを設定します。0 の場合は無制限です。
+     * {@link Transaction#queryTimeout(int)} と異なりドライバには渡されず、時間を超えたステートメントは
+     * {@link Statement#cancel()} で取り消されます。
+     *
+     * @param seconds タイムアウトの秒数
+     */
+    public static void defaultQueryTimeout(int seconds)
+    {
+        if (seconds < 0)
+            throw new IllegalArgumentException("seconds must not be negative.");
+        defaultQueryTimeout = seconds;
+    }
+
+    /**
+     * 終了時に閉じるリソースを登録します。リソースは登録と逆の順に閉じられます。
+     *
+     * @param resource リソース。{@link ConnectionPool} など。{@link ReplicaRouter} を使用する場合は、プライマリとレプリカのプールをそれぞれ登録します
+     * @param <T>      リソースの型
+     * @return 登録したリソース
+     */
+    public static <T extends AutoCloseable> T register(@NotNull T resource)
+    {
+        synchronized (RESOURCES)
+        {
+            RESOURCES.push(resource);
+        }
+        return resource;
+    }
+
+    /**
+     * リソースの登録を解除します。リソースは閉じられません。
+     *
+     * @param resource リソース
+     */
+    public static void unregister(@NotNull AutoCloseable resource)
+    {
+        synchronized (RESOURCES)
+        {
+            RESOURCES.remove(resource);
+        }
+    }
+
+    /**
+     * 実行中、または結果を読み込み中のステートメントの数を取得します。
+     *
+     * @return 実行中のステートメントの数
+     */
+    public static int getRunningCount()
+    {
+        return RUNNING.size();
+    }
+
+    /**
+     * 実行中のすべてのステートメントを {@link Statement#cancel()} で取り消します。
+     * 取り消されたステートメントを実行していたスレッドでは、{@link IllegalStateException} が発生します。
+     *
+     * @return 取り消したステートメントの数
+     */
+    public static int cancelAll()
+    {
+        int cancelled = 0;
+        for (RunningStatement running : RUNNING)
+            if (running.cancel())
+                cancelled++;
+        return cancelled;
+    }
+
+    /**
+     * DB操作を終了します。次の順に処理を行います。
+     * <ol>
+     *     <li>{@link PlayerDataStore} と {@link WriteBehindQueue} を閉じ、書き込みを猶予時間内で待つ。{@link WriteBehindQueue} は猶予時間を過ぎても、残りをこのスレッドで書き込む</li>
+     *     <li>{@link RetryPolicy} のスケジューラを停止し、待機中の再試行を前倒しで投入する</li>
+     *     <li>{@link DatabaseExecutor#getDefault()} の待機中および実行中のタスクを、猶予時間の残りまで待つ。以降のタスクは受け付けない</li>
+     *     <li>まだ実行中のステートメントを取り消す</li>
+     *     <li>登録されたリソースを登録と逆の順に閉じる</li>
+     * </ol>
+     *
+     * @param gracePeriod 書き込みと非同期処理の完了を待つ最大時間
+     * @param unit        時間の単位
+     * @return 猶予時間内にすべての書き込みと非同期処理が終了したかどうか
+     */
+    public static boolean shutdown(long gracePeriod, @NotNull TimeUnit unit)
+    {
+        long deadline = System.nanoTime() + unit.toNanos(gracePeriod);
+
+        boolean saved = PlayerDataStore.closeAll(remaining(deadline), TimeUnit.NANOSECONDS);
+        boolean flushed = WriteBehindQueue.closeAll(remaining(deadline), TimeUnit.NANOSECONDS);
+        RetryPolicy.shutdownScheduler();
+
+        // 猶予時間を過ぎたタスクは割り込まれるが、JDBCの呼び出しは割り込みでは戻らないため、ステートメントを取り消す
+        boolean drained = DatabaseExecutor.shutdownDefault(remaining(deadline), TimeUnit.NANOSECONDS);
+        int cancelled = cancelAll();
+        if (cancelled > 0)
+            System.out.println(cancelled + " running database statements were cancelled on shutdown.");
+
+        closeResources();
+        stopWatchdog();
+        LeakDetector.disable();
+
+        return saved && flushed && drained && cancelled == 0;
+    }
+
+    private static long remaining(long deadline)
+    {
+        return Math.max(0, deadline - System.nanoTime());
+    }
+
+    static RunningStatement begin(@NotNull Statement statement, int queryTimeout)
+    {
+        int timeout = queryTimeout > 0 ? queryTimeout: defaultQueryTimeout;
+        long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout): 0L;
+
+        RunningStatement running = new RunningStatement(statement, deadline);
+        RUNNING.add(running);
+        if (deadline != 0L && watchdog == null)
+            startWatchdog();
+        return running;
+    }
+
+    private static void closeResources()
+    {
+        while (true)
+        {
+            AutoCloseable resource;
+            synchronized (RESOURCES)
+            {
+                resource = RESOURCES.poll();
+            }
+            if (resource == null)
+                return;
+
+            try
+            {
+                resource.close();
+            }
+            catch (Exception e)
+            {
+                System.out.println("An exception has occurred during closing a database resource.");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static synchronized void startWatchdog()
+    {
+        if (watchdog != null)
+            return;
+
+        watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "PeyangPaperUtils-DB-Watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchdog.scheduleWithFixedDelay(
+                DatabaseLifecycle::cancelExpired,
+                WATCHDOG_INTERVAL_MILLIS,
+                WATCHDOG_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS
+        );
+    }
+
+    private static synchronized void stopWatchdog()
+    {
+        if (watchdog == null)
+            return;
+
+        watchdog.shutdownNow();
+        watchdog = null;
+    }
+
+    private static void cancelExpired()
+    {
+        long now = System.nanoTime();
+        for (RunningStatement running : RUNNING)
+            if (running.deadline != 0L && now - running.deadline > 0 && running.cancel())
+                System.out.println("A database statement was cancelled because it exceeded the query timeout.");
+    }
+
+    /**
+     * 実行中のステートメントです。実行が終わったら {@link #end()} で登録を解除します。
+     * クエリの結果を読み込んでいる間は、{@link #executed()} でタイムアウトのみを解除し、登録は結果を閉じるまで残します。
+     */
+    static final class RunningStatement
+    {
+        private final Statement statement;
+
+        private volatile long deadline;
+        private volatile boolean cancelled;
+        @Nullable
+        private volatile Set<RunningStatement> owner;
+
+        private RunningStatement(Statement statement, long deadline)
+        {
+            this.statement = statement;
+            this.deadline = deadline;
+        }
+
+        /**
+         * 実行が終わったことを記録します。以降はタイムアウトで取り消されず、{@link #cancelAll()} でのみ取り消されます。
+         *
+         * @param owner 所有者が閉じるときにまとめて登録を解除するための集合
+         */
+        void executed(@NotNull Set<RunningStatement> owner)
+        {
+            this.deadline = 0L;
+            this.owner = owner;
+            owner.add(this);
+        }
+
+        void end()
+        {
+            RUNNING.remove(this);
+            Set<RunningStatement> owner = this.owner;
+            if (owner != null)
+                owner.remove(this);
+        }
+
+        private boolean cancel()
+        {
+            if (this.cancelled)
+                return false;
+            this.cancelled = true;
+
+            try
+            {
+                this.statement.cancel();
+                return true;
+            }
+            catch (SQLException e)
+            {
+                System.out.println("Failed to cancel a running database statement.");
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+}
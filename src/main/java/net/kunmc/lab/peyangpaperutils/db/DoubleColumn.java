@@ -0,0 +1,23 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+/**
+ * 64ビット浮動小数点数の列を表すクラスです。
+ */
+public final class DoubleColumn extends Column
+{
+    DoubleColumn(String label, int index)
+    {
+        super(label, index);
+    }
+
+    /**
+     * 行からこの列の値を取得します。
+     *
+     * @param row 行
+     * @return 値
+     */
+    public double get(ResultRow row)
+    {
+        return row.getDouble(this.getIndex());
+    }
+}
@@ -0,0 +1,75 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import lombok.Value;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DatabaseExecutor} の統計情報のスナップショットです。
+ */
+@Value
+public class ExecutorStats
+{
+    /**
+     * 待機中のタスクの数です。
+     */
+    int queueDepth;
+    /**
+     * 実行中のタスクの数です。
+     */
+    int activeTasks;
+    /**
+     * 受け付けたタスクの数です。
+     */
+    long submittedCount;
+    /**
+     * 正常に終了したタスクの数です。
+     */
+    long completedCount;
+    /**
+     * 例外で終了したタスクの数です。
+     */
+    long failedCount;
+    /**
+     * キューが一杯で拒否されたタスクの数です。
+     */
+    long rejectedCount;
+    /**
+     * タスクが実行されるまでの待ち時間の合計(ナノ秒)です。
+     */
+    long totalQueueWaitNanos;
+    /**
+     * タスクの実行時間の合計(ナノ秒)です。
+     */
+    long totalExecutionNanos;
+    /**
+     * タスクの実行時間の最大値(ナノ秒)です。
+     */
+    long maxExecutionNanos;
+
+    /**
+     * タスクが実行されるまでの平均待ち時間(ミリ秒)を取得します。
+     *
+     * @return 平均待ち時間
+     */
+    public double getAverageQueueWaitMillis()
+    {
+        long finished = this.completedCount + this.failedCount;
+        if (finished == 0)
+            return 0.0;
+        return (double) this.totalQueueWaitNanos / finished / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * タスクの平均実行時間(ミリ秒)を取得します。
+     *
+     * @return 平均実行時間
+     */
+    public double getAverageExecutionMillis()
+    {
+        long finished = this.completedCount + this.failedCount;
+        if (finished == 0)
+            return 0.0;
+        return (double) this.totalExecutionNanos / finished / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,23 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+/**
+ * 32ビット整数の列を表すクラスです。
+ */
+public final class IntColumn extends Column
+{
+    IntColumn(String label, int index)
+    {
+        super(label, index);
+    }
+
+    /**
+     * 行からこの列の値を取得します。
+     *
+     * @param row 行
+     * @return 値
+     */
+    public int get(ResultRow row)
+    {
+        return row.getInt(this.getIndex());
+    }
+}
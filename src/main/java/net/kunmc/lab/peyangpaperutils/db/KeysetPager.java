@@ -0,0 +1,328 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import org.intellij.lang.annotations.Language;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.sql.DataSource;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * キーの値を基準に次のページを読み込む(キーセット方式の)ページングを行うクラスです。
+ * <p>
+ * OFFSET を使う方式と異なり、各ページは前のページの最後のキーより後ろの範囲を読むクエリになるため、
+ * キーにインデックスがあればどれだけ深いページでも同じ速さで読み込めます。
+ * ページは {@link #iterator()} や {@link #stream()} で進めたときに、一つずつ読み込まれます。
+ * <p>
+ * キーの列は NULL を含まず、すべてのキーの組み合わせが一意になるようにしてください。
+ * 一意でない列(スコアなど)で並べる場合は、最後に主キーなどを追加します。
+ *
+ * <pre>
+ *     new KeysetPager<>(pool, "SELECT uuid, name, score FROM scores", row -> new Score(row))
+ *             .keys("score", "uuid")
+ *             .descending()
+ *             .pageSize(100)
+ *             .stream()
+ *             .limit(3)  // 上位300件
+ *             .forEach(page -> ...);
+ * </pre>
+ *
+ * @param <T> 行を変換した型
+ */
+public class KeysetPager<T> implements Iterable<List<T>>
+{
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
+    private final DataSource dataSource;
+    private final String selectFrom;
+    private final Function<? super ResultRow, ? extends T> mapper;
+
+    private String[] keys;
+    private String[] keyLabels;
+    private boolean descending;
+    private int pageSize;
+    @Nullable
+    private String condition;
+    private Object[] conditionParameters;
+    @Nullable
+    private Object[] start;
+
+    /**
+     * ページングを生成します。
+     *
+     * @param dataSource データソース
+     * @param selectFrom WHERE や ORDER BY を含まない {@code SELECT ... FROM ...} 文
+     * @param mapper     行を変換する関数
+     */
+    public KeysetPager(@NotNull DataSource dataSource, @NotNull @Language("sql") String selectFrom,
+                       @NotNull Function<? super ResultRow, ? extends T> mapper)
+    {
+        this.dataSource = dataSource;
+        this.selectFrom = selectFrom;
+        this.mapper = mapper;
+
+        this.keys = new String[0];
+        this.keyLabels = new String[0];
+        this.descending = false;
+        this.pageSize = DEFAULT_PAGE_SIZE;
+        this.condition = null;
+        this.conditionParameters = new Object[0];
+        this.start = null;
+    }
+
+    /**
+     * 並べ替えと位置の基準にするキーの列を、優先順に設定します。
+     * {@code s.score} のように修飾した場合は、最後の {@code .} より後ろを結果の列名として使用します。
+     *
+     * @param keys キーの列名
+     * @return このページング
+     */
+    public KeysetPager<T> keys(@NotNull String... keys)
+    {
+        if (keys.length == 0)
+            throw new IllegalArgumentException("keys must not be empty.");
+
+        this.keys = keys.clone();
+        this.keyLabels = new String[keys.length];
+        for (int i = 0; i < keys.length; i++)
+            this.keyLabels[i] = keys[i].substring(keys[i].lastIndexOf('.') + 1).replaceAll("[`\"\\[\\]]", "");
+        return this;
+    }
+
+    /**
+     * キーの降順に読み込むようにします。
+     *
+     * @return このページング
+     */
+    public KeysetPager<T> descending()
+    {
+        this.descending = true;
+        return this;
+    }
+
+    /**
+     * 1ページの件数を設定します。デフォルトは 100 です。
+     *
+     * @param pageSize 1ページの件数
+     * @return このページング
+     */
+    public KeysetPager<T> pageSize(int pageSize)
+    {
+        if (pageSize <= 0)
+            throw new IllegalArgumentException("pageSize must be positive.");
+
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * 読み込む行の条件を設定します。
+     *
+     * @param condition  WHERE に続ける条件
+     * @param parameters 条件の {@code ?} にセットする値
+     * @return このページング
+     */
+    public KeysetPager<T> where(@NotNull @Language(value = "sql", prefix = "SELECT * FROM t WHERE ") String condition,
+                                @Nullable Object... parameters)
+    {
+        this.condition = condition;
+        this.conditionParameters = parameters.clone();
+        return this;
+    }
+
+    /**
+     * 指定したキーの値より後ろから読み込むようにします。前回の続きから読み込む場合に使用します。
+     *
+     * @param keyValues {@link #keys(String...)} と同じ順番のキーの値
+     * @return このページング
+     */
+    public KeysetPager<T> after(@NotNull Object... keyValues)
+    {
+        if (keyValues.length != this.keys.length)
+            throw new IllegalArgumentException("Expected " + this.keys.length + " key values, but got " + keyValues.length + ".");
+
+        this.start = keyValues.clone();
+        return this;
+    }
+
+    /**
+     * ページを読み込むSQL文を生成します。
+     *
+     * @param first 最初のページかどうか
+     * @return SQL文
+     */
+    String toSql(boolean first)
+    {
+        if (this.keys.length == 0)
+            throw new IllegalStateException("keys are not set.");
+
+        StringBuilder builder = new StringBuilder(this.selectFrom);
+        boolean hasCondition = this.condition != null;
+        if (hasCondition)
+            builder.append(" WHERE (").append(this.condition).append(')');
+
+        if (!first)
+        {
+            builder.append(hasCondition ? " AND ": " WHERE ");
+
+            // (k1, k2) > (?, ?) を k1 >= ? AND (k1 > ? OR (k1 = ? AND k2 > ?)) に展開する。
+            // 先頭の範囲条件は行値の比較を扱えないオプティマイザでもインデックスを使えるようにするため
+            String comparison = this.descending ? " < ?": " > ?";
+            if (this.keys.length > 1)
+                builder.append(this.keys[0]).append(this.descending ? " <= ?": " >= ?").append(" AND ");
+            for (int i = 0; i < this.keys.length; i++)
+            {
+                if (i > 0)
+                    builder.append(" AND ");
+                if (i < this.keys.length - 1)
+                    builder.append('(').append(this.keys[i]).append(comparison)
+                            .append(" OR (").append(this.keys[i]).append(" = ?");
+                else
+                    builder.append(this.keys[i]).append(comparison);
+            }
+            for (int i = 0; i < this.keys.length - 1; i++)
+                builder.append("))");
+        }
+
+        builder.append(" ORDER BY ");
+        for (int i = 0; i < this.keys.length; i++)
+        {
+            if (i > 0)
+                builder.append(", ");
+            builder.append(this.keys[i]).append(this.descending ? " DESC": " ASC");
+        }
+
+        return builder.append(" LIMIT ?").toString();
+    }
+
+    private List<T> readPage(@Nullable Object[] after, Object[] last)
+    {
+        try (Transaction transaction = Transaction.create(this.dataSource, this.toSql(after == null)))
+        {
+            int index = 1;
+            for (Object parameter : this.conditionParameters)
+                transaction.setObject(index++, parameter);
+
+            if (after != null)
+            {
+                if (this.keys.length > 1)
+                    transaction.setObject(index++, after[0]);
+                for (int i = 0; i < this.keys.length; i++)
+                {
+                    transaction.setObject(index++, after[i]);
+                    if (i < this.keys.length - 1)
+                        transaction.setObject(index++, after[i]);
+                }
+            }
+            transaction.set(index, this.pageSize);
+
+            QueryResult<T> result = transaction.executeQuery();
+            ResultSet resultSet = result.getResult();
+            ResultRow row = result.getRow();
+            List<T> page = new ArrayList<>(this.pageSize);
+            while (page.size() < this.pageSize && result.next())
+            {
+                page.add(this.mapper.apply(row));
+                for (int i = 0; i < this.keyLabels.length; i++)
+                    last[i] = resultSet.getObject(this.keyLabels[i]);
+            }
+            result.close();
+            return page;
+        }
+        catch (SQLException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * ページを先頭から順に読み込むイテレータを取得します。
+     *
+     * @return ページのイテレータ
+     */
+    @NotNull
+    @Override
+    public Iterator<List<T>> iterator()
+    {
+        return new PageIterator();
+    }
+
+    /**
+     * ページを先頭から順に読み込むStreamを取得します。
+     *
+     * @return ページのStream
+     */
+    public Stream<List<T>> stream()
+    {
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(this.iterator(), Spliterator.ORDERED | Spliterator.NONNULL),
+                false
+        );
+    }
+
+    /**
+     * すべての行を先頭から順に読み込むStreamを取得します。行はページごとに読み込まれます。
+     *
+     * @return 行のStream
+     */
+    public Stream<T> rows()
+    {
+        return this.stream().flatMap(List::stream);
+    }
+
+    private class PageIterator implements Iterator<List<T>>
+    {
+        @Nullable
+        private Object[] after;
+        @Nullable
+        private List<T> next;
+        private boolean finished;
+
+        private PageIterator()
+        {
+            this.after = KeysetPager.this.start == null ? null: KeysetPager.this.start.clone();
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            if (this.next != null)
+                return true;
+            if (this.finished)
+                return false;
+
+            Object[] last = new Object[KeysetPager.this.keys.length];
+            List<T> page = KeysetPager.this.readPage(this.after, last);
+            // 1ページに満たない場合は、次のページを読みに行かずに終了する
+            if (page.size() < KeysetPager.this.pageSize)
+                this.finished = true;
+            if (page.isEmpty())
+                return false;
+
+            this.after = last;
+            this.next = page;
+            return true;
+        }
+
+        @Override
+        public List<T> next()
+        {
+            if (!this.hasNext())
+                throw new NoSuchElementException();
+
+            List<T> page = this.next;
+            this.next = null;
+            return page;
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 終了されていない {@link Transaction} と {@link QueryResult} を検出する、オプトインのリーク検出器です。
+ * {@link Transaction#finishManually()} や {@link Transaction#abortManually()} の呼び忘れ、途中で放棄された結果などを、
+ * コネクションが枯渇する前に見つけるために使用します。
+ * <p>
+ * 有効にすると、コネクションを取得したトランザクションと実行した結果が登録され、
+ * しきい値を超えて開かれたままのものが取得時のスタックトレースと共に出力されます。
+ * 無効な間の負荷は、登録時のフィールドの読み取りのみです。
+ *
+ * <pre>
+ *     LeakDetector.enable()
+ *             .threshold(30, TimeUnit.SECONDS)
+ *             .stackSampling(10)    // 10回に1回だけスタックトレースを記録する
+ *             .forceClose(false);
+ *
+ *     LeakDetector.getActive().getStats().getOpenTransactions();
+ * </pre>
+ */
+public class LeakDetector implements AutoCloseable
+{
+    private static final long CHECK_INTERVAL_MILLIS = 1000L;
+
+    @Nullable
+    private static volatile LeakDetector active;
+
+    private final Set<Handle> open;
+    private final ScheduledExecutorService checker;
+
+    private final AtomicInteger openTransactions;
+    private final AtomicInteger openResultSets;
+    private final AtomicLong acquisitionCount;
+    private final LongAdder leakCount;
+    private final LongAdder forceClosedCount;
+
+    /**
+     * 開かれたままとみなすまでの時間(ミリ秒)です。
+     */
+    @Getter
+    private volatile long thresholdMillis;
+    /**
+     * 何回の登録ごとにスタックトレースを記録するかです。0の場合は記録しません。
+     */
+    @Getter
+    private volatile int stackSampling;
+    /**
+     * 検出したものを強制的に閉じるかどうかです。
+     */
+    @Getter
+    private volatile boolean forceClose;
+
+    private LeakDetector()
+    {
+        this.open = ConcurrentHashMap.newKeySet();
+        this.openTransactions = new AtomicInteger();
+        this.openResultSets = new AtomicInteger();
+        this.acquisitionCount = new AtomicLong();
+        this.leakCount = new LongAdder();
+        this.forceClosedCount = new LongAdder();
+
+        this.thresholdMillis = TimeUnit.SECONDS.toMillis(30);
+        this.stackSampling = 1;
+
+        this.checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "PeyangPaperUtils-DB-LeakDetector");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.checker.scheduleWithFixedDelay(this::runCheck, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * リーク検出を有効にします。すでに有効な場合は、有効な検出器をそのまま返します。
+     * 有効にする前に開かれたトランザクションは検出の対象になりません。
+     *
+     * @return 有効な検出器
+     */
+    public static synchronized LeakDetector enable()
+    {
+        if (active == null)
+            active = new LeakDetector();
+        return active;
+    }
+
+    /**
+     * リーク検出を無効にします。登録されていたものは検出の対象から外されます。
+     */
+    public static synchronized void disable()
+    {
+        if (active != null)
+            active.close();
+    }
+
+    /**
+     * 有効な検出器を取得します。
+     *
+     * @return 有効な検出器。無効な場合は null
+     */
+    @Nullable
+    public static LeakDetector getActive()
+    {
+        return active;
+    }
+
+    @Nullable
+    static Handle track(@NotNull Kind kind, @Nullable String sql, @NotNull ClosedCheck closedCheck,
+                        @NotNull AutoCloseable closer)
+    {
+        LeakDetector detector = active;
+        if (detector == null)
+            return null;
+
+        return detector.register(kind, sql, closedCheck, closer);
+    }
+
+    /**
+     * 開かれたままとみなすまでの時間を設定します。
+     *
+     * @param threshold 時間
+     * @param unit      時間の単位
+     * @return この検出器
+     */
+    public LeakDetector threshold(long threshold, @NotNull TimeUnit unit)
+    {
+        if (threshold <= 0)
+            throw new IllegalArgumentException("threshold must be greater than 0.");
+        this.thresholdMillis = unit.toMillis(threshold);
+        return this;
+    }
+
+    /**
+     * 何回の登録ごとに取得時のスタックトレースを記録するかを設定します。
+     * スタックトレースの記録は負荷が大きいため、本番環境では間引くことを推奨します。
+     *
+     * @param every 記録する間隔。1の場合はすべて記録し、0の場合は記録しません。
+     * @return この検出器
+     */
+    public LeakDetector stackSampling(int every)
+    {
+        if (every < 0)
+            throw new IllegalArgumentException("every must not be negative.");
+        this.stackSampling = every;
+        return this;
+    }
+
+    /**
+     * 検出したものを強制的に閉じるかどうかを設定します。
+     * トランザクションはロールバックされ、コネクションはプールへ返却されます。
+     * 使用中のスレッドからは閉じられたように見えるため、処理が長いだけのトランザクションも失敗する点に注意してください。
+     *
+     * @param forceClose 強制的に閉じるかどうか
+     * @return この検出器
+     */
+    public LeakDetector forceClose(boolean forceClose)
+    {
+        this.forceClose = forceClose;
+        return this;
+    }
+
+    /**
+     * 開かれたままのものを確認します。通常は一定間隔で自動的に呼び出されます。
+     *
+     * @return 新たに検出した数
+     */
+    public int check()
+    {
+        long now = System.currentTimeMillis();
+        long threshold = this.thresholdMillis;
+        boolean forceClose = this.forceClose;
+        int detected = 0;
+
+        for (Handle handle : this.open)
+        {
+            if (handle.isClosed())
+            {
+                // Stream の終端や ResultSet の直接のクローズなど、登録の解除を経由せずに閉じられたもの
+                handle.release();
+                continue;
+            }
+
+            long heldMillis = now - handle.acquiredAt;
+            if (heldMillis < threshold)
+                continue;
+
+            if (!handle.reported)
+            {
+                handle.reported = true;
+                detected++;
+                this.leakCount.increment();
+                this.report(handle, heldMillis);
+            }
+
+            if (forceClose)
+                this.forceRelease(handle);
+        }
+
+        return detected;
+    }
+
+    /**
+     * 統計情報を取得します。
+     *
+     * @return 統計情報
+     */
+    public LeakStats getStats()
+    {
+        long now = System.currentTimeMillis();
+        long oldest = 0;
+        for (Handle handle : this.open)
+            oldest = Math.max(oldest, now - handle.acquiredAt);
+
+        return new LeakStats(
+                this.openTransactions.get(),
+                this.openResultSets.get(),
+                this.acquisitionCount.get(),
+                this.leakCount.sum(),
+                this.forceClosedCount.sum(),
+                oldest
+        );
+    }
+
+    /**
+     * 検出を停止します。登録されていたものは閉じられずに、検出の対象から外されます。
+     */
+    @Override
+    public void close()
+    {
+        synchronized (LeakDetector.class)
+        {
+            if (active == this)
+                active = null;
+        }
+
+        this.checker.shutdownNow();
+        this.open.clear();
+        this.openTransactions.set(0);
+        this.openResultSets.set(0);
+    }
+
+    private Handle register(Kind kind, @Nullable String sql, ClosedCheck closedCheck, AutoCloseable closer)
+    {
+        long count = this.acquisitionCount.incrementAndGet();
+        int sampling = this.stackSampling;
+
+        Throwable stack = null;
+        if (sampling > 0 && count % sampling == 0)
+            stack = new Throwable("Acquired here");
+
+        Handle handle = new Handle(this, kind, sql, Thread.currentThread().getName(), stack, closedCheck, closer);
+        this.open.add(handle);
+        this.counter(kind).incrementAndGet();
+        return handle;
+    }
+
+    private AtomicInteger counter(Kind kind)
+    {
+        return kind == Kind.TRANSACTION ? this.openTransactions: this.openResultSets;
+    }
+
+    private void report(Handle handle, long heldMillis)
+    {
+        System.out.println("Possible " + handle.kind.name().toLowerCase(Locale.ROOT) + " leak: held for " + heldMillis
+                + "ms since acquired on thread " + handle.threadName + (handle.sql == null ? ".": ": " + handle.sql));
+        if (handle.stack != null)
+            handle.stack.printStackTrace();
+        else
+            System.out.println("The acquisition stack was not sampled. Use LeakDetector#stackSampling(1) to record all of them.");
+    }
+
+    private void forceRelease(Handle handle)
+    {
+        try
+        {
+            handle.closer.close();
+            this.forceClosedCount.increment();
+        }
+        catch (Exception e)
+        {
+            System.out.println("Failed to force-close a leaked " + handle.kind.name().toLowerCase(Locale.ROOT) + ".");
+            e.printStackTrace();
+        }
+        finally
+        {
+            handle.release();
+        }
+    }
+
+    private void runCheck()
+    {
+        try
+        {
+            this.check();
+        }
+        catch (Exception e)
+        {
+            System.out.println("An exception has occurred during leak detection.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 検出の対象の種類です。
+     */
+    public enum Kind
+    {
+        /**
+         * コネクションを取得したトランザクションです。
+         */
+        TRANSACTION,
+        /**
+         * クエリの実行結果です。
+         */
+        RESULT_SET
+    }
+
+    @FunctionalInterface
+    interface ClosedCheck
+    {
+        boolean isClosed() throws SQLException;
+    }
+
+    /**
+     * 登録されたトランザクションや結果です。閉じるときに {@link #release()} で登録を解除します。
+     */
+    static final class Handle
+    {
+        private final LeakDetector detector;
+        private final Kind kind;
+        @Nullable
+        private final String sql;
+        private final String threadName;
+        @Nullable
+        private final Throwable stack;
+        private final ClosedCheck closedCheck;
+        private final AutoCloseable closer;
+        private final long acquiredAt;
+
+        private volatile boolean reported;
+
+        private Handle(LeakDetector detector, Kind kind, @Nullable String sql, String threadName,
+                       @Nullable Throwable stack, ClosedCheck closedCheck, AutoCloseable closer)
+        {
+            this.detector = detector;
+            this.kind = kind;
+            this.sql = sql;
+            this.threadName = threadName;
+            this.stack = stack;
+            this.closedCheck = closedCheck;
+            this.closer = closer;
+            this.acquiredAt = System.currentTimeMillis();
+        }
+
+        void release()
+        {
+            if (this.detector.open.remove(this))
+                this.detector.counter(this.kind).decrementAndGet();
+        }
+
+        private boolean isClosed()
+        {
+            try
+            {
+                return this.closedCheck.isClosed();
+            }
+            catch (SQLException | AbstractMethodError e)
+            {
+                return false;
+            }
+        }
+    }
+}
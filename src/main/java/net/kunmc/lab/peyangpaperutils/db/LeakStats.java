@@ -0,0 +1,35 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import lombok.Value;
+
+/**
+ * {@link LeakDetector} の統計情報のスナップショットです。
+ */
+@Value
+public class LeakStats
+{
+    /**
+     * 開かれているトランザクションの数です。
+     */
+    int openTransactions;
+    /**
+     * 開かれているクエリの実行結果の数です。
+     */
+    int openResultSets;
+    /**
+     * 登録された延べ数です。
+     */
+    long trackedCount;
+    /**
+     * しきい値を超えて開かれたままだった数です。
+     */
+    long leakCount;
+    /**
+     * 強制的に閉じた数です。
+     */
+    long forceClosedCount;
+    /**
+     * 開かれているもののうち、最も古いものが開かれている時間(ミリ秒)です。
+     */
+    long oldestOpenMillis;
+}
@@ -0,0 +1,23 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+/**
+ * 64ビット整数の列を表すクラスです。
+ */
+public final class LongColumn extends Column
+{
+    LongColumn(String label, int index)
+    {
+        super(label, index);
+    }
+
+    /**
+     * 行からこの列の値を取得します。
+     *
+     * @param row 行
+     * @return 値
+     */
+    public long get(ResultRow row)
+    {
+        return row.getLong(this.getIndex());
+    }
+}
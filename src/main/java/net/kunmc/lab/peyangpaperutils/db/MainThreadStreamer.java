@@ -0,0 +1,318 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import net.kunmc.lab.peyangpaperutils.lib.utils.Runner;
+import org.bukkit.scheduler.BukkitTask;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 大きなクエリ結果を非同期スレッドで読み込み、メインスレッドへ1チックあたりの件数と時間を制限して渡すクラスです。
+ * <p>
+ * 行は {@link DatabaseExecutor} のスレッドで読み込まれてマップされ、上限付きのバッファに溜められます。
+ * メインスレッドでは毎チック、{@link #rowsPerTick(int)} 件または {@link #millisPerTick(long)} ミリ秒に達するまでバッファから取り出して処理します。
+ * バッファが一杯の間、読み込みは停止します。
+ *
+ * <pre>
+ *     new MainThreadStreamer&lt;BlockChange&gt;(
+ *             row -&gt; new BlockChange(row.getInt("x"), row.getInt("y"), row.getInt("z"), row.getString("type")),
+ *             BlockChange::apply)  // メインスレッドで呼び出される
+ *             .rowsPerTick(500)
+ *             .millisPerTick(5)
+ *             .start(Transaction.create(pool, "SELECT x, y, z, type FROM block_changes"))
+ *             .thenAccept(count -&gt; Bukkit.broadcastMessage(count + " blocks restored."));
+ * </pre>
+ *
+ * @param <T> 行をマップした後の型
+ */
+public class MainThreadStreamer<T>
+{
+    private static final long OFFER_TIMEOUT_MILLIS = 50L;
+
+    private final Function<? super ResultRow, ? extends T> mapper;
+    private final Consumer<? super T> consumer;
+
+    private final CompletableFuture<Long> future;
+    private final LongAdder readCount;
+    private final LongAdder stallCount;
+    private volatile long deliveredCount;
+
+    private int bufferSize;
+    private int rowsPerTick;
+    private long millisPerTick;
+    @Nullable
+    private DatabaseExecutor executor;
+
+    private ArrayBlockingQueue<T> buffer;
+    @Nullable
+    private BukkitTask task;
+    private volatile boolean readerFinished;
+    @Nullable
+    private volatile Throwable readerFailure;
+    private volatile boolean cancelled;
+
+    /**
+     * ストリーマーを生成します。
+     *
+     * @param mapper   行をマップする関数。非同期スレッド上で呼び出されます。null を返した行は渡されません。
+     * @param consumer マップされた値を処理する関数。メインスレッド上で呼び出されます。
+     */
+    public MainThreadStreamer(@NotNull Function<? super ResultRow, ? extends T> mapper,
+                              @NotNull Consumer<? super T> consumer)
+    {
+        this.mapper = mapper;
+        this.consumer = consumer;
+
+        this.future = new CompletableFuture<>();
+        this.readCount = new LongAdder();
+        this.stallCount = new LongAdder();
+
+        this.bufferSize = 4096;
+        this.rowsPerTick = 256;
+        this.millisPerTick = 5L;
+    }
+
+    /**
+     * 読み込んだ行を溜めておくバッファの大きさを設定します。デフォルトは 4096 件です。
+     *
+     * @param bufferSize バッファの大きさ
+     * @return このストリーマー
+     */
+    public MainThreadStreamer<T> bufferSize(int bufferSize)
+    {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("bufferSize must be positive.");
+
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    /**
+     * 1チックあたりに処理する最大件数を設定します。デフォルトは 256 件です。
+     * 0 以下の場合は件数による制限を行いません。
+     *
+     * @param rowsPerTick 1チックあたりの最大件数
+     * @return このストリーマー
+     */
+    public MainThreadStreamer<T> rowsPerTick(int rowsPerTick)
+    {
+        this.rowsPerTick = rowsPerTick;
+        return this;
+    }
+
+    /**
+     * 1チックあたりに処理に使う最大時間を設定します。デフォルトは 5 ミリ秒です。
+     * 0 以下の場合は時間による制限を行いません。
+     *
+     * @param millisPerTick 1チックあたりの最大時間(ミリ秒)
+     * @return このストリーマー
+     */
+    public MainThreadStreamer<T> millisPerTick(long millisPerTick)
+    {
+        this.millisPerTick = millisPerTick;
+        return this;
+    }
+
+    /**
+     * 読み込みに使用するスレッドプールを設定します。
+     * 設定しない場合は {@link DatabaseExecutor#getDefault()} が使用されます。
+     *
+     * @param executor スレッドプール
+     * @return このストリーマー
+     */
+    public MainThreadStreamer<T> executor(@NotNull DatabaseExecutor executor)
+    {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * クエリを実行し、結果の受け渡しを開始します。トランザクションは読み込みの終了時に閉じられます。
+     *
+     * @param transaction クエリ系SQL文を準備したトランザクション
+     * @return メインスレッドで処理した件数。すべての行を処理し終えたときにメインスレッドで完了します。
+     */
+    public CompletableFuture<Long> start(@NotNull Transaction transaction)
+    {
+        if (this.buffer != null)
+            throw new IllegalStateException("This MainThreadStreamer is already started.");
+
+        this.buffer = new ArrayBlockingQueue<>(this.bufferSize);
+
+        DatabaseExecutor executor = this.executor != null ? this.executor : DatabaseExecutor.getDefault();
+        AtomicBoolean started = new AtomicBoolean();
+        executor.submit(() -> {
+            started.set(true);
+            this.read(transaction);
+            return null;
+        }).whenComplete((result, throwable) -> {
+            // キューが一杯などで読み込みが始まらなかった場合は、read() の代わりにトランザクションを閉じる
+            if (!started.get())
+                transaction.close();
+            if (throwable != null)
+                this.readerFailure = throwable;
+            this.readerFinished = true;
+        });
+
+        this.task = Runner.runTimer(this::tick, (e, task) -> this.fail(e), 1L, 1L);
+        return this.future;
+    }
+
+    private void read(Transaction transaction) throws InterruptedException
+    {
+        try
+        {
+            QueryResult<Object> result = transaction.executeQuery();
+            try
+            {
+                ResultRow row = result.getRow();
+                while (!this.cancelled && result.next())
+                {
+                    T value = this.mapper.apply(row);
+                    this.readCount.increment();
+                    if (value == null)
+                        continue;
+
+                    if (!this.buffer.offer(value))
+                    {
+                        // バッファが一杯のため、メインスレッドが取り出すまで読み込みを止める
+                        this.stallCount.increment();
+                        while (!this.buffer.offer(value, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+                            if (this.cancelled)
+                                return;
+                    }
+                }
+            }
+            finally
+            {
+                try
+                {
+                    result.close();
+                }
+                catch (SQLException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        }
+        finally
+        {
+            transaction.close();
+        }
+    }
+
+    private void tick()
+    {
+        if (this.readerFailure != null)
+        {
+            this.fail(this.readerFailure);
+            return;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.millisPerTick);
+        int processed = 0;
+        boolean finished = this.readerFinished;
+
+        while (this.rowsPerTick <= 0 || processed < this.rowsPerTick)
+        {
+            T value = this.buffer.poll();
+            if (value == null)
+                break;
+
+            this.consumer.accept(value);
+            processed++;
+            this.deliveredCount++;
+
+            if (this.millisPerTick > 0 && System.nanoTime() - deadline >= 0)
+                break;
+        }
+
+        // 読み込み終了を確認した後にバッファが空であれば、すべての行を処理し終えている
+        if (finished && this.buffer.isEmpty())
+        {
+            if (this.readerFailure != null)
+            {
+                this.fail(this.readerFailure);
+                return;
+            }
+
+            this.stopTask();
+            this.future.complete(this.deliveredCount);
+        }
+    }
+
+    private void fail(Throwable throwable)
+    {
+        this.cancelled = true;
+        this.stopTask();
+        this.buffer.clear();
+        this.future.completeExceptionally(throwable);
+    }
+
+    private void stopTask()
+    {
+        if (this.task != null)
+            this.task.cancel();
+    }
+
+    /**
+     * 受け渡しを中止します。読み込みは停止され、バッファに残っている値は破棄されます。
+     * 返された Future は {@link java.util.concurrent.CancellationException} で完了します。
+     */
+    public void cancel()
+    {
+        this.cancelled = true;
+        this.stopTask();
+        if (this.buffer != null)
+            this.buffer.clear();
+        this.future.cancel(false);
+    }
+
+    /**
+     * バッファに溜まっている件数を取得します。
+     *
+     * @return バッファに溜まっている件数
+     */
+    public int getBufferedCount()
+    {
+        return this.buffer == null ? 0 : this.buffer.size();
+    }
+
+    /**
+     * 読み込んだ行数を取得します。
+     *
+     * @return 読み込んだ行数
+     */
+    public long getReadCount()
+    {
+        return this.readCount.sum();
+    }
+
+    /**
+     * メインスレッドで処理した件数を取得します。
+     *
+     * @return 処理した件数
+     */
+    public long getDeliveredCount()
+    {
+        return this.deliveredCount;
+    }
+
+    /**
+     * バッファが一杯で読み込みが止まった回数を取得します。
+     *
+     * @return 読み込みが止まった回数
+     */
+    public long getStallCount()
+    {
+        return this.stallCount.sum();
+    }
+}
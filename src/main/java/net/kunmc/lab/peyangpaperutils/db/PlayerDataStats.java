@@ -0,0 +1,43 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import lombok.Value;
+
+/**
+ * {@link PlayerDataStore} の統計情報のスナップショットです。
+ */
+@Value
+public class PlayerDataStats
+{
+    /**
+     * メモリ上に保持しているプレイヤの数です。書き込みに失敗したログアウト済みのプレイヤを含みます。
+     */
+    int cachedPlayers;
+    /**
+     * 未保存の変更があるプレイヤの数です。
+     */
+    int dirtyPlayers;
+    /**
+     * DBから読み込んだ回数です。
+     */
+    long loadCount;
+    /**
+     * 読み込みに失敗した回数です。
+     */
+    long loadFailureCount;
+    /**
+     * 読み込みにかかった平均時間(ミリ秒)です。
+     */
+    double averageLoadMillis;
+    /**
+     * 読み込みにかかった最大時間(ミリ秒)です。
+     */
+    double maxLoadMillis;
+    /**
+     * DBに書き込んだプレイヤの延べ数です。
+     */
+    long saveCount;
+    /**
+     * 書き込みに失敗した回数です。
+     */
+    long saveFailureCount;
+}
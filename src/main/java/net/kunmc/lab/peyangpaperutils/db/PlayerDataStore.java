@@ -0,0 +1,640 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import net.kunmc.lab.peyangpaperutils.lib.utils.Runner;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerLoginEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * プレイヤごとのデータをメモリ上に保持し、DBと同期するストアです。
+ * <p>
+ * データは {@link AsyncPlayerPreLoginEvent} の非同期スレッドで読み込まれるため、参加時にメインスレッドでDBを待つことはありません。
+ * オンラインの間は {@link #get(UUID)} でメモリから読み込み、変更した場合は {@link #markDirty(UUID)} または {@link #update(UUID, Consumer)} で記録します。
+ * 変更されたデータはログアウト時と定期的な自動保存で、非同期に書き込まれます。
+ * 書き込みに失敗したデータは、ログアウト後も次の書き込みが成功するまで保持されます。
+ * <p>
+ * データは書き込み中も変更できるよう、{@link #copier(UnaryOperator)} で複製してから書き込むことを推奨します。
+ * 複製しない場合、データはメインスレッドと書き込みスレッドから同時に読み込まれます。
+ *
+ * <pre>
+ *     PlayerDataStore&lt;PlayerData&gt; store = new PlayerDataStore&lt;&gt;(plugin, pool,
+ *             (transaction, uuid) -&gt; {
+ *                 QueryResult&lt;PlayerData&gt; result = transaction.statement("load", "SELECT coins FROM players WHERE uuid = ?")
+ *                         .set(1, uuid.toString())
+ *                         .executeQuery();
+ *                 return result.next() ? new PlayerData(result.getRow().getInt("coins")): new PlayerData(0);
+ *             },
+ *             (transaction, uuid, data) -&gt; transaction.statement("save", "REPLACE INTO players (uuid, coins) VALUES (?, ?)")
+ *                     .set(1, uuid.toString())
+ *                     .set(2, data.getCoins())
+ *                     .executeUpdate(false)
+ *     ).copier(PlayerData::copy);
+ *
+ *     store.update(player.getUniqueId(), data -&gt; data.addCoins(10));
+ * </pre>
+ *
+ * @param <T> データの型
+ */
+public class PlayerDataStore<T> implements Listener, AutoCloseable
+{
+    private static final Set<PlayerDataStore<?>> STORES = ConcurrentHashMap.newKeySet();
+    private static final long DEFAULT_AUTOSAVE_TICKS = 20L * 60 * 5;
+
+    private final Plugin plugin;
+    private final DataSource dataSource;
+    private final Loader<? extends T> loader;
+    private final Saver<? super T> saver;
+    private final ConcurrentHashMap<UUID, Entry<T>> entries;
+    // 事前ログインで読み込み、ログインの結果がまだ確定していないプレイヤ
+    private final Set<UUID> preLogins;
+
+    private final LongAdder loadCount;
+    private final LongAdder loadFailureCount;
+    private final LongAdder totalLoadNanos;
+    private final AtomicLong maxLoadNanos;
+    private final LongAdder saveCount;
+    private final LongAdder saveFailureCount;
+
+    @Nullable
+    private UnaryOperator<T> copier;
+    @Nullable
+    private DatabaseExecutor executor;
+    @Nullable
+    private String kickMessage;
+    @Nullable
+    private BukkitTask timer;
+    // 書き込みの順番が入れ替わらないよう、書き込みはすべてこの後ろに繋げて実行する
+    private CompletableFuture<Void> lastSave;
+    private volatile boolean closed;
+
+    /**
+     * ストアを生成し、イベントの受け付けと5分ごとの自動保存を開始します。
+     * 既にオンラインのプレイヤのデータは非同期で読み込まれます。
+     *
+     * @param plugin     イベントと自動保存を登録するプラグイン
+     * @param dataSource データソース
+     * @param loader     1人分のデータを読み込む関数。非同期スレッドで呼び出されます。
+     * @param saver      1人分のデータを書き込む関数。非同期スレッドで呼び出されます。
+     */
+    public PlayerDataStore(@NotNull Plugin plugin, @NotNull DataSource dataSource, @NotNull Loader<? extends T> loader,
+                           @NotNull Saver<? super T> saver)
+    {
+        this.plugin = plugin;
+        this.dataSource = dataSource;
+        this.loader = loader;
+        this.saver = saver;
+        this.entries = new ConcurrentHashMap<>();
+        this.preLogins = ConcurrentHashMap.newKeySet();
+
+        this.loadCount = new LongAdder();
+        this.loadFailureCount = new LongAdder();
+        this.totalLoadNanos = new LongAdder();
+        this.maxLoadNanos = new AtomicLong();
+        this.saveCount = new LongAdder();
+        this.saveFailureCount = new LongAdder();
+
+        this.kickMessage = "Failed to load your data. Please try again later.";
+        this.lastSave = CompletableFuture.completedFuture(null);
+
+        plugin.getServer().getPluginManager().registerEvents(this, plugin);
+        this.autosave(DEFAULT_AUTOSAVE_TICKS);
+        STORES.add(this);
+
+        List<UUID> online = new ArrayList<>();
+        for (Player player : Bukkit.getOnlinePlayers())
+            online.add(player.getUniqueId());
+        if (!online.isEmpty())
+            this.getExecutor().execute(() -> online.forEach(this::loadOnline));
+    }
+
+    /**
+     * 登録されているすべてのストアを書き込んでから閉じます。
+     */
+    public static void closeAll()
+    {
+        for (PlayerDataStore<?> store : new ArrayList<>(STORES))
+        {
+            try
+            {
+                store.close();
+            }
+            catch (Exception e)
+            {
+                System.out.println("An exception has occurred during saving a player data store.");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 登録されているすべてのストアを閉じ、書き込みの完了を指定した時間まで待ちます。
+     *
+     * @param timeout すべてのストアで合計して待機する最大時間
+     * @param unit    時間の単位
+     * @return 時間内にすべての書き込みが完了したかどうか
+     */
+    public static boolean closeAll(long timeout, @NotNull TimeUnit unit)
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean completed = true;
+        for (PlayerDataStore<?> store : new ArrayList<>(STORES))
+        {
+            try
+            {
+                if (!store.close(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS))
+                {
+                    System.out.println("Timed out saving a player data store on close.");
+                    completed = false;
+                }
+            }
+            catch (Exception e)
+            {
+                System.out.println("An exception has occurred during saving a player data store.");
+                e.printStackTrace();
+                completed = false;
+            }
+        }
+        return completed;
+    }
+
+    /**
+     * 書き込む前にデータを複製する関数を設定します。複製はメインスレッドで行われます。
+     *
+     * @param copier データを複製する関数
+     * @return このストア
+     */
+    public PlayerDataStore<T> copier(@Nullable UnaryOperator<T> copier)
+    {
+        this.copier = copier;
+        return this;
+    }
+
+    /**
+     * 読み込みと書き込みを行う {@link DatabaseExecutor} を設定します。
+     * 設定しない場合は {@link DatabaseExecutor#getDefault()} を使用します。
+     *
+     * @param executor 使用する {@link DatabaseExecutor}
+     * @return このストア
+     */
+    public PlayerDataStore<T> executor(@NotNull DatabaseExecutor executor)
+    {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * 読み込みに失敗したときに、プレイヤをキックするメッセージを設定します。
+     * null の場合はキックせず、データがないまま参加させます。
+     *
+     * @param kickMessage キックメッセージ
+     * @return このストア
+     */
+    public PlayerDataStore<T> kickMessage(@Nullable String kickMessage)
+    {
+        this.kickMessage = kickMessage;
+        return this;
+    }
+
+    /**
+     * 自動保存の間隔を設定します。0 の場合は自動保存しません。
+     *
+     * @param periodTicks 自動保存の間隔(チック)
+     * @return このストア
+     */
+    public PlayerDataStore<T> autosave(long periodTicks)
+    {
+        if (this.timer != null)
+            this.timer.cancel();
+        this.timer = null;
+
+        if (periodTicks > 0)
+            this.timer = Runner.runTimer(this.plugin, this::saveAll, (e, task) -> {
+                System.out.println("An exception has occurred during saving a player data store.");
+                e.printStackTrace();
+            }, periodTicks, periodTicks);
+        return this;
+    }
+
+    private DatabaseExecutor getExecutor()
+    {
+        return this.executor != null ? this.executor: DatabaseExecutor.getDefault();
+    }
+
+    /**
+     * プレイヤのデータを取得します。
+     *
+     * @param uuid プレイヤのUUID
+     * @return データ。読み込まれていない場合は null
+     */
+    @Nullable
+    public T get(@NotNull UUID uuid)
+    {
+        Entry<T> entry = this.entries.get(uuid);
+        return entry == null ? null: entry.data;
+    }
+
+    /**
+     * プレイヤのデータを取得します。
+     *
+     * @param player プレイヤ
+     * @return データ。読み込まれていない場合は null
+     */
+    @Nullable
+    public T get(@NotNull Player player)
+    {
+        return this.get(player.getUniqueId());
+    }
+
+    /**
+     * プレイヤのデータが読み込まれているかどうかを返します。
+     *
+     * @param uuid プレイヤのUUID
+     * @return 読み込まれているかどうか
+     */
+    public boolean isLoaded(@NotNull UUID uuid)
+    {
+        return this.entries.containsKey(uuid);
+    }
+
+    /**
+     * プレイヤのデータが変更されたことを記録します。次のログアウトか自動保存で書き込まれます。
+     *
+     * @param uuid プレイヤのUUID
+     */
+    public void markDirty(@NotNull UUID uuid)
+    {
+        Entry<T> entry = this.entries.get(uuid);
+        if (entry != null)
+            entry.dirty = true;
+    }
+
+    /**
+     * プレイヤのデータを変更し、変更されたことを記録します。
+     *
+     * @param uuid    プレイヤのUUID
+     * @param updater データを変更する関数
+     * @return データが読み込まれていて、変更した場合は true
+     */
+    public boolean update(@NotNull UUID uuid, @NotNull Consumer<? super T> updater)
+    {
+        Entry<T> entry = this.entries.get(uuid);
+        if (entry == null)
+            return false;
+
+        updater.accept(entry.data);
+        entry.dirty = true;
+        return true;
+    }
+
+    /**
+     * 変更されたすべてのデータを非同期で書き込みます。メインスレッドから呼び出してください。
+     *
+     * @return 書き込みの完了を表すFuture
+     */
+    public CompletableFuture<Void> saveAll()
+    {
+        LinkedHashMap<UUID, Entry<T>> dirty = new LinkedHashMap<>();
+        this.entries.forEach((uuid, entry) -> {
+            if (entry.dirty)
+                dirty.put(uuid, entry);
+        });
+        return this.save(dirty);
+    }
+
+    private CompletableFuture<Void> save(Map<UUID, Entry<T>> dirty)
+    {
+        if (dirty.isEmpty())
+            return CompletableFuture.completedFuture(null);
+
+        // 書き込み中の変更を次回の書き込みに回すため、複製してから未変更に戻す
+        LinkedHashMap<UUID, T> snapshots = new LinkedHashMap<>(dirty.size());
+        dirty.forEach((uuid, entry) -> {
+            entry.dirty = false;
+            entry.saving.set(dirty);
+            snapshots.put(uuid, this.copier == null ? entry.data: this.copier.apply(entry.data));
+        });
+
+        CompletableFuture<Void> save = this.lastSave
+                .handle((result, e) -> null)
+                .thenCompose(ignored -> this.getExecutor().submit(() -> {
+                    this.write(dirty, snapshots);
+                    return null;
+                }));
+        save.whenComplete((result, e) -> {
+            if (e == null)
+                return;
+            // 書き込みが実行されずに拒否された場合も、次の自動保存で書き込まれるよう戻す
+            dirty.values().forEach(entry -> {
+                entry.dirty = true;
+                entry.saving.compareAndSet(dirty, null);
+            });
+            System.out.println("Failed to save player data. It will be retried on the next autosave.");
+            e.printStackTrace();
+        });
+        this.lastSave = save;
+        return save;
+    }
+
+    private void write(Map<UUID, Entry<T>> dirty, Map<UUID, T> snapshots)
+    {
+        try
+        {
+            Transaction.create(this.dataSource, null).doTransaction(transaction -> {
+                for (Map.Entry<UUID, T> snapshot : snapshots.entrySet())
+                    this.saver.save(transaction, snapshot.getKey(), snapshot.getValue());
+            });
+            this.saveCount.add(snapshots.size());
+        }
+        catch (RuntimeException e)
+        {
+            this.saveFailureCount.increment();
+            dirty.values().forEach(entry -> entry.dirty = true);
+            throw e;
+        }
+        finally
+        {
+            // 後から別の書き込みが予約されている場合は、その書き込みに破棄を任せる
+            dirty.values().forEach(entry -> entry.saving.compareAndSet(dirty, null));
+        }
+
+        // ログアウト済みで、書き込み中に変更されず、他の書き込みも残っていないデータは破棄する
+        // 破棄はコミットの後にだけ行われるため、再参加時にDBから読み込み直しても古いデータにはならない
+        dirty.forEach((uuid, entry) -> this.entries.computeIfPresent(
+                uuid,
+                (key, current) -> current == entry && !current.online && !current.dirty && current.saving.get() == null ? null: current
+        ));
+    }
+
+    private T load(UUID uuid)
+    {
+        long start = System.nanoTime();
+        try
+        {
+            List<T> result = new ArrayList<>(1);
+            Transaction.create(this.dataSource, null).doTransaction(transaction -> result.add(this.loader.load(transaction, uuid)));
+            return result.get(0);
+        }
+        catch (RuntimeException e)
+        {
+            this.loadFailureCount.increment();
+            throw e;
+        }
+        finally
+        {
+            long elapsed = System.nanoTime() - start;
+            this.loadCount.increment();
+            this.totalLoadNanos.add(elapsed);
+            this.maxLoadNanos.accumulateAndGet(elapsed, Math::max);
+        }
+    }
+
+    private void loadOnline(UUID uuid)
+    {
+        try
+        {
+            T data = this.load(uuid);
+            this.entries.putIfAbsent(uuid, new Entry<>(data));
+        }
+        catch (RuntimeException e)
+        {
+            System.out.println("Failed to load player data of " + uuid + ".");
+            e.printStackTrace();
+        }
+    }
+
+    @EventHandler(priority = EventPriority.HIGHEST)
+    public void onPreLogin(AsyncPlayerPreLoginEvent event)
+    {
+        if (this.closed || event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED)
+            return;
+
+        UUID uuid = event.getUniqueId();
+        // 書き込み待ちや書き込み中のデータが残っている場合は、DBより新しいためそのまま使う
+        // データは書き込みのコミット後にだけ破棄されるため、残っていない場合はDBから読み込めば最新になる
+        Entry<T> existing = this.entries.computeIfPresent(uuid, (key, entry) -> {
+            if (!entry.online)
+            {
+                entry.online = true;
+                this.preLogins.add(uuid);
+            }
+            return entry;
+        });
+        if (existing != null)
+            return;
+
+        try
+        {
+            T data = this.load(uuid);
+            if (this.entries.putIfAbsent(uuid, new Entry<>(data)) == null)
+                this.preLogins.add(uuid);
+        }
+        catch (RuntimeException e)
+        {
+            System.out.println("Failed to load player data of " + event.getName() + ".");
+            e.printStackTrace();
+            if (this.kickMessage != null)
+                event.disallow(AsyncPlayerPreLoginEvent.Result.KICK_OTHER, this.kickMessage);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPreLoginResult(AsyncPlayerPreLoginEvent event)
+    {
+        UUID uuid = event.getUniqueId();
+        // 後のリスナーで拒否された場合は PlayerLoginEvent が発生しないため、ここで解放する
+        if (this.preLogins.remove(uuid) && event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED)
+            DatabaseExecutor.mainThread().execute(() -> this.release(uuid));
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onLogin(PlayerLoginEvent event)
+    {
+        if (event.getResult() != PlayerLoginEvent.Result.ALLOWED)
+            this.release(event.getPlayer().getUniqueId());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onQuit(PlayerQuitEvent event)
+    {
+        this.release(event.getPlayer().getUniqueId());
+    }
+
+    private void release(UUID uuid)
+    {
+        Entry<T> entry = this.entries.get(uuid);
+        if (entry == null)
+            return;
+
+        entry.online = false;
+        if (entry.dirty)
+        {
+            LinkedHashMap<UUID, Entry<T>> dirty = new LinkedHashMap<>(1);
+            dirty.put(uuid, entry);
+            this.save(dirty);
+        }
+        // 書き込み中のデータは、失敗したときに書き込み直せるよう、書き込みの完了後に破棄する
+        else if (entry.saving.get() == null)
+            this.entries.remove(uuid, entry);
+    }
+
+    /**
+     * 統計情報を取得します。
+     *
+     * @return 統計情報
+     */
+    public PlayerDataStats getStats()
+    {
+        int dirty = 0;
+        for (Entry<T> entry : this.entries.values())
+            if (entry.dirty)
+                dirty++;
+
+        long loads = this.loadCount.sum();
+        return new PlayerDataStats(
+                this.entries.size(),
+                dirty,
+                loads,
+                this.loadFailureCount.sum(),
+                loads == 0 ? 0: this.totalLoadNanos.sum() / 1_000_000.0 / loads,
+                this.maxLoadNanos.get() / 1_000_000.0,
+                this.saveCount.sum(),
+                this.saveFailureCount.sum()
+        );
+    }
+
+    /**
+     * イベントの受け付けと自動保存を停止し、変更されたすべてのデータを書き込んでから閉じます。
+     * 書き込みが終わるまで最大30秒待機し、終わらなかった場合は {@link IllegalStateException} をスローします。
+     */
+    @Override
+    public void close()
+    {
+        if (!this.close(30, TimeUnit.SECONDS))
+            throw new IllegalStateException("Timed out saving player data.");
+    }
+
+    /**
+     * イベントの受け付けと自動保存を停止し、変更されたすべてのデータの書き込みを指定した時間まで待ちます。
+     * 時間内に終わらなかった書き込みは、そのまま非同期で続けられます。
+     *
+     * @param timeout 待機する最大時間
+     * @param unit    時間の単位
+     * @return 時間内に書き込みが完了したかどうか
+     * @throws IllegalStateException 書き込みに失敗した場合
+     */
+    public boolean close(long timeout, @NotNull TimeUnit unit)
+    {
+        if (this.closed)
+            return true;
+        this.closed = true;
+
+        try
+        {
+            this.autosave(0);
+            HandlerList.unregisterAll(this);
+
+            CompletableFuture<Void> save = this.saveAll();
+            save.get(timeout, unit);
+            return true;
+        }
+        catch (TimeoutException e)
+        {
+            return false;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        catch (Exception e)
+        {
+            throw new IllegalStateException(e);
+        }
+        finally
+        {
+            STORES.remove(this);
+        }
+    }
+
+    private static class Entry<T>
+    {
+        private final T data;
+        private volatile boolean dirty;
+        private volatile boolean online;
+        // 書き込み中または書き込み待ちのバッチ。書き込みが完了すると null に戻る
+        private final AtomicReference<Object> saving = new AtomicReference<>();
+
+        private Entry(T data)
+        {
+            this.data = data;
+            this.online = true;
+        }
+    }
+
+    /**
+     * 1人分のデータを読み込む関数です。
+     *
+     * @param <T> データの型
+     */
+    @FunctionalInterface
+    public interface Loader<T>
+    {
+        /**
+         * 読み込みます。
+         *
+         * @param transaction 読み込みに使用するトランザクション。{@link Transaction#statement(String, String)} で文を準備してください。
+         * @param uuid        プレイヤのUUID
+         * @return データ。DBに存在しない場合は初期値を返してください。
+         * @throws SQLException 読み込みに失敗した場合
+         */
+        T load(Transaction transaction, UUID uuid) throws SQLException;
+    }
+
+    /**
+     * 1人分のデータを書き込む関数です。
+     * 自動保存では、変更されたすべてのプレイヤが一つのトランザクションで書き込まれます。
+     *
+     * @param <T> データの型
+     */
+    @FunctionalInterface
+    public interface Saver<T>
+    {
+        /**
+         * 書き込みます。コミットは呼び出し元で行われます。
+         *
+         * @param transaction 書き込みに使用するトランザクション。{@link Transaction#statement(String, String)} で文を準備してください。
+         * @param uuid        プレイヤのUUID
+         * @param data        データ
+         * @throws SQLException 書き込みに失敗した場合
+         */
+        void save(Transaction transaction, UUID uuid, T data) throws SQLException;
+    }
+}
@@ -0,0 +1,92 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import lombok.Value;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ConnectionPool} の統計情報のスナップショットです。
+ */
+@Value
+public class PoolStats
+{
+    /**
+     * プールが管理しているコネクションの数です。
+     */
+    int totalConnections;
+    /**
+     * 待機中のコネクションの数です。
+     */
+    int idleConnections;
+    /**
+     * コネクションの返却を待っているスレッドの数です。
+     */
+    int waitingThreads;
+    /**
+     * コネクションの取得回数です。
+     */
+    long acquireCount;
+    /**
+     * コネクションの取得がタイムアウトした回数です。
+     */
+    long timeoutCount;
+    /**
+     * 物理コネクションを生成した回数です。
+     */
+    long createdCount;
+    /**
+     * 物理コネクションを閉じた回数です。
+     */
+    long destroyedCount;
+    /**
+     * コネクションの取得にかかった時間の合計(ナノ秒)です。
+     */
+    long totalWaitNanos;
+    /**
+     * コネクションの取得にかかった時間の最大値(ナノ秒)です。
+     */
+    long maxWaitNanos;
+    /**
+     * ステートメントキャッシュのヒット数です。
+     */
+    long statementCacheHits;
+    /**
+     * ステートメントキャッシュのミス数です。
+     */
+    long statementCacheMisses;
+
+    /**
+     * 貸し出し中のコネクションの数を取得します。
+     *
+     * @return 貸し出し中のコネクションの数
+     */
+    public int getActiveConnections()
+    {
+        return this.totalConnections - this.idleConnections;
+    }
+
+    /**
+     * コネクションの取得にかかった時間の平均値(ミリ秒)を取得します。
+     *
+     * @return 平均待ち時間
+     */
+    public double getAverageWaitMillis()
+    {
+        if (this.acquireCount == 0)
+            return 0.0;
+        return (double) this.totalWaitNanos / this.acquireCount / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * ステートメントキャッシュのヒット率を取得します。
+     *
+     * @return ヒット率(0.0 ~ 1.0)
+     */
+    public double getStatementCacheHitRatio()
+    {
+        long total = this.statementCacheHits + this.statementCacheMisses;
+        if (total == 0)
+            return 0.0;
+        return (double) this.statementCacheHits / total;
+    }
+}
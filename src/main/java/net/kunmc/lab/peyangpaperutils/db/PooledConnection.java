@@ -0,0 +1,229 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link ConnectionPool} が管理する物理コネクションです。
+ * 貸し出すたびに新しいプロキシを生成するため、返却後に古い参照を使用しても次の利用者には影響しません。
+ */
+class PooledConnection
+{
+    private final ConnectionPool pool;
+    @Getter(AccessLevel.PACKAGE)
+    private final Connection physical;
+    private final long createdAt;
+    @Nullable
+    private final StatementCache statementCache;
+
+    @Getter(AccessLevel.PACKAGE)
+    private volatile long lastUsedAt;
+    @Getter(AccessLevel.PACKAGE)
+    private volatile boolean broken;
+
+    private volatile Connection current;
+
+    // 利用者が読み込み専用の設定を変更したか。変更した場合は返却時に元に戻す
+    private boolean readOnlyChanged;
+    private boolean initialReadOnly;
+
+    PooledConnection(ConnectionPool pool, Connection physical, int statementCacheSize,
+                     LongAdder statementCacheHits, LongAdder statementCacheMisses)
+    {
+        this.pool = pool;
+        this.physical = physical;
+        this.createdAt = System.currentTimeMillis();
+        this.lastUsedAt = this.createdAt;
+
+        if (statementCacheSize > 0)
+            this.statementCache = new StatementCache(
+                    physical,
+                    () -> this.current,
+                    statementCacheSize,
+                    statementCacheHits,
+                    statementCacheMisses
+            );
+        else
+            this.statementCache = null;
+    }
+
+    boolean isExpired(long now, long maxLifetime)
+    {
+        return maxLifetime > 0 && now - this.createdAt > maxLifetime;
+    }
+
+    /**
+     * 貸し出し用のプロキシを生成します。
+     *
+     * @return プロキシ
+     */
+    Connection borrow()
+    {
+        this.current = (Connection) Proxy.newProxyInstance(
+                PooledConnection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                new Handler()
+        );
+        return this.current;
+    }
+
+    /**
+     * 次の利用者のために、コネクションの状態を初期状態に戻します。
+     *
+     * @return 再利用可能かどうか
+     */
+    boolean reset()
+    {
+        try
+        {
+            if (this.physical.isClosed())
+                return false;
+
+            if (!this.physical.getAutoCommit())
+            {
+                this.physical.rollback();
+                this.physical.setAutoCommit(true);
+            }
+            if (this.readOnlyChanged)
+            {
+                if (this.physical.isReadOnly() != this.initialReadOnly)
+                    this.physical.setReadOnly(this.initialReadOnly);
+                this.readOnlyChanged = false;
+            }
+            this.physical.clearWarnings();
+            return true;
+        }
+        catch (SQLException e)
+        {
+            return false;
+        }
+    }
+
+    void closePhysical()
+    {
+        if (this.statementCache != null)
+            this.statementCache.closeAll();
+
+        try
+        {
+            this.physical.close();
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private static boolean isConnectionError(SQLException e)
+    {
+        String state = e.getSQLState();
+        return state != null && state.startsWith("08");
+    }
+
+    private class Handler implements InvocationHandler
+    {
+        // 返却時に閉じるため、このプロキシから生成したステートメント
+        private final Set<Statement> statements = Collections.newSetFromMap(new IdentityHashMap<>());
+        private boolean closed;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            switch (method.getName())
+            {
+                case "close":
+                    if (!this.closed)
+                    {
+                        this.closed = true;
+                        this.closeStatements();
+                        PooledConnection.this.lastUsedAt = System.currentTimeMillis();
+                        PooledConnection.this.pool.release(PooledConnection.this);
+                    }
+                    return null;
+                case "isClosed":
+                    return this.closed || PooledConnection.this.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledConnection[" + PooledConnection.this.physical + "]";
+                case "unwrap":
+                case "isWrapperFor":
+                    break;
+                default:
+                    if (this.closed)
+                        throw new SQLException("Connection is closed.", "08003");
+            }
+
+            try
+            {
+                Object result = null;
+                if (PooledConnection.this.statementCache != null && method.getName().equals("prepareStatement"))
+                {
+                    if (args.length == 1)
+                        result = PooledConnection.this.statementCache.prepare((String) args[0], Statement.NO_GENERATED_KEYS);
+                    else if (args.length == 2 && args[1] instanceof Integer)
+                        result = PooledConnection.this.statementCache.prepare((String) args[0], (Integer) args[1]);
+                }
+
+                if (method.getName().equals("setReadOnly") && !PooledConnection.this.readOnlyChanged)
+                {
+                    PooledConnection.this.initialReadOnly = PooledConnection.this.physical.isReadOnly();
+                    PooledConnection.this.readOnlyChanged = true;
+                }
+
+                if (result == null)
+                    result = method.invoke(PooledConnection.this.physical, args);
+                if (result instanceof Statement)
+                    this.statements.add((Statement) result);
+                return result;
+            }
+            catch (InvocationTargetException e)
+            {
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLException && isConnectionError((SQLException) cause))
+                    PooledConnection.this.broken = true;
+                throw cause;
+            }
+        }
+
+        /**
+         * 閉じられていないステートメントを閉じます。
+         * キャッシュされたステートメントは、パラメータと設定が初期化されてキャッシュに戻ります。
+         */
+        private void closeStatements()
+        {
+            List<Statement> opened = new ArrayList<>(this.statements);
+            this.statements.clear();
+
+            for (Statement statement : opened)
+            {
+                try
+                {
+                    statement.close();
+                }
+                catch (SQLException e)
+                {
+                    if (isConnectionError(e))
+                        PooledConnection.this.broken = true;
+                }
+            }
+        }
+    }
+}
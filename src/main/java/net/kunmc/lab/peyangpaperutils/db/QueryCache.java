@@ -0,0 +1,357 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetFactory;
+import javax.sql.rowset.RowSetProvider;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * SQL文とセットされた値をキーに、クエリの結果をメモリ上に保持するキャッシュです。
+ * {@link Transaction#cache(QueryCache, String...)} で使用を宣言したクエリのみがキャッシュされます。
+ * <p>
+ * 結果は件数の上限を超えると最も使われていないものから破棄され、有効期限を過ぎたものは次の参照時に破棄されます。
+ * また、{@link Transaction} で実行した INSERT / UPDATE / DELETE などがコミットされると、
+ * その対象テーブルに依存すると宣言された結果はすべてのキャッシュから破棄されます。
+ * {@link Transaction} を経由せずにテーブルを更新した場合は、{@link #invalidateTables(String...)} を呼び出してください。
+ *
+ * <pre>
+ *     QueryCache cache = new QueryCache(1000, 30, TimeUnit.SECONDS);
+ *
+ *     int rank = Transaction.create(pool, "SELECT rank FROM players WHERE uuid = ?")
+ *             .cache(cache, "players")
+ *             .set(1, uuid.toString())
+ *             .executeQuery()
+ *             .mapToList(row -&gt; row.getInt("rank"), 1)
+ *             .get(0);
+ * </pre>
+ */
+public class QueryCache
+{
+    private static final Set<QueryCache> CACHES = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    private static final ConcurrentHashMap<String, AtomicLong> TABLE_VERSIONS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, String> UPDATE_TARGETS = new ConcurrentHashMap<>();
+    private static final Pattern UPDATE_TARGET = Pattern.compile(
+            "^\\s*(?:INSERT(?:\\s+OR\\s+\\w+|\\s+IGNORE)?\\s+INTO|REPLACE\\s+INTO|UPDATE(?:\\s+OR\\s+\\w+)?"
+                    + "|DELETE\\s+FROM|MERGE\\s+INTO|TRUNCATE(?:\\s+TABLE)?)\\s+([`\"\\[]?[\\w.`\"\\[\\]]+)",
+            Pattern.CASE_INSENSITIVE
+    );
+
+    private static RowSetFactory rowSetFactory;
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<Key, CachedResult> entries;
+
+    private final LongAdder hitCount;
+    private final LongAdder missCount;
+    private final LongAdder evictionCount;
+    private final LongAdder expiredCount;
+    private final LongAdder invalidationCount;
+
+    /**
+     * キャッシュを生成します。
+     *
+     * @param maxEntries 保持する結果の最大数
+     * @param ttl        結果の有効期限
+     * @param unit       有効期限の単位
+     */
+    public QueryCache(int maxEntries, long ttl, @NotNull TimeUnit unit)
+    {
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException("maxEntries must be positive.");
+
+        this.maxEntries = maxEntries;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.entries = new LinkedHashMap<Key, CachedResult>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedResult> eldest)
+            {
+                if (this.size() <= QueryCache.this.maxEntries)
+                    return false;
+
+                QueryCache.this.evictionCount.increment();
+                return true;
+            }
+        };
+
+        this.hitCount = new LongAdder();
+        this.missCount = new LongAdder();
+        this.evictionCount = new LongAdder();
+        this.expiredCount = new LongAdder();
+        this.invalidationCount = new LongAdder();
+
+        CACHES.add(this);
+    }
+
+    /**
+     * 指定したテーブルに依存する結果を、すべてのキャッシュから破棄します。
+     *
+     * @param tables テーブル名
+     */
+    public static void invalidateTables(@NotNull String... tables)
+    {
+        ArrayList<String> normalized = new ArrayList<>(tables.length);
+        for (String table : tables)
+            normalized.add(normalizeTable(table));
+
+        invalidateTables(normalized);
+    }
+
+    static void invalidateTables(Collection<String> tables)
+    {
+        for (String table : tables)
+            TABLE_VERSIONS.computeIfAbsent(table, k -> new AtomicLong()).incrementAndGet();
+
+        QueryCache[] caches;
+        synchronized (CACHES)
+        {
+            caches = CACHES.toArray(new QueryCache[0]);
+        }
+
+        for (QueryCache cache : caches)
+            cache.invalidate(tables);
+    }
+
+    /**
+     * キャッシュが1つでも存在するかどうかを返します。
+     */
+    static boolean isActive()
+    {
+        return !CACHES.isEmpty();
+    }
+
+    static String normalizeTable(String table)
+    {
+        String name = table.replace("`", "").replace("\"", "").replace("[", "").replace("]", "");
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0)
+            name = name.substring(dot + 1);
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * 更新系SQL文の対象テーブルを取得します。結果はSQL文ごとにキャッシュされます。
+     *
+     * @param sql SQL文
+     * @return 正規化されたテーブル名。更新系SQL文でない場合は null
+     */
+    @Nullable
+    static String getUpdateTarget(String sql)
+    {
+        String table = UPDATE_TARGETS.computeIfAbsent(sql, k -> {
+            Matcher matcher = UPDATE_TARGET.matcher(k);
+            return matcher.find() ? normalizeTable(matcher.group(1)) : "";
+        });
+        return table.isEmpty() ? null : table;
+    }
+
+    private static long[] versionsOf(String[] tables)
+    {
+        long[] versions = new long[tables.length];
+        for (int i = 0; i < tables.length; i++)
+        {
+            AtomicLong version = TABLE_VERSIONS.get(tables[i]);
+            versions[i] = version == null ? 0L : version.get();
+        }
+        return versions;
+    }
+
+    private static synchronized RowSetFactory getRowSetFactory() throws SQLException
+    {
+        if (rowSetFactory == null)
+            rowSetFactory = RowSetProvider.newFactory();
+        return rowSetFactory;
+    }
+
+    /**
+     * キャッシュされた結果を返します。ない場合はクエリを実行し、結果をメモリ上に読み込んでからキャッシュします。
+     *
+     * @param sql        SQL文
+     * @param parameters セットされた値
+     * @param tables     依存するテーブル(正規化済み)
+     * @param loader     クエリを実行する関数
+     * @return 結果。呼び出しごとに独立したカーソルを持ちます。
+     */
+    ResultSet query(String sql, Object[] parameters, String[] tables, Loader loader) throws SQLException
+    {
+        Key key = new Key(sql, parameters);
+        CachedRowSet cached = this.lookup(key);
+        if (cached != null)
+        {
+            this.hitCount.increment();
+            return cached.createShared();
+        }
+        this.missCount.increment();
+
+        long[] versions = versionsOf(tables);
+        CachedRowSet rows = getRowSetFactory().createCachedRowSet();
+        try (ResultSet result = loader.load())
+        {
+            rows.populate(result);
+        }
+
+        // 読み込み中に依存するテーブルが更新された場合は、古い可能性があるためキャッシュしない
+        if (Arrays.equals(versions, versionsOf(tables)))
+            synchronized (this.entries)
+            {
+                this.entries.put(key, new CachedResult(rows, System.nanoTime() + this.ttlNanos, tables));
+            }
+
+        return rows.createShared();
+    }
+
+    @Nullable
+    private CachedRowSet lookup(Key key)
+    {
+        synchronized (this.entries)
+        {
+            CachedResult entry = this.entries.get(key);
+            if (entry == null)
+                return null;
+
+            if (entry.expiresAt - System.nanoTime() < 0)
+            {
+                this.entries.remove(key);
+                this.expiredCount.increment();
+                return null;
+            }
+
+            return entry.rows;
+        }
+    }
+
+    private void invalidate(Collection<String> tables)
+    {
+        synchronized (this.entries)
+        {
+            Iterator<CachedResult> iterator = this.entries.values().iterator();
+            while (iterator.hasNext())
+            {
+                CachedResult entry = iterator.next();
+                for (String table : entry.tables)
+                {
+                    if (tables.contains(table))
+                    {
+                        iterator.remove();
+                        this.invalidationCount.increment();
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * このキャッシュのすべての結果を破棄します。
+     */
+    public void invalidateAll()
+    {
+        synchronized (this.entries)
+        {
+            this.entries.clear();
+        }
+    }
+
+    /**
+     * キャッシュされている結果の数を取得します。
+     *
+     * @return 結果の数
+     */
+    public int size()
+    {
+        synchronized (this.entries)
+        {
+            return this.entries.size();
+        }
+    }
+
+    /**
+     * 統計情報を取得します。
+     *
+     * @return 統計情報
+     */
+    public QueryCacheStats getStats()
+    {
+        return new QueryCacheStats(
+                this.size(),
+                this.hitCount.sum(),
+                this.missCount.sum(),
+                this.evictionCount.sum(),
+                this.expiredCount.sum(),
+                this.invalidationCount.sum()
+        );
+    }
+
+    @FunctionalInterface
+    interface Loader
+    {
+        ResultSet load() throws SQLException;
+    }
+
+    private static final class Key
+    {
+        private final String sql;
+        private final Object[] parameters;
+        private final int hash;
+
+        private Key(String sql, Object[] parameters)
+        {
+            this.sql = sql;
+            this.parameters = parameters;
+            this.hash = 31 * sql.hashCode() + Arrays.deepHashCode(parameters);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+
+            Key key = (Key) o;
+            return this.hash == key.hash && this.sql.equals(key.sql) && Arrays.deepEquals(this.parameters, key.parameters);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.hash;
+        }
+    }
+
+    private static final class CachedResult
+    {
+        private final CachedRowSet rows;
+        private final long expiresAt;
+        private final String[] tables;
+
+        private CachedResult(CachedRowSet rows, long expiresAt, String[] tables)
+        {
+            this.rows = rows;
+            this.expiresAt = expiresAt;
+            this.tables = tables;
+        }
+    }
+}
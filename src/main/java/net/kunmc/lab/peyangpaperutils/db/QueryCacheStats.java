@@ -0,0 +1,48 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import lombok.Value;
+
+/**
+ * {@link QueryCache} の統計情報のスナップショットです。
+ */
+@Value
+public class QueryCacheStats
+{
+    /**
+     * キャッシュされている結果の数です。
+     */
+    int size;
+    /**
+     * キャッシュから結果を返した回数です。
+     */
+    long hitCount;
+    /**
+     * キャッシュに結果がなく、クエリを実行した回数です。
+     */
+    long missCount;
+    /**
+     * 上限を超えたために破棄された結果の数です。
+     */
+    long evictionCount;
+    /**
+     * 有効期限が切れたために破棄された結果の数です。
+     */
+    long expiredCount;
+    /**
+     * テーブルの更新により破棄された結果の数です。
+     */
+    long invalidationCount;
+
+    /**
+     * キャッシュのヒット率を取得します。
+     *
+     * @return ヒット率(0.0 から 1.0)
+     */
+    public double getHitRatio()
+    {
+        long total = this.hitCount + this.missCount;
+        if (total == 0)
+            return 0.0;
+        return (double) this.hitCount / total;
+    }
+}
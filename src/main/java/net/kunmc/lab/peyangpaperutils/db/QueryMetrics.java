@@ -0,0 +1,349 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * {@link Transaction} で実行されたSQL文の実行時間を記録する、オプトインの計測器です。
+ * SQL文はリテラルと値の並びを {@code ?} に置き換えて正規化され、正規化後のSQL文ごとに
+ * 実行時間のヒストグラム、件数、エラー数が記録されます。
+ * しきい値を超えたSQL文は、セットされた値の要約と共にスロークエリログに残ります。
+ * <p>
+ * 記録はロックを取らずに行われます。無効な間の負荷は、トランザクションの生成時のフィールドの読み取りのみです。
+ *
+ * <pre>
+ *     QueryMetrics.enable()
+ *             .slowThreshold(50, TimeUnit.MILLISECONDS);
+ *
+ *     QueryMetricsSnapshot snapshot = QueryMetrics.getActive().snapshot();
+ *     snapshot.format(10).forEach(terminal::info);
+ *     snapshot.writeTo(Paths.get("plugins/MyPlugin/queries.txt"));
+ * </pre>
+ */
+public class QueryMetrics
+{
+    /**
+     * ヒストグラムのバケット数です。バケット {@code i} はマイクロ秒で {@code [2^(i-1), 2^i)} の範囲を表します。
+     */
+    static final int BUCKETS = 32;
+
+    private static final int MAX_QUERIES = 1024;
+    private static final String OTHER_QUERIES = "(other)";
+    private static final int SLOW_LOG_SIZE = 128;
+    private static final int MAX_SUMMARY_PARAMETERS = 16;
+    private static final int MAX_SUMMARY_VALUE_LENGTH = 32;
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("(?<![\\w.])-?\\d+(?:\\.\\d+)?\\b");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern IN_LIST = Pattern.compile("(?i)\\bIN\\s*\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)");
+    private static final Pattern VALUES_ROWS =
+            Pattern.compile("(\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\))(?:\\s*,\\s*\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\))+");
+
+    @Nullable
+    private static volatile QueryMetrics active;
+
+    private final ConcurrentHashMap<String, Recorder> recorders;
+    // 生のSQL文から正規化後のSQL文へのキャッシュ
+    private final ConcurrentHashMap<String, String> normalized;
+    private final AtomicReferenceArray<SlowQuery> slowQueries;
+    private final AtomicLong slowQueryCount;
+
+    /**
+     * スロークエリとみなす実行時間(ナノ秒)です。
+     */
+    @Getter
+    private volatile long slowThresholdNanos;
+    /**
+     * スロークエリを標準出力にも出力するかどうかです。
+     */
+    @Getter
+    private volatile boolean logSlowQueries;
+
+    private QueryMetrics()
+    {
+        this.recorders = new ConcurrentHashMap<>();
+        this.normalized = new ConcurrentHashMap<>();
+        this.slowQueries = new AtomicReferenceArray<>(SLOW_LOG_SIZE);
+        this.slowQueryCount = new AtomicLong();
+
+        this.slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(50);
+        this.logSlowQueries = true;
+    }
+
+    /**
+     * 計測を有効にします。すでに有効な場合は、有効な計測器をそのまま返します。
+     * 有効にする前に生成されたトランザクションは計測の対象になりません。
+     *
+     * @return 有効な計測器
+     */
+    public static synchronized QueryMetrics enable()
+    {
+        if (active == null)
+            active = new QueryMetrics();
+        return active;
+    }
+
+    /**
+     * 計測を無効にします。
+     */
+    public static synchronized void disable()
+    {
+        active = null;
+    }
+
+    /**
+     * 有効な計測器を取得します。
+     *
+     * @return 有効な計測器。無効な場合は null
+     */
+    @Nullable
+    public static QueryMetrics getActive()
+    {
+        return active;
+    }
+
+    /**
+     * スロークエリとみなす実行時間を設定します。
+     *
+     * @param threshold 時間
+     * @param unit      時間の単位
+     * @return この計測器
+     */
+    public QueryMetrics slowThreshold(long threshold, @NotNull TimeUnit unit)
+    {
+        if (threshold < 0)
+            throw new IllegalArgumentException("threshold must not be negative.");
+        this.slowThresholdNanos = unit.toNanos(threshold);
+        return this;
+    }
+
+    /**
+     * スロークエリを標準出力にも出力するかどうかを設定します。
+     *
+     * @param logSlowQueries 出力するかどうか
+     * @return この計測器
+     */
+    public QueryMetrics logSlowQueries(boolean logSlowQueries)
+    {
+        this.logSlowQueries = logSlowQueries;
+        return this;
+    }
+
+    void record(@Nullable String sql, long startedAt, long rows, boolean failed,
+                @Nullable Object[] parameters, int parameterCount)
+    {
+        long nanos = System.nanoTime() - startedAt;
+        String key = this.normalize(sql);
+
+        this.getRecorder(key).record(nanos, rows, failed);
+
+        if (nanos >= this.slowThresholdNanos)
+            this.recordSlowQuery(key, nanos, failed, summarize(parameters, parameterCount));
+    }
+
+    void addRows(@Nullable String sql, long rows)
+    {
+        this.getRecorder(this.normalize(sql)).rowCount.add(rows);
+    }
+
+    /**
+     * 現在の統計情報のスナップショットを取得します。
+     * SQL文は実行時間の合計が大きい順に並びます。
+     *
+     * @return スナップショット
+     */
+    public QueryMetricsSnapshot snapshot()
+    {
+        List<QueryStats> queries = new ArrayList<>(this.recorders.size());
+        for (Recorder recorder : this.recorders.values())
+            queries.add(recorder.toStats());
+        queries.sort(Comparator.comparingLong(QueryStats::getTotalNanos).reversed());
+
+        List<SlowQuery> slowQueries = new ArrayList<>(SLOW_LOG_SIZE);
+        long count = this.slowQueryCount.get();
+        for (long i = Math.max(0, count - SLOW_LOG_SIZE); i < count; i++)
+        {
+            SlowQuery slowQuery = this.slowQueries.get((int) (i % SLOW_LOG_SIZE));
+            if (slowQuery != null)
+                slowQueries.add(slowQuery);
+        }
+
+        return new QueryMetricsSnapshot(System.currentTimeMillis(), queries, slowQueries);
+    }
+
+    /**
+     * 記録をすべて消去します。
+     */
+    public void reset()
+    {
+        this.recorders.clear();
+        this.normalized.clear();
+        for (int i = 0; i < SLOW_LOG_SIZE; i++)
+            this.slowQueries.set(i, null);
+        this.slowQueryCount.set(0);
+    }
+
+    private Recorder getRecorder(String key)
+    {
+        Recorder recorder = this.recorders.get(key);
+        if (recorder != null)
+            return recorder;
+
+        // 値を埋め込んだSQL文などで種類が増え続けないよう、上限を超えたものはまとめる
+        if (this.recorders.size() >= MAX_QUERIES)
+            key = OTHER_QUERIES;
+        return this.recorders.computeIfAbsent(key, Recorder::new);
+    }
+
+    private void recordSlowQuery(String sql, long nanos, boolean failed, String parameters)
+    {
+        SlowQuery slowQuery = new SlowQuery(
+                System.currentTimeMillis(),
+                sql,
+                parameters,
+                nanos,
+                failed,
+                Thread.currentThread().getName()
+        );
+
+        long index = this.slowQueryCount.getAndIncrement();
+        this.slowQueries.set((int) (index % SLOW_LOG_SIZE), slowQuery);
+
+        if (this.logSlowQueries)
+            System.out.println("Slow query (" + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms"
+                    + (failed ? ", failed": "") + "): " + sql + " " + parameters);
+    }
+
+    private String normalize(@Nullable String sql)
+    {
+        if (sql == null)
+            return "";
+
+        String result = this.normalized.get(sql);
+        if (result != null)
+            return result;
+
+        result = normalizeSql(sql);
+        if (this.normalized.size() < MAX_QUERIES * 4)
+            this.normalized.put(sql, result);
+        return result;
+    }
+
+    /**
+     * SQL文を正規化します。
+     * 文字列と数値のリテラル、{@code IN} の値の並び、{@code VALUES} の複数行を {@code ?} にまとめ、空白を詰めます。
+     *
+     * @param sql SQL文
+     * @return 正規化されたSQL文
+     */
+    static String normalizeSql(@NotNull String sql)
+    {
+        String result = STRING_LITERAL.matcher(sql).replaceAll("?");
+        result = NUMBER_LITERAL.matcher(result).replaceAll("?");
+        result = WHITESPACE.matcher(result).replaceAll(" ").trim();
+        result = IN_LIST.matcher(result).replaceAll("IN (?)");
+        result = VALUES_ROWS.matcher(result).replaceAll("$1, ...");
+        return result;
+    }
+
+    private static String summarize(@Nullable Object[] parameters, int parameterCount)
+    {
+        if (parameters == null || parameterCount == 0)
+            return "[]";
+
+        StringBuilder builder = new StringBuilder("[");
+        int count = Math.min(parameterCount, MAX_SUMMARY_PARAMETERS);
+        for (int i = 0; i < count; i++)
+        {
+            if (i > 0)
+                builder.append(", ");
+            builder.append(summarize(parameters[i]));
+        }
+        if (parameterCount > count)
+            builder.append(", ... (").append(parameterCount).append(" parameters)");
+        return builder.append("]").toString();
+    }
+
+    private static String summarize(@Nullable Object value)
+    {
+        if (value == null)
+            return "null";
+        if (value instanceof byte[])
+            return "byte[" + ((byte[]) value).length + "]";
+
+        String text = String.valueOf(value);
+        if (text.length() > MAX_SUMMARY_VALUE_LENGTH)
+            text = text.substring(0, MAX_SUMMARY_VALUE_LENGTH) + "...";
+        return value instanceof CharSequence ? "'" + text + "'": text;
+    }
+
+    static int bucketOf(long nanos)
+    {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    private static class Recorder
+    {
+        private final String sql;
+        private final LongAdder errorCount;
+        private final LongAdder rowCount;
+        private final LongAdder totalNanos;
+        private final AtomicLong maxNanos;
+        private final AtomicLongArray histogram;
+
+        private Recorder(String sql)
+        {
+            this.sql = sql;
+            this.errorCount = new LongAdder();
+            this.rowCount = new LongAdder();
+            this.totalNanos = new LongAdder();
+            this.maxNanos = new AtomicLong();
+            this.histogram = new AtomicLongArray(BUCKETS);
+        }
+
+        private void record(long nanos, long rows, boolean failed)
+        {
+            if (failed)
+                this.errorCount.increment();
+            if (rows > 0)
+                this.rowCount.add(rows);
+            this.totalNanos.add(nanos);
+            if (nanos > this.maxNanos.get())
+                this.maxNanos.accumulateAndGet(nanos, Math::max);
+            this.histogram.incrementAndGet(bucketOf(nanos));
+        }
+
+        private QueryStats toStats()
+        {
+            long[] histogram = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++)
+                histogram[i] = this.histogram.get(i);
+
+            // 件数はヒストグラムの合計とし、パーセンタイルと食い違わないようにする
+            return new QueryStats(
+                    this.sql,
+                    Arrays.stream(histogram).sum(),
+                    this.errorCount.sum(),
+                    this.rowCount.sum(),
+                    this.totalNanos.sum(),
+                    this.maxNanos.get(),
+                    histogram
+            );
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import lombok.Value;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * {@link QueryMetrics} の統計情報とスロークエリログのスナップショットです。
+ */
+@Value
+public class QueryMetricsSnapshot
+{
+    /**
+     * スナップショットを取得した時刻(エポックミリ秒)です。
+     */
+    long takenAt;
+    /**
+     * 正規化後のSQL文ごとの統計情報です。実行時間の合計が大きい順に並びます。
+     */
+    List<QueryStats> queries;
+    /**
+     * スロークエリログです。古い順に並びます。
+     */
+    List<SlowQuery> slowQueries;
+
+    /**
+     * 実行時間の合計が大きいSQL文から順に、一行ずつの表示用の文字列に変換します。
+     * ゲーム内のチャットやコンソールに表示するために使用します。
+     *
+     * @param limit 表示するSQL文の最大数
+     * @return 表示用の文字列
+     */
+    public List<String> format(int limit)
+    {
+        List<String> lines = new ArrayList<>();
+        int count = Math.min(limit, this.queries.size());
+        for (int i = 0; i < count; i++)
+            lines.add(formatQuery(this.queries.get(i)));
+        return lines;
+    }
+
+    /**
+     * すべての統計情報とスロークエリログをファイルに書き出します。
+     *
+     * @param path 書き出すファイル
+     * @throws IOException 書き込みに失敗した場合
+     */
+    public void writeTo(@NotNull Path path) throws IOException
+    {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.ROOT);
+
+        List<String> lines = new ArrayList<>();
+        lines.add("# Query metrics at " + dateFormat.format(new Date(this.takenAt)));
+        lines.add("");
+        lines.add("## Queries");
+        lines.addAll(this.format(this.queries.size()));
+        lines.add("");
+        lines.add("## Slow queries");
+        for (SlowQuery slowQuery : this.slowQueries)
+            lines.add(String.format(
+                    Locale.ROOT,
+                    "%s [%s] %.2fms%s %s %s",
+                    dateFormat.format(new Date(slowQuery.getTimestamp())),
+                    slowQuery.getThreadName(),
+                    slowQuery.getDurationMillis(),
+                    slowQuery.isFailed() ? " failed": "",
+                    slowQuery.getSql(),
+                    slowQuery.getParameters()
+            ));
+
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null)
+            Files.createDirectories(parent);
+        Files.write(path, lines, StandardCharsets.UTF_8);
+    }
+
+    private static String formatQuery(QueryStats stats)
+    {
+        return String.format(
+                Locale.ROOT,
+                "%dx avg %.2fms p99 %.2fms max %.2fms rows %d errors %d: %s",
+                stats.getCount(),
+                stats.getAverageMillis(),
+                stats.getPercentileMillis(0.99),
+                stats.getMaxMillis(),
+                stats.getRowCount(),
+                stats.getErrorCount(),
+                stats.getSql()
+        );
+    }
+}
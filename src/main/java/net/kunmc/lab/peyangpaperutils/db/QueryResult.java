@@ -1,12 +1,15 @@
 package net.kunmc.lab.peyangpaperutils.db;
 
-import lombok.RequiredArgsConstructor;
 import lombok.Setter;
 import lombok.experimental.Accessors;
+import org.jetbrains.annotations.Nullable;
 
+import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
@@ -14,14 +17,46 @@ import java.util.stream.StreamSupport;
 /**
  * クエリの実行結果を表すクラスです。
  */
-@RequiredArgsConstructor
 public class QueryResult<T>
 {
+    private static final int INITIAL_ARRAY_CAPACITY = 64;
+
     private final ResultSet result;
+    @Nullable
+    private final Connection connection;
+    private ResultRow row;
+    private ColumnIndex columnIndex;
+    @Nullable
+    LeakDetector.Handle leakHandle;
+    @Nullable
+    DatabaseLifecycle.RunningStatement running;
+    // 読み込んだ行数は、閉じたときに実行したSQL文の統計情報に加算する
+    @Nullable
+    QueryMetrics metrics;
+    @Nullable
+    String query;
+    private long rowCount;
     @Setter
     @Accessors(chain = true)
     private Function<ResultRow, T> mapper;
 
+    public QueryResult(ResultSet result)
+    {
+        this(result, null);
+    }
+
+    /**
+     * クエリの実行結果を生成します。
+     *
+     * @param result     ResultSet
+     * @param connection 結果を取得したコネクション。例外発生時に閉じるコネクションとして使用されます。
+     */
+    public QueryResult(ResultSet result, @Nullable Connection connection)
+    {
+        this.result = result;
+        this.connection = connection;
+    }
+
     /**
      * ResultSetをそのまま取得します。
      *
@@ -32,12 +67,335 @@ public class QueryResult<T>
         return this.result;
     }
 
+    /**
+     * 現在行を参照する {@link ResultRow} を取得します。
+     * {@link ResultRow} は常にカーソルの現在行を参照するため、同じインスタンスがすべての行で使い回されます。
+     *
+     * @return 現在行
+     */
+    public ResultRow getRow()
+    {
+        if (this.row == null)
+            this.row = new ResultRow(this.result, this.connection, true, this.getColumnIndex());
+        return this.row;
+    }
+
+    private ColumnIndex getColumnIndex()
+    {
+        if (this.columnIndex == null)
+        {
+            try
+            {
+                this.columnIndex = ColumnIndex.of(this.result);
+            }
+            catch (SQLException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+        return this.columnIndex;
+    }
+
+    private int resolveColumn(String columnLabel)
+    {
+        int index = this.getColumnIndex().indexOf(columnLabel);
+        if (index > 0)
+            return index;
+
+        try
+        {
+            index = this.result.findColumn(columnLabel);
+            this.columnIndex.put(columnLabel, index);
+            return index;
+        }
+        catch (SQLException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 32ビット整数の列を取得します。
+     *
+     * @param columnLabel 列ラベル
+     * @return 列番号を解決済みの列
+     */
+    public IntColumn intColumn(String columnLabel)
+    {
+        return new IntColumn(columnLabel, this.resolveColumn(columnLabel));
+    }
+
+    /**
+     * 64ビット整数の列を取得します。
+     *
+     * @param columnLabel 列ラベル
+     * @return 列番号を解決済みの列
+     */
+    public LongColumn longColumn(String columnLabel)
+    {
+        return new LongColumn(columnLabel, this.resolveColumn(columnLabel));
+    }
+
+    /**
+     * 64ビット浮動小数点数の列を取得します。
+     *
+     * @param columnLabel 列ラベル
+     * @return 列番号を解決済みの列
+     */
+    public DoubleColumn doubleColumn(String columnLabel)
+    {
+        return new DoubleColumn(columnLabel, this.resolveColumn(columnLabel));
+    }
+
+    /**
+     * 真偽値の列を取得します。
+     *
+     * @param columnLabel 列ラベル
+     * @return 列番号を解決済みの列
+     */
+    public BooleanColumn booleanColumn(String columnLabel)
+    {
+        return new BooleanColumn(columnLabel, this.resolveColumn(columnLabel));
+    }
+
+    /**
+     * 文字列の列を取得します。
+     *
+     * @param columnLabel 列ラベル
+     * @return 列番号を解決済みの列
+     */
+    public StringColumn stringColumn(String columnLabel)
+    {
+        return new StringColumn(columnLabel, this.resolveColumn(columnLabel));
+    }
+
+    /**
+     * 指定したクラスへの変換に使用する、列構成に合わせてコンパイルされたマッパーを取得します。
+     *
+     * @param type 変換後の型
+     * @param <U>  変換後の型
+     * @return マッパー
+     * @see CompiledRowMapper
+     */
+    public <U> CompiledRowMapper<U> rowMapper(Class<U> type)
+    {
+        return CompiledRowMapper.of(type, this.result);
+    }
+
+    /**
+     * 残りの行を指定したクラスのインスタンスに変換します。
+     * 列とコンストラクタ引数またはフィールドの対応は、クラスと列構成の組ごとに一度だけ解決されます。
+     *
+     * @param type 変換後の型
+     * @param <U>  変換後の型
+     * @return 変換されたList
+     * @see CompiledRowMapper
+     */
+    public <U> ArrayList<U> mapTo(Class<U> type)
+    {
+        CompiledRowMapper<U> mapper = this.rowMapper(type);
+        ArrayList<U> list = new ArrayList<>();
+
+        try
+        {
+            while (this.result.next())
+                list.add(mapper.map(this.result));
+        }
+        catch (SQLException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        finally
+        {
+            this.rowCount += list.size();
+        }
+
+        return list;
+    }
+
+    /**
+     * 残りの行の指定した列を、ボクシングせずに32ビット整数の配列として取得します。SQLのNULLは 0 になります。
+     *
+     * @param columnLabel 列ラベル
+     * @return 値の配列
+     */
+    public int[] toIntArray(String columnLabel)
+    {
+        int index = this.resolveColumn(columnLabel);
+        int[] values = new int[INITIAL_ARRAY_CAPACITY];
+        int size = 0;
+
+        try
+        {
+            while (this.result.next())
+            {
+                if (size == values.length)
+                    values = Arrays.copyOf(values, size << 1);
+                values[size++] = this.result.getInt(index);
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        finally
+        {
+            this.rowCount += size;
+        }
+
+        return size == values.length ? values : Arrays.copyOf(values, size);
+    }
+
+    /**
+     * 残りの行の指定した列を、ボクシングせずに64ビット整数の配列として取得します。SQLのNULLは 0 になります。
+     *
+     * @param columnLabel 列ラベル
+     * @return 値の配列
+     */
+    public long[] toLongArray(String columnLabel)
+    {
+        int index = this.resolveColumn(columnLabel);
+        long[] values = new long[INITIAL_ARRAY_CAPACITY];
+        int size = 0;
+
+        try
+        {
+            while (this.result.next())
+            {
+                if (size == values.length)
+                    values = Arrays.copyOf(values, size << 1);
+                values[size++] = this.result.getLong(index);
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        finally
+        {
+            this.rowCount += size;
+        }
+
+        return size == values.length ? values : Arrays.copyOf(values, size);
+    }
+
+    /**
+     * 残りの行の指定した列を、ボクシングせずに64ビット浮動小数点数の配列として取得します。SQLのNULLは 0 になります。
+     *
+     * @param columnLabel 列ラベル
+     * @return 値の配列
+     */
+    public double[] toDoubleArray(String columnLabel)
+    {
+        int index = this.resolveColumn(columnLabel);
+        double[] values = new double[INITIAL_ARRAY_CAPACITY];
+        int size = 0;
+
+        try
+        {
+            while (this.result.next())
+            {
+                if (size == values.length)
+                    values = Arrays.copyOf(values, size << 1);
+                values[size++] = this.result.getDouble(index);
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        finally
+        {
+            this.rowCount += size;
+        }
+
+        return size == values.length ? values : Arrays.copyOf(values, size);
+    }
+
+    /**
+     * 残りの行の複数の列を、列ごとの配列として取得します。
+     *
+     * @param columns {@link #intColumn(String)} などで取得した列
+     * @return 列ごとの配列
+     * @see ColumnArrays
+     */
+    public ColumnArrays toColumnArrays(Column... columns)
+    {
+        ColumnArrays arrays = new ColumnArrays(columns.clone());
+
+        try
+        {
+            arrays.readAll(this.result);
+        }
+        catch (SQLException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        finally
+        {
+            this.rowCount += arrays.size();
+        }
+
+        return arrays;
+    }
+
+    /**
+     * 残りの行をすべて読み込んでコネクションから切り離したスナップショットを作成し、この結果を閉じます。
+     *
+     * @param closeConnection 結果を取得したコネクションも閉じる(プールに返却する)かどうか
+     * @return スナップショット
+     * @see ResultSnapshot
+     */
+    public ResultSnapshot materialize(boolean closeConnection)
+    {
+        try
+        {
+            ResultSnapshot snapshot = ResultSnapshot.of(this.result);
+            this.rowCount += snapshot.size();
+            return snapshot;
+        }
+        catch (SQLException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        finally
+        {
+            try
+            {
+                this.close();
+                if (closeConnection && this.connection != null)
+                    this.connection.close();
+            }
+            catch (SQLException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 残りの行をすべて読み込んでコネクションから切り離したスナップショットを作成し、この結果とコネクションを閉じます。
+     * 行を処理している間、コネクションをプールから借りたままにしないために使用します。
+     *
+     * @return スナップショット
+     * @see ResultSnapshot
+     */
+    public ResultSnapshot materialize()
+    {
+        return this.materialize(true);
+    }
+
     /**
      * この結果を解放します。
      */
     public void close() throws SQLException
     {
+        this.reportRows();
         this.result.close();
+        if (this.leakHandle != null)
+            this.leakHandle.release();
+        if (this.running != null)
+            this.running.end();
     }
 
     /**
@@ -53,13 +411,18 @@ public class QueryResult<T>
 
         try
         {
-            while (this.result.next() && !(max == -1 || list.size() >= max))
-                list.add(resultMapper.apply(new ResultRow(this.result, true)));
+            // 上限に達した後に余分な行を読み進めないよう、件数を先に確認する
+            while ((max == -1 || list.size() < max) && this.result.next())
+                list.add(resultMapper.apply(this.getRow()));
         }
         catch (SQLException e)
         {
             throw new IllegalStateException(e);
         }
+        finally
+        {
+            this.rowCount += list.size();
+        }
 
         return list;
     }
@@ -82,10 +445,19 @@ public class QueryResult<T>
      */
     public Stream<ResultRow> stream(boolean closeConnectionOnException)
     {
-        return StreamSupport.stream(
-                new QueryResultSpliterator(this.result, closeConnectionOnException),
-                false
-        );
+        QueryResultSpliterator spliterator;
+        if (closeConnectionOnException)
+            spliterator = new QueryResultSpliterator(this.result, this.connection, true, this.getRow());
+        else
+            spliterator = new QueryResultSpliterator(
+                    this.result,
+                    this.connection,
+                    false,
+                    new ResultRow(this.result, this.connection, false, this.getColumnIndex())
+            );
+
+        spliterator.owner = this;
+        return StreamSupport.stream(spliterator, false);
     }
 
     /**
@@ -98,6 +470,39 @@ public class QueryResult<T>
         return this.stream(true);
     }
 
+    /**
+     * 残りのすべての行に対して処理を行います。
+     * 行ごとのオブジェクトの生成は行われず、処理には常に同じ {@link ResultRow} が渡されます。
+     * 渡された {@link ResultRow} を保持しても、カーソルが進むと別の行を参照する点に注意してください。
+     *
+     * @param action 行ごとの処理
+     * @return 処理した行数
+     */
+    public long forEachRow(Consumer<? super ResultRow> action)
+    {
+        ResultRow row = this.getRow();
+        long count = 0;
+
+        try
+        {
+            while (this.result.next())
+            {
+                action.accept(row);
+                count++;
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        finally
+        {
+            this.rowCount += count;
+        }
+
+        return count;
+    }
+
     /**
      * 次の行に移動します。
      *
@@ -107,7 +512,10 @@ public class QueryResult<T>
     {
         try
         {
-            return this.result.next();
+            if (!this.result.next())
+                return false;
+            this.rowCount++;
+            return true;
         }
         catch (SQLException e)
         {
@@ -115,6 +523,23 @@ public class QueryResult<T>
         }
     }
 
+    void countRow()
+    {
+        this.rowCount++;
+    }
+
+    /**
+     * 読み込んだ行数を統計情報に加算します。加算した行数は再び加算されません。
+     */
+    void reportRows()
+    {
+        if (this.metrics == null || this.rowCount == 0)
+            return;
+
+        this.metrics.addRows(this.query, this.rowCount);
+        this.rowCount = 0;
+    }
+
     /**
      * 行の内容をマップして返します。
      *
@@ -125,6 +550,6 @@ public class QueryResult<T>
         if (this.mapper == null)
             throw new IllegalStateException("Mapper is not set.");
 
-        return this.mapper.apply(new ResultRow(this.result, true));
+        return this.mapper.apply(this.getRow());
     }
 }
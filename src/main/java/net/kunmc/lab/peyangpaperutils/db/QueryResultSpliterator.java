@@ -1,5 +1,8 @@
 package net.kunmc.lab.peyangpaperutils.db;
 
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Spliterator;
@@ -8,12 +11,33 @@ import java.util.function.Consumer;
 class QueryResultSpliterator implements Spliterator<ResultRow>
 {
     private final ResultSet result;
+    private final Connection connection;
     private final boolean closeConnectionOnException;
+    private final ResultRow row;
+    // 読み込んだ行数を数える結果
+    @Nullable
+    QueryResult<?> owner;
+
+    public QueryResultSpliterator(ResultSet result, Connection connection, boolean closeConnectionOnException)
+    {
+        this(result, connection, closeConnectionOnException, new ResultRow(result, connection, closeConnectionOnException));
+    }
 
-    public QueryResultSpliterator(ResultSet result, boolean closeConnectionOnException)
+    /**
+     * 行の参照を使い回すSpliteratorを生成します。
+     * {@link ResultRow} は常にカーソルの現在行を参照するため、すべての行で同じインスタンスが渡されます。
+     *
+     * @param result                     ResultSet
+     * @param connection                 結果を取得したコネクション
+     * @param closeConnectionOnException 例外発生時にコネクションを閉じるかどうか
+     * @param row                        使い回す行
+     */
+    QueryResultSpliterator(ResultSet result, Connection connection, boolean closeConnectionOnException, ResultRow row)
     {
         this.result = result;
+        this.connection = connection;
         this.closeConnectionOnException = closeConnectionOnException;
+        this.row = row;
     }
 
     @Override
@@ -23,7 +47,9 @@ class QueryResultSpliterator implements Spliterator<ResultRow>
         {
             if (this.result.next())
             {
-                action.accept(new ResultRow(this.result, this.closeConnectionOnException));
+                if (this.owner != null)
+                    this.owner.countRow();
+                action.accept(this.row);
                 return true;
             }
             else
@@ -31,19 +57,45 @@ class QueryResultSpliterator implements Spliterator<ResultRow>
         }
         catch (SQLException e)
         {
-            if (this.closeConnectionOnException)
+            throw this.handleException(e);
+        }
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super ResultRow> action)
+    {
+        try
+        {
+            while (this.result.next())
             {
-                try
-                {
+                if (this.owner != null)
+                    this.owner.countRow();
+                action.accept(this.row);
+            }
+        }
+        catch (SQLException e)
+        {
+            throw this.handleException(e);
+        }
+    }
+
+    private IllegalStateException handleException(SQLException e)
+    {
+        if (this.closeConnectionOnException)
+        {
+            try
+            {
+                if (this.connection != null)
+                    this.connection.close();
+                else
                     this.result.getStatement().getConnection().close();
-                }
-                catch (SQLException e1)
-                {
-                    e1.printStackTrace();
-                }
             }
-            throw new IllegalStateException(e);
+            catch (SQLException e1)
+            {
+                e1.printStackTrace();
+            }
         }
+        return new IllegalStateException(e);
     }
 
     @Override
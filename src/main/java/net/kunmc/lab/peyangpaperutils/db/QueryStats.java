@@ -0,0 +1,101 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import lombok.Value;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link QueryMetrics} で記録された、正規化後のSQL文ごとの統計情報のスナップショットです。
+ */
+@Value
+public class QueryStats
+{
+    /**
+     * 正規化されたSQL文です。
+     */
+    String sql;
+    /**
+     * 実行回数です。
+     */
+    long count;
+    /**
+     * 例外が発生した回数です。
+     */
+    long errorCount;
+    /**
+     * 更新件数、または読み込んだ行数の合計です。
+     * 行数は {@link Transaction#isExists()} と {@link Transaction#executeQueryAsync(java.util.function.Function)} でのみ記録されます。
+     */
+    long rowCount;
+    /**
+     * 実行時間の合計(ナノ秒)です。
+     */
+    long totalNanos;
+    /**
+     * 実行時間の最大値(ナノ秒)です。
+     */
+    long maxNanos;
+    /**
+     * 実行時間のヒストグラムです。要素 {@code i} はマイクロ秒で {@code [2^(i-1), 2^i)} の範囲の実行回数です。
+     */
+    long[] histogram;
+
+    /**
+     * 実行時間の平均値(ミリ秒)を取得します。
+     *
+     * @return 平均実行時間
+     */
+    public double getAverageMillis()
+    {
+        if (this.count == 0)
+            return 0.0;
+        return (double) this.totalNanos / this.count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * 実行時間の最大値(ミリ秒)を取得します。
+     *
+     * @return 最大実行時間
+     */
+    public double getMaxMillis()
+    {
+        return (double) this.maxNanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * 実行時間のパーセンタイル(ミリ秒)を、ヒストグラムのバケットの上限で近似して取得します。
+     *
+     * @param percentile パーセンタイル(0.0 ~ 1.0)
+     * @return パーセンタイル値
+     */
+    public double getPercentileMillis(double percentile)
+    {
+        if (percentile < 0.0 || percentile > 1.0)
+            throw new IllegalArgumentException("percentile must be between 0.0 and 1.0.");
+        if (this.count == 0)
+            return 0.0;
+
+        long rank = Math.max(1, (long) Math.ceil(this.count * percentile));
+        long seen = 0;
+        for (int i = 0; i < this.histogram.length; i++)
+        {
+            seen += this.histogram[i];
+            if (seen >= rank)
+                return Math.min((1L << i) / 1000.0, this.getMaxMillis());
+        }
+
+        return this.getMaxMillis();
+    }
+
+    /**
+     * 例外が発生した割合を取得します。
+     *
+     * @return エラー率(0.0 ~ 1.0)
+     */
+    public double getErrorRatio()
+    {
+        if (this.count == 0)
+            return 0.0;
+        return (double) this.errorCount / this.count;
+    }
+}
@@ -0,0 +1,436 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import org.intellij.lang.annotations.Language;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * 読み込みを読み込み専用のレプリカに、書き込みをプライマリに振り分ける {@link DataSource} です。
+ * <p>
+ * このクラス自体を {@link DataSource} として使用した場合はプライマリに接続するため、
+ * {@link Transaction#create(DataSource, String)} や {@link Transaction#doTransaction(TransactionRun)} はそのままプライマリで実行されます。
+ * {@link #read(String)} で作成したトランザクションのみがレプリカで実行されます。
+ * レプリカのコネクションは {@link Connection#setReadOnly(boolean)} で読み込み専用にされるため、誤って書き込むと失敗します。
+ * 接続後に変更できないドライバでは、レプリカのURLやドライバの設定で読み込み専用にしてください。
+ * {@link ConnectionPool} は返却時に元の設定に戻すため、読み込み専用の設定が他の利用者に残ることはありません。
+ * レプリカからコネクションを取得できない場合は、他のレプリカ、最後にプライマリの順に試します。
+ * <p>
+ * {@link #write(UUID, String)} で書き込んだプレイヤの読み込みは、{@link #stickiness(long, TimeUnit)} で指定した時間だけプライマリに振り分けられ、
+ * レプリカの反映遅れにより直前の書き込みが見えなくなることを防ぎます。
+ *
+ * <pre>
+ *     ReplicaRouter router = new ReplicaRouter(primaryPool, Arrays.asList(replicaPool1, replicaPool2))
+ *             .balance(ReplicaRouter.Balance.LEAST_LOADED)
+ *             .stickiness(5, TimeUnit.SECONDS);
+ *
+ *     router.write(uuid, "UPDATE players SET coins = ? WHERE uuid = ?")
+ *             .set(1, coins).set(2, uuid.toString())
+ *             .executeUpdate();
+ *
+ *     boolean exists = router.read(uuid, "SELECT 1 FROM players WHERE uuid = ?")  // 5秒間はプライマリ
+ *             .set(1, uuid.toString())
+ *             .isExists();
+ * </pre>
+ */
+public class ReplicaRouter implements DataSource
+{
+    private final DataSource primary;
+    private final DataSource[] replicas;
+    private final AtomicInteger cursor;
+    private final ConcurrentHashMap<UUID, Long> lastWrites;
+
+    private final LongAdder replicaReads;
+    private final LongAdder stickyReads;
+    private final LongAdder fallbackReads;
+    private final LongAdder replicaFailures;
+    private final LongAdder writes;
+    private final LongAdder[] readsPerReplica;
+    // 読み込み専用への変更をドライバが拒否したレプリカ。以降は変更を試みない
+    private final boolean[] readOnlyRefused;
+
+    private Balance balance;
+    private long stickinessNanos;
+
+    /**
+     * ルーターを生成します。
+     *
+     * @param primary  書き込み用のデータソース
+     * @param replicas 読み込み専用のデータソース。空の場合、読み込みもプライマリで行います。
+     */
+    public ReplicaRouter(@NotNull DataSource primary, @NotNull List<? extends DataSource> replicas)
+    {
+        this.primary = primary;
+        this.replicas = replicas.toArray(new DataSource[0]);
+        this.cursor = new AtomicInteger();
+        this.lastWrites = new ConcurrentHashMap<>();
+
+        this.replicaReads = new LongAdder();
+        this.stickyReads = new LongAdder();
+        this.fallbackReads = new LongAdder();
+        this.replicaFailures = new LongAdder();
+        this.writes = new LongAdder();
+        this.readsPerReplica = new LongAdder[this.replicas.length];
+        this.readOnlyRefused = new boolean[this.replicas.length];
+        for (int i = 0; i < this.readsPerReplica.length; i++)
+            this.readsPerReplica[i] = new LongAdder();
+
+        this.balance = Balance.ROUND_ROBIN;
+        this.stickinessNanos = 0L;
+    }
+
+    /**
+     * レプリカの選び方を設定します。デフォルトは {@link Balance#ROUND_ROBIN} です。
+     *
+     * @param balance レプリカの選び方
+     * @return このルーター
+     */
+    public ReplicaRouter balance(@NotNull Balance balance)
+    {
+        this.balance = balance;
+        return this;
+    }
+
+    /**
+     * 書き込んだプレイヤの読み込みをプライマリに振り分ける時間を設定します。0 の場合は振り分けません。
+     * 時間は {@link #write(UUID, String)} でトランザクションを開始した時点から数えます。
+     *
+     * @param duration 時間
+     * @param unit     時間の単位
+     * @return このルーター
+     */
+    public ReplicaRouter stickiness(long duration, @NotNull TimeUnit unit)
+    {
+        this.stickinessNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    /**
+     * プライマリのデータソースを取得します。
+     *
+     * @return プライマリのデータソース
+     */
+    public DataSource getPrimary()
+    {
+        return this.primary;
+    }
+
+    /**
+     * プレイヤが書き込んだことを記録し、一定時間そのプレイヤの読み込みをプライマリに振り分けます。
+     *
+     * @param player プレイヤのUUID
+     */
+    public void markWritten(@NotNull UUID player)
+    {
+        if (this.stickinessNanos <= 0)
+            return;
+
+        long now = System.nanoTime();
+        this.lastWrites.put(player, now);
+
+        // 古い記録が溜まりすぎないよう、ある程度増えたら期限切れのものを掃除する
+        if (this.lastWrites.size() > 4096)
+            this.lastWrites.entrySet().removeIf(entry -> now - entry.getValue() >= this.stickinessNanos);
+    }
+
+    private boolean isSticky(@Nullable UUID player)
+    {
+        if (player == null || this.stickinessNanos <= 0)
+            return false;
+
+        Long lastWrite = this.lastWrites.get(player);
+        if (lastWrite == null)
+            return false;
+
+        if (System.nanoTime() - lastWrite < this.stickinessNanos)
+            return true;
+
+        this.lastWrites.remove(player, lastWrite);
+        return false;
+    }
+
+    private int selectReplica()
+    {
+        int start = Math.floorMod(this.cursor.getAndIncrement(), this.replicas.length);
+        if (this.balance == Balance.ROUND_ROBIN)
+            return start;
+
+        int selected = start;
+        long minimumLoad = Long.MAX_VALUE;
+        for (int i = 0; i < this.replicas.length; i++)
+        {
+            int index = (start + i) % this.replicas.length;
+            long load = getLoad(this.replicas[index]);
+            if (load < minimumLoad)
+            {
+                minimumLoad = load;
+                selected = index;
+            }
+        }
+        return selected;
+    }
+
+    private static long getLoad(DataSource dataSource)
+    {
+        if (!(dataSource instanceof ConnectionPool))
+            return 0L;
+
+        PoolStats stats = ((ConnectionPool) dataSource).getStats();
+        return stats.getActiveConnections() + stats.getWaitingThreads();
+    }
+
+    /**
+     * 読み込み用のコネクションを取得します。
+     *
+     * @param player 読み込むプレイヤのUUID。直前に書き込んだプレイヤの場合はプライマリから取得します。
+     * @return コネクション
+     * @throws SQLException プライマリからも取得できなかった場合
+     */
+    public Connection getReadConnection(@Nullable UUID player) throws SQLException
+    {
+        if (this.replicas.length == 0)
+            return this.primary.getConnection();
+
+        if (this.isSticky(player))
+        {
+            this.stickyReads.increment();
+            return this.primary.getConnection();
+        }
+
+        int selected = this.selectReplica();
+        SQLException failure = null;
+        for (int i = 0; i < this.replicas.length; i++)
+        {
+            int index = (selected + i) % this.replicas.length;
+            try
+            {
+                Connection connection = this.replicas[index].getConnection();
+                this.markReadOnly(connection, index);
+                this.replicaReads.increment();
+                this.readsPerReplica[index].increment();
+                return connection;
+            }
+            catch (SQLException e)
+            {
+                this.replicaFailures.increment();
+                if (failure == null)
+                    failure = e;
+                else
+                    failure.addSuppressed(e);
+            }
+        }
+
+        this.fallbackReads.increment();
+        try
+        {
+            return this.primary.getConnection();
+        }
+        catch (SQLException e)
+        {
+            e.addSuppressed(failure);
+            throw e;
+        }
+    }
+
+    /**
+     * 誤って書き込みに使用された場合にレプリカへ書き込まれず失敗するよう、コネクションを読み込み専用にします。
+     * 接続後に変更できないドライバ(SQLite など)では、読み込み専用にせずにそのまま使用します。
+     */
+    private void markReadOnly(Connection connection, int index)
+    {
+        if (this.readOnlyRefused[index])
+            return;
+
+        try
+        {
+            if (!connection.isReadOnly())
+                connection.setReadOnly(true);
+        }
+        catch (SQLException e)
+        {
+            this.readOnlyRefused[index] = true;
+        }
+    }
+
+    private static Transaction create(Connection connection, @Nullable String sql)
+    {
+        try
+        {
+            return Transaction.create(connection, sql);
+        }
+        catch (RuntimeException e)
+        {
+            try
+            {
+                connection.close();
+            }
+            catch (SQLException e1)
+            {
+                e.addSuppressed(e1);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * レプリカで読み込み用のトランザクションを開始します。
+     * {@link Transaction#executeQuery()} や {@link Transaction#isExists()} などの読み込みのみに使用してください。
+     *
+     * @param sql SQL文
+     * @return トランザクション
+     */
+    public Transaction read(@Nullable @Language("sql") String sql)
+    {
+        return this.read(null, sql);
+    }
+
+    /**
+     * レプリカで読み込み用のトランザクションを開始します。
+     * プレイヤが直前に {@link #write(UUID, String)} で書き込んでいた場合は、プライマリで開始します。
+     *
+     * @param player 読み込むプレイヤのUUID
+     * @param sql    SQL文
+     * @return トランザクション
+     */
+    public Transaction read(@Nullable UUID player, @Nullable @Language("sql") String sql)
+    {
+        try
+        {
+            return create(this.getReadConnection(player), sql);
+        }
+        catch (SQLException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * プライマリでトランザクションを開始します。
+     *
+     * @param sql SQL文
+     * @return トランザクション
+     */
+    public Transaction write(@Nullable @Language("sql") String sql)
+    {
+        this.writes.increment();
+        return Transaction.create(this.primary, sql);
+    }
+
+    /**
+     * プライマリでトランザクションを開始し、以降しばらくそのプレイヤの読み込みをプライマリに振り分けます。
+     *
+     * @param player 書き込むプレイヤのUUID
+     * @param sql    SQL文
+     * @return トランザクション
+     */
+    public Transaction write(@NotNull UUID player, @Nullable @Language("sql") String sql)
+    {
+        this.markWritten(player);
+        return this.write(sql);
+    }
+
+    /**
+     * 統計情報を取得します。
+     *
+     * @return 統計情報
+     */
+    public RouterStats getStats()
+    {
+        long[] reads = new long[this.readsPerReplica.length];
+        for (int i = 0; i < reads.length; i++)
+            reads[i] = this.readsPerReplica[i].sum();
+
+        return new RouterStats(
+                this.replicaReads.sum(),
+                this.stickyReads.sum(),
+                this.fallbackReads.sum(),
+                this.replicaFailures.sum(),
+                this.writes.sum(),
+                reads
+        );
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException
+    {
+        return this.primary.getConnection();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException
+    {
+        return this.primary.getConnection(username, password);
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException
+    {
+        return this.primary.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException
+    {
+        this.primary.setLogWriter(out);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException
+    {
+        return this.primary.getLoginTimeout();
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException
+    {
+        this.primary.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException
+    {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException
+    {
+        if (iface.isInstance(this))
+            return iface.cast(this);
+        return this.primary.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException
+    {
+        return iface.isInstance(this) || this.primary.isWrapperFor(iface);
+    }
+
+    /**
+     * レプリカの選び方です。
+     */
+    public enum Balance
+    {
+        /**
+         * 順番に選びます。
+         */
+        ROUND_ROBIN,
+        /**
+         * 使用中のコネクションと待機中のスレッドが最も少ないものを選びます。
+         * {@link ConnectionPool} 以外のレプリカは負荷 0 として扱います。
+         */
+        LEAST_LOADED
+    }
+}
@@ -1,7 +1,8 @@
 package net.kunmc.lab.peyangpaperutils.db;
 
-import lombok.AllArgsConstructor;
+import org.jetbrains.annotations.Nullable;
 
+import java.sql.Connection;
 import java.sql.Date;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -12,11 +13,66 @@ import java.sql.Timestamp;
  * {@link Transaction} で取得した {@link ResultSet} の行を表すクラスです。
  */
 @SuppressWarnings("unused")
-@AllArgsConstructor
 public class ResultRow implements AutoCloseable
 {
     private final ResultSet result;
+    @Nullable
+    private final Connection connection;
     private final boolean closeConnectionOnException;
+    private ColumnIndex columnIndex;
+
+    public ResultRow(ResultSet result, boolean closeConnectionOnException)
+    {
+        this(result, null, closeConnectionOnException);
+    }
+
+    /**
+     * 行を生成します。
+     *
+     * @param result                     ResultSet
+     * @param connection                 結果を取得したコネクション。nullの場合は {@link ResultSet#getStatement()} から取得します。
+     * @param closeConnectionOnException 例外発生時にコネクションを閉じるかどうか
+     */
+    public ResultRow(ResultSet result, @Nullable Connection connection, boolean closeConnectionOnException)
+    {
+        this(result, connection, closeConnectionOnException, null);
+    }
+
+    ResultRow(ResultSet result, @Nullable Connection connection, boolean closeConnectionOnException,
+              @Nullable ColumnIndex columnIndex)
+    {
+        this.result = result;
+        this.connection = connection;
+        this.closeConnectionOnException = closeConnectionOnException;
+        this.columnIndex = columnIndex;
+    }
+
+    private int indexOf(String columnLabel) throws SQLException
+    {
+        if (this.columnIndex == null)
+            this.columnIndex = ColumnIndex.of(this.result);
+
+        int index = this.columnIndex.indexOf(columnLabel);
+        if (index < 1)
+        {
+            // 修飾されたラベルなど、メタデータにない表記はドライバに解決させる
+            index = this.result.findColumn(columnLabel);
+            this.columnIndex.put(columnLabel, index);
+        }
+        return index;
+    }
+
+    private Connection getConnection() throws SQLException
+    {
+        if (this.connection != null)
+            return this.connection;
+        return this.result.getStatement().getConnection();
+    }
+
+    ResultSet getResultSet()
+    {
+        return this.result;
+    }
 
     private void handleException()
     {
@@ -24,7 +80,7 @@ public class ResultRow implements AutoCloseable
         {
             try
             {
-                this.result.getStatement().getConnection().close();
+                this.getConnection().close();
             }
             catch (SQLException e)
             {
@@ -50,7 +106,7 @@ public class ResultRow implements AutoCloseable
     {
         try
         {
-            this.result.getStatement().getConnection().close();
+            this.getConnection().close();
         }
         catch (SQLException e)
         {
@@ -62,7 +118,7 @@ public class ResultRow implements AutoCloseable
     {
         try
         {
-            return this.result.getString(columnLabel);
+            return this.result.getString(this.indexOf(columnLabel));
         }
         catch (SQLException e)
         {
@@ -75,7 +131,7 @@ public class ResultRow implements AutoCloseable
     {
         try
         {
-            return this.result.getInt(columnLabel);
+            return this.result.getInt(this.indexOf(columnLabel));
         }
         catch (SQLException e)
         {
@@ -88,7 +144,7 @@ public class ResultRow implements AutoCloseable
     {
         try
         {
-            return this.result.getLong(columnLabel);
+            return this.result.getLong(this.indexOf(columnLabel));
         }
         catch (SQLException e)
         {
@@ -101,7 +157,7 @@ public class ResultRow implements AutoCloseable
     {
         try
         {
-            return this.result.getFloat(columnLabel);
+            return this.result.getFloat(this.indexOf(columnLabel));
         }
         catch (SQLException e)
         {
@@ -114,7 +170,7 @@ public class ResultRow implements AutoCloseable
     {
         try
         {
-            return this.result.getDouble(columnLabel);
+            return this.result.getDouble(this.indexOf(columnLabel));
         }
         catch (SQLException e)
         {
@@ -127,7 +183,7 @@ public class ResultRow implements AutoCloseable
     {
         try
         {
-            return this.result.getBoolean(columnLabel);
+            return this.result.getBoolean(this.indexOf(columnLabel));
         }
         catch (SQLException e)
         {
@@ -140,7 +196,7 @@ public class ResultRow implements AutoCloseable
     {
         try
         {
-            return this.result.getDate(columnLabel);
+            return this.result.getDate(this.indexOf(columnLabel));
         }
         catch (SQLException e)
         {
@@ -153,7 +209,7 @@ public class ResultRow implements AutoCloseable
     {
         try
         {
-            return this.result.getTime(columnLabel);
+            return this.result.getTime(this.indexOf(columnLabel));
         }
         catch (SQLException e)
         {
@@ -166,7 +222,20 @@ public class ResultRow implements AutoCloseable
     {
         try
         {
-            return this.result.getTimestamp(columnLabel);
+            return this.result.getTimestamp(this.indexOf(columnLabel));
+        }
+        catch (SQLException e)
+        {
+            this.handleException();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public byte[] getBytes(String columnLabel)
+    {
+        try
+        {
+            return this.result.getBytes(this.indexOf(columnLabel));
         }
         catch (SQLException e)
         {
@@ -179,7 +248,59 @@ public class ResultRow implements AutoCloseable
     {
         try
         {
-            return this.result.getObject(columnLabel);
+            return this.result.getObject(this.indexOf(columnLabel));
+        }
+        catch (SQLException e)
+        {
+            this.handleException();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String getString(int columnIndex)
+    {
+        try
+        {
+            return this.result.getString(columnIndex);
+        }
+        catch (SQLException e)
+        {
+            this.handleException();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public int getInt(int columnIndex)
+    {
+        try
+        {
+            return this.result.getInt(columnIndex);
+        }
+        catch (SQLException e)
+        {
+            this.handleException();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public long getLong(int columnIndex)
+    {
+        try
+        {
+            return this.result.getLong(columnIndex);
+        }
+        catch (SQLException e)
+        {
+            this.handleException();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public float getFloat(int columnIndex)
+    {
+        try
+        {
+            return this.result.getFloat(columnIndex);
         }
         catch (SQLException e)
         {
@@ -188,4 +309,94 @@ public class ResultRow implements AutoCloseable
         }
     }
 
+    public double getDouble(int columnIndex)
+    {
+        try
+        {
+            return this.result.getDouble(columnIndex);
+        }
+        catch (SQLException e)
+        {
+            this.handleException();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public boolean getBoolean(int columnIndex)
+    {
+        try
+        {
+            return this.result.getBoolean(columnIndex);
+        }
+        catch (SQLException e)
+        {
+            this.handleException();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Date getDate(int columnIndex)
+    {
+        try
+        {
+            return this.result.getDate(columnIndex);
+        }
+        catch (SQLException e)
+        {
+            this.handleException();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Time getTime(int columnIndex)
+    {
+        try
+        {
+            return this.result.getTime(columnIndex);
+        }
+        catch (SQLException e)
+        {
+            this.handleException();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Timestamp getTimestamp(int columnIndex)
+    {
+        try
+        {
+            return this.result.getTimestamp(columnIndex);
+        }
+        catch (SQLException e)
+        {
+            this.handleException();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public byte[] getBytes(int columnIndex)
+    {
+        try
+        {
+            return this.result.getBytes(columnIndex);
+        }
+        catch (SQLException e)
+        {
+            this.handleException();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Object getObject(int columnIndex)
+    {
+        try
+        {
+            return this.result.getObject(columnIndex);
+        }
+        catch (SQLException e)
+        {
+            this.handleException();
+            throw new IllegalStateException(e);
+        }
+    }
 }
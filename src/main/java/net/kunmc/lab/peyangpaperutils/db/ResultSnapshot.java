@@ -0,0 +1,795 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * コネクションから切り離された、変更できないクエリ結果のスナップショットです。
+ * {@link QueryResult#materialize()} で生成します。
+ * <p>
+ * 値は列ごとにまとめて保持され、数値と真偽値の列はプリミティブ配列に、文字列の列は辞書と番号の配列に格納されます。
+ * 同じ文字列が何度も現れる列(ワールド名や種類など)は、文字列を一つだけ保持します。
+ * 生成後は変更されないため、複数のスレッドから同時に読み込んだり、キャッシュしたりできます。
+ *
+ * <pre>
+ *     ResultSnapshot snapshot = Transaction.create(pool, "SELECT uuid, world, x, z FROM homes")
+ *             .executeQuery()
+ *             .materialize();  // ここでコネクションは返却される
+ *
+ *     snapshot.forEachRow(row -&gt; homes.add(new Home(row.getString("uuid"), row.getString("world"), row.getInt("x"), row.getInt("z"))));
+ * </pre>
+ */
+public final class ResultSnapshot
+{
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final byte KIND_INT = 0;
+    private static final byte KIND_LONG = 1;
+    private static final byte KIND_DOUBLE = 2;
+    private static final byte KIND_BOOLEAN = 3;
+    private static final byte KIND_STRING = 4;
+    private static final byte KIND_OBJECT = 5;
+
+    private final String[] labels;
+    private final HashMap<String, Integer> indexes;
+    private final int size;
+
+    private final byte[] kinds;
+    // 列ごとの値の配列。種類に応じて int[], long[], double[], boolean[], int[](辞書の番号), Object[] のいずれか
+    private final Object[] values;
+    // 文字列の列の辞書。それ以外の列は null
+    private final String[][] dictionaries;
+    // NULL の行。NULL を含まない列は null
+    private final BitSet[] nulls;
+
+    private ResultSnapshot(String[] labels, int size, byte[] kinds, Object[] values, String[][] dictionaries, BitSet[] nulls)
+    {
+        this.labels = labels;
+        this.size = size;
+        this.kinds = kinds;
+        this.values = values;
+        this.dictionaries = dictionaries;
+        this.nulls = nulls;
+
+        this.indexes = new HashMap<>(labels.length * 4);
+        for (int i = 0; i < labels.length; i++)
+        {
+            this.indexes.putIfAbsent(labels[i], i);
+            this.indexes.putIfAbsent(labels[i].toLowerCase(Locale.ROOT), i);
+        }
+    }
+
+    /**
+     * 結果の残りの行をすべて読み込み、スナップショットを生成します。{@link ResultSet} は閉じません。
+     *
+     * @param result ResultSet
+     * @return スナップショット
+     * @throws SQLException 読み込みに失敗した場合
+     */
+    static ResultSnapshot of(ResultSet result) throws SQLException
+    {
+        ResultSetMetaData metaData = result.getMetaData();
+        int columnCount = metaData.getColumnCount();
+
+        String[] labels = new String[columnCount];
+        byte[] kinds = new byte[columnCount];
+        int[] sqlTypes = new int[columnCount];
+        Object[] values = new Object[columnCount];
+        String[][] dictionaries = new String[columnCount][];
+        BitSet[] nulls = new BitSet[columnCount];
+        List<HashMap<String, Integer>> dictionaryCodes = new ArrayList<>(columnCount);
+
+        for (int i = 0; i < columnCount; i++)
+        {
+            labels[i] = metaData.getColumnLabel(i + 1);
+            sqlTypes[i] = metaData.getColumnType(i + 1);
+            kinds[i] = kindOf(sqlTypes[i]);
+            values[i] = newArray(kinds[i], INITIAL_CAPACITY);
+            if (kinds[i] == KIND_STRING)
+                dictionaries[i] = new String[16];
+            dictionaryCodes.add(kinds[i] == KIND_STRING ? new HashMap<>(): null);
+        }
+
+        int[] dictionarySizes = new int[columnCount];
+        int capacity = INITIAL_CAPACITY;
+        int size = 0;
+        while (result.next())
+        {
+            if (size == capacity)
+            {
+                capacity <<= 1;
+                for (int i = 0; i < columnCount; i++)
+                    values[i] = resize(values[i], capacity);
+            }
+
+            for (int i = 0; i < columnCount; i++)
+            {
+                int column = i + 1;
+                switch (kinds[i])
+                {
+                    case KIND_INT:
+                    {
+                        // SQLite の INTEGER は 64 ビットのため、int に収まらない値があれば long の列に切り替える
+                        long value = result.getLong(column);
+                        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+                        {
+                            int[] ints = (int[]) values[i];
+                            long[] longs = new long[capacity];
+                            for (int j = 0; j < size; j++)
+                                longs[j] = ints[j];
+                            values[i] = longs;
+                            kinds[i] = KIND_LONG;
+                            longs[size] = value;
+                        }
+                        else
+                            ((int[]) values[i])[size] = (int) value;
+                        break;
+                    }
+                    case KIND_LONG:
+                        ((long[]) values[i])[size] = result.getLong(column);
+                        break;
+                    case KIND_DOUBLE:
+                        ((double[]) values[i])[size] = result.getDouble(column);
+                        break;
+                    case KIND_BOOLEAN:
+                        ((boolean[]) values[i])[size] = result.getBoolean(column);
+                        break;
+                    case KIND_STRING:
+                    {
+                        String value = result.getString(column);
+                        int code = -1;
+                        if (value != null)
+                        {
+                            Integer existing = dictionaryCodes.get(i).putIfAbsent(value, dictionarySizes[i]);
+                            if (existing == null)
+                            {
+                                if (dictionarySizes[i] == dictionaries[i].length)
+                                    dictionaries[i] = Arrays.copyOf(dictionaries[i], dictionarySizes[i] << 1);
+                                dictionaries[i][dictionarySizes[i]] = value;
+                                code = dictionarySizes[i]++;
+                            }
+                            else
+                                code = existing;
+                        }
+                        ((int[]) values[i])[size] = code;
+                        continue;
+                    }
+                    default:
+                        ((Object[]) values[i])[size] = readObject(result, column, sqlTypes[i]);
+                        break;
+                }
+
+                if (result.wasNull())
+                {
+                    if (nulls[i] == null)
+                        nulls[i] = new BitSet();
+                    nulls[i].set(size);
+                }
+            }
+            size++;
+        }
+
+        for (int i = 0; i < columnCount; i++)
+        {
+            values[i] = resize(values[i], size);
+            if (dictionaries[i] != null)
+                dictionaries[i] = Arrays.copyOf(dictionaries[i], dictionarySizes[i]);
+        }
+
+        return new ResultSnapshot(labels, size, kinds, values, dictionaries, nulls);
+    }
+
+    private static byte kindOf(int sqlType)
+    {
+        switch (sqlType)
+        {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return KIND_INT;
+            case Types.BIGINT:
+                return KIND_LONG;
+            case Types.FLOAT:
+            case Types.REAL:
+            case Types.DOUBLE:
+                return KIND_DOUBLE;
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return KIND_BOOLEAN;
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+            case Types.LONGNVARCHAR:
+                return KIND_STRING;
+            default:
+                return KIND_OBJECT;
+        }
+    }
+
+    private static Object readObject(ResultSet result, int column, int sqlType) throws SQLException
+    {
+        switch (sqlType)
+        {
+            case Types.DATE:
+                return result.getDate(column);
+            case Types.TIME:
+                return result.getTime(column);
+            case Types.TIMESTAMP:
+                return result.getTimestamp(column);
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return result.getBytes(column);
+            case Types.CLOB:
+            case Types.NCLOB:
+                return result.getString(column);
+            default:
+                return result.getObject(column);
+        }
+    }
+
+    private static Object newArray(byte kind, int capacity)
+    {
+        switch (kind)
+        {
+            case KIND_INT:
+            case KIND_STRING:
+                return new int[capacity];
+            case KIND_LONG:
+                return new long[capacity];
+            case KIND_DOUBLE:
+                return new double[capacity];
+            case KIND_BOOLEAN:
+                return new boolean[capacity];
+            default:
+                return new Object[capacity];
+        }
+    }
+
+    private static Object resize(Object array, int length)
+    {
+        if (array instanceof int[])
+            return Arrays.copyOf((int[]) array, length);
+        else if (array instanceof long[])
+            return Arrays.copyOf((long[]) array, length);
+        else if (array instanceof double[])
+            return Arrays.copyOf((double[]) array, length);
+        else if (array instanceof boolean[])
+            return Arrays.copyOf((boolean[]) array, length);
+        return Arrays.copyOf((Object[]) array, length);
+    }
+
+    /**
+     * 行数を取得します。
+     *
+     * @return 行数
+     */
+    public int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * 列の数を取得します。
+     *
+     * @return 列の数
+     */
+    public int getColumnCount()
+    {
+        return this.labels.length;
+    }
+
+    /**
+     * 列ラベルを取得します。
+     *
+     * @param columnIndex 列番号(1始まり)
+     * @return 列ラベル
+     */
+    public String getColumnLabel(int columnIndex)
+    {
+        return this.labels[columnIndex - 1];
+    }
+
+    /**
+     * 列を保持している形式に対応する {@link Types} の値を取得します。
+     *
+     * @param columnIndex 列番号(1始まり)
+     * @return {@link Types} の値
+     */
+    int getColumnType(int columnIndex)
+    {
+        switch (this.kinds[columnIndex - 1])
+        {
+            case KIND_INT:
+                return Types.INTEGER;
+            case KIND_LONG:
+                return Types.BIGINT;
+            case KIND_DOUBLE:
+                return Types.DOUBLE;
+            case KIND_BOOLEAN:
+                return Types.BOOLEAN;
+            case KIND_STRING:
+                return Types.VARCHAR;
+            default:
+                return Types.OTHER;
+        }
+    }
+
+    /**
+     * 列番号を取得します。大文字と小文字は区別しません。
+     *
+     * @param columnLabel 列ラベル
+     * @return 列番号(1始まり)
+     */
+    public int findColumn(String columnLabel)
+    {
+        Integer index = this.indexes.get(columnLabel);
+        if (index == null)
+            index = this.indexes.get(columnLabel.toLowerCase(Locale.ROOT));
+        if (index == null)
+            throw new IllegalStateException("Unknown column: " + columnLabel);
+        return index + 1;
+    }
+
+    /**
+     * 32ビット整数の列を取得します。
+     *
+     * @param columnLabel 列ラベル
+     * @return 列
+     */
+    public IntColumn intColumn(String columnLabel)
+    {
+        return new IntColumn(columnLabel, this.findColumn(columnLabel));
+    }
+
+    /**
+     * 64ビット整数の列を取得します。
+     *
+     * @param columnLabel 列ラベル
+     * @return 列
+     */
+    public LongColumn longColumn(String columnLabel)
+    {
+        return new LongColumn(columnLabel, this.findColumn(columnLabel));
+    }
+
+    /**
+     * 浮動小数点数の列を取得します。
+     *
+     * @param columnLabel 列ラベル
+     * @return 列
+     */
+    public DoubleColumn doubleColumn(String columnLabel)
+    {
+        return new DoubleColumn(columnLabel, this.findColumn(columnLabel));
+    }
+
+    /**
+     * 真偽値の列を取得します。
+     *
+     * @param columnLabel 列ラベル
+     * @return 列
+     */
+    public BooleanColumn booleanColumn(String columnLabel)
+    {
+        return new BooleanColumn(columnLabel, this.findColumn(columnLabel));
+    }
+
+    /**
+     * 文字列の列を取得します。
+     *
+     * @param columnLabel 列ラベル
+     * @return 列
+     */
+    public StringColumn stringColumn(String columnLabel)
+    {
+        return new StringColumn(columnLabel, this.findColumn(columnLabel));
+    }
+
+    /**
+     * 行を取得します。返される行は {@link ResultRow} と同じ方法で値を取得でき、スレッド間で共有できます。
+     * {@link CompiledRowMapper} で変換する場合は、{@link CompiledRowMapper#of(Class, ResultSnapshot)} で取得したマッパーを使用してください。
+     *
+     * @param rowIndex 行番号(0始まり)
+     * @return 行
+     */
+    public ResultRow getRow(int rowIndex)
+    {
+        if (rowIndex < 0 || rowIndex >= this.size)
+            throw new IndexOutOfBoundsException("Row: " + rowIndex + ", Size: " + this.size);
+
+        return new SnapshotRow(this, rowIndex);
+    }
+
+    /**
+     * すべての行のStreamを取得します。
+     *
+     * @return 行のStream
+     */
+    public Stream<ResultRow> stream()
+    {
+        return IntStream.range(0, this.size).mapToObj(this::getRow);
+    }
+
+    /**
+     * すべての行に対して処理を行います。
+     *
+     * @param action 行ごとの処理
+     */
+    public void forEachRow(Consumer<? super ResultRow> action)
+    {
+        for (int i = 0; i < this.size; i++)
+            action.accept(new SnapshotRow(this, i));
+    }
+
+    /**
+     * Listに変換します。
+     *
+     * @param resultMapper マッピング関数
+     * @param <T>          変換後の型
+     * @return 変換されたList
+     */
+    public <T> ArrayList<T> mapToList(Function<? super ResultRow, ? extends T> resultMapper)
+    {
+        ArrayList<T> list = new ArrayList<>(this.size);
+        for (int i = 0; i < this.size; i++)
+            list.add(resultMapper.apply(new SnapshotRow(this, i)));
+        return list;
+    }
+
+    /**
+     * すべての行を指定したクラスのインスタンスに変換します。
+     * 列とコンストラクタ引数またはフィールドの対応は、クラスと列構成の組ごとに一度だけ解決されます。
+     *
+     * @param type 変換後の型
+     * @param <T>  変換後の型
+     * @return 変換されたList
+     * @see CompiledRowMapper
+     */
+    public <T> ArrayList<T> mapTo(Class<T> type)
+    {
+        CompiledRowMapper<T> mapper = CompiledRowMapper.of(type, this);
+        ArrayList<T> list = new ArrayList<>(this.size);
+        for (int i = 0; i < this.size; i++)
+            list.add(mapper.apply(new SnapshotRow(this, i)));
+        return list;
+    }
+
+    private boolean isNull(int column, int row)
+    {
+        if (this.kinds[column] == KIND_STRING)
+            return ((int[]) this.values[column])[row] < 0;
+        return this.nulls[column] != null && this.nulls[column].get(row);
+    }
+
+    @Nullable
+    private Object getObject(int column, int row)
+    {
+        if (this.isNull(column, row))
+            return null;
+
+        switch (this.kinds[column])
+        {
+            case KIND_INT:
+                return ((int[]) this.values[column])[row];
+            case KIND_LONG:
+                return ((long[]) this.values[column])[row];
+            case KIND_DOUBLE:
+                return ((double[]) this.values[column])[row];
+            case KIND_BOOLEAN:
+                return ((boolean[]) this.values[column])[row];
+            case KIND_STRING:
+                return this.dictionaries[column][((int[]) this.values[column])[row]];
+            default:
+                return copyIfMutable(((Object[]) this.values[column])[row]);
+        }
+    }
+
+    private static Object copyIfMutable(Object value)
+    {
+        // 共有されるスナップショットを変更されないよう、可変な値は複製して返す
+        if (value instanceof byte[])
+            return ((byte[]) value).clone();
+        else if (value instanceof java.util.Date)
+            return ((java.util.Date) value).clone();
+        return value;
+    }
+
+    @Nullable
+    private byte[] getBytes(int column, int row)
+    {
+        Object value = this.getObject(column, row);
+        if (value == null || value instanceof byte[])
+            return (byte[]) value;
+
+        throw new IllegalStateException("Cannot convert " + value.getClass().getName() + " to byte[]");
+    }
+
+    @Nullable
+    private String getString(int column, int row)
+    {
+        if (this.kinds[column] == KIND_STRING)
+        {
+            int code = ((int[]) this.values[column])[row];
+            return code < 0 ? null: this.dictionaries[column][code];
+        }
+
+        Object value = this.getObject(column, row);
+        return value == null ? null: value.toString();
+    }
+
+    private long getLong(int column, int row)
+    {
+        switch (this.kinds[column])
+        {
+            case KIND_INT:
+                return ((int[]) this.values[column])[row];
+            case KIND_LONG:
+                return ((long[]) this.values[column])[row];
+            case KIND_DOUBLE:
+                return (long) ((double[]) this.values[column])[row];
+            case KIND_BOOLEAN:
+                return ((boolean[]) this.values[column])[row] ? 1: 0;
+            default:
+                Object value = this.getObject(column, row);
+                if (value == null)
+                    return 0;
+                else if (value instanceof Number)
+                    return ((Number) value).longValue();
+                return Long.parseLong(value.toString().trim());
+        }
+    }
+
+    private double getDouble(int column, int row)
+    {
+        switch (this.kinds[column])
+        {
+            case KIND_INT:
+                return ((int[]) this.values[column])[row];
+            case KIND_LONG:
+                return ((long[]) this.values[column])[row];
+            case KIND_DOUBLE:
+                return ((double[]) this.values[column])[row];
+            case KIND_BOOLEAN:
+                return ((boolean[]) this.values[column])[row] ? 1: 0;
+            default:
+                Object value = this.getObject(column, row);
+                if (value == null)
+                    return 0;
+                else if (value instanceof Number)
+                    return ((Number) value).doubleValue();
+                return Double.parseDouble(value.toString().trim());
+        }
+    }
+
+    private boolean getBoolean(int column, int row)
+    {
+        switch (this.kinds[column])
+        {
+            case KIND_BOOLEAN:
+                return ((boolean[]) this.values[column])[row];
+            case KIND_DOUBLE:
+                return ((double[]) this.values[column])[row] != 0;
+            case KIND_INT:
+            case KIND_LONG:
+                return this.getLong(column, row) != 0;
+            default:
+                Object value = this.getObject(column, row);
+                if (value == null)
+                    return false;
+                else if (value instanceof Boolean)
+                    return (Boolean) value;
+                else if (value instanceof Number)
+                    return ((Number) value).doubleValue() != 0;
+                String text = value.toString().trim();
+                return text.equalsIgnoreCase("true") || text.equals("1");
+        }
+    }
+
+    @Nullable
+    private <V> V getTemporal(int column, int row, Class<V> type, Function<Long, V> fromMillis)
+    {
+        Object value = this.getObject(column, row);
+        if (value == null)
+            return null;
+        else if (type.isInstance(value))
+            return type.cast(value);
+        else if (value instanceof java.util.Date)
+            return fromMillis.apply(((java.util.Date) value).getTime());
+
+        throw new IllegalStateException("Cannot convert " + value.getClass().getName() + " to " + type.getName());
+    }
+
+    private static class SnapshotRow extends ResultRow
+    {
+        private final ResultSnapshot snapshot;
+        private final int row;
+
+        private SnapshotRow(ResultSnapshot snapshot, int row)
+        {
+            super(null, null, false, null);
+            this.snapshot = snapshot;
+            this.row = row;
+        }
+
+        private int column(String columnLabel)
+        {
+            return this.snapshot.findColumn(columnLabel) - 1;
+        }
+
+        private int column(int columnIndex)
+        {
+            if (columnIndex < 1 || columnIndex > this.snapshot.labels.length)
+                throw new IllegalStateException("Column index out of range: " + columnIndex);
+            return columnIndex - 1;
+        }
+
+        @Override
+        ResultSet getResultSet()
+        {
+            throw new UnsupportedOperationException("Snapshot rows are not backed by a ResultSet.");
+        }
+
+        @Override
+        public void close()
+        {
+        }
+
+        @Override
+        public void closeAll()
+        {
+        }
+
+        @Override
+        public String getString(String columnLabel)
+        {
+            return this.snapshot.getString(this.column(columnLabel), this.row);
+        }
+
+        @Override
+        public int getInt(String columnLabel)
+        {
+            return (int) this.snapshot.getLong(this.column(columnLabel), this.row);
+        }
+
+        @Override
+        public long getLong(String columnLabel)
+        {
+            return this.snapshot.getLong(this.column(columnLabel), this.row);
+        }
+
+        @Override
+        public float getFloat(String columnLabel)
+        {
+            return (float) this.snapshot.getDouble(this.column(columnLabel), this.row);
+        }
+
+        @Override
+        public double getDouble(String columnLabel)
+        {
+            return this.snapshot.getDouble(this.column(columnLabel), this.row);
+        }
+
+        @Override
+        public boolean getBoolean(String columnLabel)
+        {
+            return this.snapshot.getBoolean(this.column(columnLabel), this.row);
+        }
+
+        @Override
+        public Date getDate(String columnLabel)
+        {
+            return this.snapshot.getTemporal(this.column(columnLabel), this.row, Date.class, Date::new);
+        }
+
+        @Override
+        public Time getTime(String columnLabel)
+        {
+            return this.snapshot.getTemporal(this.column(columnLabel), this.row, Time.class, Time::new);
+        }
+
+        @Override
+        public Timestamp getTimestamp(String columnLabel)
+        {
+            return this.snapshot.getTemporal(this.column(columnLabel), this.row, Timestamp.class, Timestamp::new);
+        }
+
+        @Override
+        public byte[] getBytes(String columnLabel)
+        {
+            return this.snapshot.getBytes(this.column(columnLabel), this.row);
+        }
+
+        @Override
+        public Object getObject(String columnLabel)
+        {
+            return this.snapshot.getObject(this.column(columnLabel), this.row);
+        }
+
+        @Override
+        public String getString(int columnIndex)
+        {
+            return this.snapshot.getString(this.column(columnIndex), this.row);
+        }
+
+        @Override
+        public int getInt(int columnIndex)
+        {
+            return (int) this.snapshot.getLong(this.column(columnIndex), this.row);
+        }
+
+        @Override
+        public long getLong(int columnIndex)
+        {
+            return this.snapshot.getLong(this.column(columnIndex), this.row);
+        }
+
+        @Override
+        public float getFloat(int columnIndex)
+        {
+            return (float) this.snapshot.getDouble(this.column(columnIndex), this.row);
+        }
+
+        @Override
+        public double getDouble(int columnIndex)
+        {
+            return this.snapshot.getDouble(this.column(columnIndex), this.row);
+        }
+
+        @Override
+        public boolean getBoolean(int columnIndex)
+        {
+            return this.snapshot.getBoolean(this.column(columnIndex), this.row);
+        }
+
+        @Override
+        public Date getDate(int columnIndex)
+        {
+            return this.snapshot.getTemporal(this.column(columnIndex), this.row, Date.class, Date::new);
+        }
+
+        @Override
+        public Time getTime(int columnIndex)
+        {
+            return this.snapshot.getTemporal(this.column(columnIndex), this.row, Time.class, Time::new);
+        }
+
+        @Override
+        public Timestamp getTimestamp(int columnIndex)
+        {
+            return this.snapshot.getTemporal(this.column(columnIndex), this.row, Timestamp.class, Timestamp::new);
+        }
+
+        @Override
+        public byte[] getBytes(int columnIndex)
+        {
+            return this.snapshot.getBytes(this.column(columnIndex), this.row);
+        }
+
+        @Override
+        public Object getObject(int columnIndex)
+        {
+            return this.snapshot.getObject(this.column(columnIndex), this.row);
+        }
+    }
+}
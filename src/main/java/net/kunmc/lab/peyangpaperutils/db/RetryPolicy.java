@@ -0,0 +1,478 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import org.intellij.lang.annotations.Language;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * ロック競合やデッドロックで失敗したトランザクションを、間隔を空けて最初からやり直すための設定です。
+ * <p>
+ * 再試行するたびに新しいコネクションで {@link Transaction} を作り直し、{@link TransactionRun} 全体を再実行します。
+ * 再試行の間隔は {@link #backoff(long, long, TimeUnit)} で指定した値から倍々に伸び、半分から全体の範囲でランダムにずらされます。
+ * 以下の例外は再試行の対象になります。
+ * <ul>
+ *     <li>{@link SQLTransactionRollbackException}</li>
+ *     <li>SQLState が 40001(シリアライズ失敗・デッドロック)、40P01(PostgreSQLのデッドロック)、55P03(PostgreSQLのロック取得失敗)、HYT00(H2のロック待ちタイムアウト)のもの</li>
+ *     <li>MySQL / MariaDB のエラーコード 1205(ロック待ちタイムアウト)、1213(デッドロック)</li>
+ *     <li>SQLite の SQLITE_BUSY / SQLITE_LOCKED</li>
+ *     <li>{@link #retryOn(Predicate)} で追加した条件に一致するもの</li>
+ * </ul>
+ *
+ * <pre>
+ *     RetryPolicy retry = new RetryPolicy()
+ *             .maxAttempts(5)
+ *             .backoff(20, 1000, TimeUnit.MILLISECONDS);
+ *
+ *     retry.doTransactionAsync(pool, null, transaction -&gt; {
+ *         transaction.renew("UPDATE players SET coins = coins - ? WHERE uuid = ?")
+ *                 .set(1, price).set(2, uuid.toString())
+ *                 .executeUpdate(false);
+ *         transaction.renew("INSERT INTO purchases (uuid, item) VALUES (?, ?)")
+ *                 .set(1, uuid.toString()).set(2, item)
+ *                 .executeUpdate(false);
+ *     });
+ * </pre>
+ */
+public class RetryPolicy
+{
+    private static final Set<Runnable> PENDING_RETRIES = ConcurrentHashMap.newKeySet();
+
+    private static ScheduledExecutorService scheduler;
+
+    private final LongAdder attemptCount;
+    private final LongAdder retryCount;
+    private final LongAdder recoveredCount;
+    private final LongAdder exhaustedCount;
+    private final ConcurrentHashMap<String, LongAdder> retriesByStatement;
+    private final List<Predicate<? super SQLException>> additionalConditions;
+
+    private int maxAttempts;
+    private long initialDelayNanos;
+    private long maxDelayNanos;
+    @Nullable
+    private DatabaseExecutor executor;
+
+    /**
+     * 最大3回、20ミリ秒から1秒の間隔で再試行する設定を生成します。
+     */
+    public RetryPolicy()
+    {
+        this.attemptCount = new LongAdder();
+        this.retryCount = new LongAdder();
+        this.recoveredCount = new LongAdder();
+        this.exhaustedCount = new LongAdder();
+        this.retriesByStatement = new ConcurrentHashMap<>();
+        this.additionalConditions = new ArrayList<>();
+
+        this.maxAttempts = 3;
+        this.initialDelayNanos = TimeUnit.MILLISECONDS.toNanos(20);
+        this.maxDelayNanos = TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * 最初の実行を含めた、最大の実行回数を設定します。
+     *
+     * @param maxAttempts 最大の実行回数
+     * @return この設定
+     */
+    public RetryPolicy maxAttempts(int maxAttempts)
+    {
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("maxAttempts must be at least 1.");
+
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * 再試行の間隔を設定します。間隔は再試行のたびに倍になり、maxDelay で頭打ちになります。
+     *
+     * @param initialDelay 最初の再試行までの間隔
+     * @param maxDelay     間隔の最大値
+     * @param unit         時間の単位
+     * @return この設定
+     */
+    public RetryPolicy backoff(long initialDelay, long maxDelay, @NotNull TimeUnit unit)
+    {
+        this.initialDelayNanos = unit.toNanos(initialDelay);
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        return this;
+    }
+
+    /**
+     * 再試行の対象とする例外の条件を追加します。
+     *
+     * @param condition 再試行する場合に true を返す関数
+     * @return この設定
+     */
+    public RetryPolicy retryOn(@NotNull Predicate<? super SQLException> condition)
+    {
+        this.additionalConditions.add(condition);
+        return this;
+    }
+
+    /**
+     * 非同期実行に使用するスレッドプールを設定します。
+     * 設定しない場合は {@link DatabaseExecutor#getDefault()} が使用されます。
+     *
+     * @param executor スレッドプール
+     * @return この設定
+     */
+    public RetryPolicy executor(@NotNull DatabaseExecutor executor)
+    {
+        this.executor = executor;
+        return this;
+    }
+
+    private DatabaseExecutor getExecutor()
+    {
+        return this.executor != null ? this.executor : DatabaseExecutor.getDefault();
+    }
+
+    /**
+     * 例外が再試行の対象かどうかを判定します。原因となった例外や、連鎖した {@link SQLException} も確認されます。
+     *
+     * @param throwable 例外
+     * @return 再試行の対象かどうか
+     */
+    public boolean isRetryable(@Nullable Throwable throwable)
+    {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause())
+        {
+            if (!(cause instanceof SQLException))
+                continue;
+
+            for (SQLException e = (SQLException) cause; e != null; e = e.getNextException())
+                if (this.isRetryable(e))
+                    return true;
+        }
+        return false;
+    }
+
+    private boolean isRetryable(SQLException e)
+    {
+        if (e instanceof SQLTransactionRollbackException)
+            return true;
+
+        String state = e.getSQLState();
+        if (state != null)
+        {
+            switch (state)
+            {
+                case "40001":
+                case "40P01":
+                case "55P03":
+                case "HYT00":
+                    return true;
+                case "HY000":
+                case "41000":
+                    if (e.getErrorCode() == 1205 || e.getErrorCode() == 1213)
+                        return true;
+                    break;
+            }
+        }
+
+        String message = e.getMessage();
+        if (message != null)
+        {
+            String upper = message.toUpperCase(Locale.ROOT);
+            if (upper.contains("SQLITE_BUSY") || upper.contains("SQLITE_LOCKED"))
+                return true;
+        }
+
+        for (Predicate<? super SQLException> condition : this.additionalConditions)
+            if (condition.test(e))
+                return true;
+
+        return false;
+    }
+
+    private long getDelayNanos(int attempt)
+    {
+        long delay = this.initialDelayNanos;
+        for (int i = 1; i < attempt && delay < this.maxDelayNanos; i++)
+            delay <<= 1;
+        delay = Math.min(delay, this.maxDelayNanos);
+
+        if (delay <= 1)
+            return delay;
+        // 同時に失敗した処理が同じタイミングで再試行しないよう、半分から全体の範囲でずらす
+        long half = delay >> 1;
+        return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+    }
+
+    private void recordRetry(String statement)
+    {
+        this.retryCount.increment();
+        this.retriesByStatement.computeIfAbsent(statement, k -> new LongAdder()).increment();
+    }
+
+    private void recordSuccess(int attempt)
+    {
+        if (attempt > 1)
+            this.recoveredCount.increment();
+    }
+
+    private void recordFailure(Throwable throwable)
+    {
+        if (this.isRetryable(throwable))
+            this.exhaustedCount.increment();
+    }
+
+    private static String getStatementName(@Nullable String sql, TransactionRun run)
+    {
+        return sql != null ? sql : run.getClass().getName();
+    }
+
+    private <T> T execute(String statement, DatabaseExecutor.Task<T> task)
+    {
+        for (int attempt = 1; ; attempt++)
+        {
+            this.attemptCount.increment();
+            try
+            {
+                T result = task.run();
+                this.recordSuccess(attempt);
+                return result;
+            }
+            catch (Exception e)
+            {
+                if (attempt >= this.maxAttempts || !this.isRetryable(e))
+                {
+                    this.recordFailure(e);
+                    if (e instanceof RuntimeException)
+                        throw (RuntimeException) e;
+                    throw new IllegalStateException(e);
+                }
+
+                this.recordRetry(statement);
+                try
+                {
+                    TimeUnit.NANOSECONDS.sleep(this.getDelayNanos(attempt));
+                }
+                catch (InterruptedException e1)
+                {
+                    Thread.currentThread().interrupt();
+                    e.addSuppressed(e1);
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+
+    private <T> CompletableFuture<T> executeAsync(String statement, DatabaseExecutor.Task<T> task)
+    {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        this.attemptAsync(statement, task, 1, future);
+        return future;
+    }
+
+    private <T> void attemptAsync(String statement, DatabaseExecutor.Task<T> task, int attempt, CompletableFuture<T> future)
+    {
+        this.attemptCount.increment();
+        this.getExecutor().submit(task).whenComplete((result, throwable) -> {
+            if (throwable == null)
+            {
+                this.recordSuccess(attempt);
+                future.complete(result);
+                return;
+            }
+
+            Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null
+                    ? throwable.getCause() : throwable;
+            if (attempt >= this.maxAttempts || !this.isRetryable(cause))
+            {
+                this.recordFailure(cause);
+                future.completeExceptionally(cause);
+                return;
+            }
+
+            // 待機中にDB用のスレッドを塞がないよう、再投入はスケジューラから行う
+            Runnable retry = new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    // スケジューラの停止時に前倒しで実行された場合は、二重に実行しない
+                    if (PENDING_RETRIES.remove(this))
+                        RetryPolicy.this.attemptAsync(statement, task, attempt + 1, future);
+                }
+            };
+
+            PENDING_RETRIES.add(retry);
+            try
+            {
+                getScheduler().schedule(retry, this.getDelayNanos(attempt), TimeUnit.NANOSECONDS);
+                this.recordRetry(statement);
+            }
+            catch (RejectedExecutionException e)
+            {
+                PENDING_RETRIES.remove(retry);
+                e.addSuppressed(cause);
+                this.recordFailure(cause);
+                future.completeExceptionally(e);
+            }
+        });
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler()
+    {
+        if (scheduler == null)
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "PeyangPaperUtils-DB-Retry");
+                thread.setDaemon(true);
+                return thread;
+            });
+        return scheduler;
+    }
+
+    /**
+     * 非同期の再試行に使用するスケジューラを停止します。
+     * 待機中の再試行は待たずにその場で再投入され、以降の再試行は {@link RejectedExecutionException} で失敗します。
+     * {@link DatabaseLifecycle#shutdown(long, TimeUnit)} から呼び出されます。
+     */
+    public static void shutdownScheduler()
+    {
+        ScheduledExecutorService stopping;
+        synchronized (RetryPolicy.class)
+        {
+            // 停止後に新しいスレッドが生成されないよう、停止済みのものを残しておく
+            stopping = getScheduler();
+        }
+
+        stopping.shutdownNow();
+        new ArrayList<>(PENDING_RETRIES).forEach(Runnable::run);
+    }
+
+    private static int executeUpdateOnce(DataSource dataSource, String sql, TransactionRun binder)
+    {
+        Transaction transaction = Transaction.create(dataSource, sql);
+        try
+        {
+            binder.run(transaction);
+        }
+        catch (SQLException e)
+        {
+            transaction.close();
+            throw new IllegalStateException(e);
+        }
+        catch (RuntimeException e)
+        {
+            transaction.close();
+            throw e;
+        }
+
+        return transaction.executeUpdate();
+    }
+
+    /**
+     * トランザクションを実行してコミットします。再試行の対象となる例外で失敗した場合は、間隔を空けてやり直します。
+     * 待機中は呼び出し元のスレッドが停止するため、メインスレッドからは {@link #doTransactionAsync(DataSource, String, TransactionRun)} を使用してください。
+     *
+     * @param dataSource     データソース
+     * @param sql            SQL文
+     * @param transactionRun トランザクションを処理する関数。再試行のたびに最初から呼び出されます。
+     * @see Transaction#doTransaction(TransactionRun)
+     */
+    public void doTransaction(@NotNull DataSource dataSource, @Nullable @Language("sql") String sql,
+                              @NotNull TransactionRun transactionRun)
+    {
+        this.execute(getStatementName(sql, transactionRun), () -> {
+            Transaction.create(dataSource, sql).doTransaction(transactionRun);
+            return null;
+        });
+    }
+
+    /**
+     * トランザクションを非同期で実行してコミットします。再試行の対象となる例外で失敗した場合は、間隔を空けてやり直します。
+     *
+     * @param dataSource     データソース
+     * @param sql            SQL文
+     * @param transactionRun トランザクションを処理する関数。非同期スレッド上で、再試行のたびに最初から呼び出されます。
+     * @return 完了を表すFuture
+     */
+    public CompletableFuture<Void> doTransactionAsync(@NotNull DataSource dataSource, @Nullable @Language("sql") String sql,
+                                                      @NotNull TransactionRun transactionRun)
+    {
+        return this.executeAsync(getStatementName(sql, transactionRun), () -> {
+            Transaction.create(dataSource, sql).doTransaction(transactionRun);
+            return null;
+        });
+    }
+
+    /**
+     * 更新系SQL文を実行してコミットします。再試行の対象となる例外で失敗した場合は、間隔を空けてやり直します。
+     *
+     * @param dataSource データソース
+     * @param sql        SQL文
+     * @param binder     値をセットする関数。再試行のたびに呼び出されます。
+     * @return 更新件数
+     * @see Transaction#executeUpdate()
+     */
+    public int executeUpdate(@NotNull DataSource dataSource, @NotNull @Language("sql") String sql,
+                             @NotNull TransactionRun binder)
+    {
+        return this.execute(sql, () -> executeUpdateOnce(dataSource, sql, binder));
+    }
+
+    /**
+     * 更新系SQL文を非同期で実行してコミットします。再試行の対象となる例外で失敗した場合は、間隔を空けてやり直します。
+     *
+     * @param dataSource データソース
+     * @param sql        SQL文
+     * @param binder     値をセットする関数。非同期スレッド上で、再試行のたびに呼び出されます。
+     * @return 更新件数
+     */
+    public CompletableFuture<Integer> executeUpdateAsync(@NotNull DataSource dataSource, @NotNull @Language("sql") String sql,
+                                                         @NotNull TransactionRun binder)
+    {
+        return this.executeAsync(sql, () -> executeUpdateOnce(dataSource, sql, binder));
+    }
+
+    /**
+     * 統計情報を取得します。
+     *
+     * @return 統計情報
+     */
+    public RetryStats getStats()
+    {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>();
+        for (Map.Entry<String, LongAdder> entry : this.retriesByStatement.entrySet())
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue().sum()));
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+
+        LinkedHashMap<String, Long> retries = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : entries)
+            retries.put(entry.getKey(), entry.getValue());
+
+        return new RetryStats(
+                this.attemptCount.sum(),
+                this.retryCount.sum(),
+                this.recoveredCount.sum(),
+                this.exhaustedCount.sum(),
+                Collections.unmodifiableMap(retries)
+        );
+    }
+}
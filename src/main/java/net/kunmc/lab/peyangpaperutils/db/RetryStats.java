@@ -0,0 +1,33 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import lombok.Value;
+
+import java.util.Map;
+
+/**
+ * {@link RetryPolicy} の統計情報のスナップショットです。
+ */
+@Value
+public class RetryStats
+{
+    /**
+     * 処理を実行した回数(再試行を含む)です。
+     */
+    long attemptCount;
+    /**
+     * 再試行した回数です。
+     */
+    long retryCount;
+    /**
+     * 再試行の後に成功した回数です。
+     */
+    long recoveredCount;
+    /**
+     * 再試行の上限に達して失敗した回数です。
+     */
+    long exhaustedCount;
+    /**
+     * SQL文(SQL文がない場合は処理のクラス名)ごとの再試行回数です。多い順に並んでいます。
+     */
+    Map<String, Long> retriesByStatement;
+}
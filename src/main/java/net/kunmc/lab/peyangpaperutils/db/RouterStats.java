@@ -0,0 +1,35 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import lombok.Value;
+
+/**
+ * {@link ReplicaRouter} の統計情報のスナップショットです。
+ */
+@Value
+public class RouterStats
+{
+    /**
+     * レプリカに振り分けた読み込みの数です。
+     */
+    long replicaReads;
+    /**
+     * 直前に書き込んだプレイヤのため、プライマリに振り分けた読み込みの数です。
+     */
+    long stickyReads;
+    /**
+     * レプリカから取得できず、プライマリに振り分けた読み込みの数です。
+     */
+    long fallbackReads;
+    /**
+     * レプリカからのコネクションの取得に失敗した回数です。
+     */
+    long replicaFailures;
+    /**
+     * {@link ReplicaRouter#write(String)} でプライマリに振り分けた書き込みの数です。
+     */
+    long writes;
+    /**
+     * レプリカごとの読み込みの数です。添字はコンストラクタに渡したレプリカの順番に対応します。
+     */
+    long[] readsPerReplica;
+}
@@ -0,0 +1,47 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import lombok.Value;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link QueryMetrics} のスロークエリログの一件です。
+ */
+@Value
+public class SlowQuery
+{
+    /**
+     * 記録された時刻(エポックミリ秒)です。
+     */
+    long timestamp;
+    /**
+     * 正規化されたSQL文です。
+     */
+    String sql;
+    /**
+     * セットされた値の要約です。長い値は切り詰められ、バイト列は長さのみが記録されます。
+     */
+    String parameters;
+    /**
+     * 実行時間(ナノ秒)です。
+     */
+    long durationNanos;
+    /**
+     * 例外が発生したかどうかです。
+     */
+    boolean failed;
+    /**
+     * 実行したスレッドの名前です。
+     */
+    String threadName;
+
+    /**
+     * 実行時間(ミリ秒)を取得します。
+     *
+     * @return 実行時間
+     */
+    public double getDurationMillis()
+    {
+        return (double) this.durationNanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
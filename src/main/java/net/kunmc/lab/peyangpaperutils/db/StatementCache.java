@@ -0,0 +1,244 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 物理コネクションごとの {@link PreparedStatement} のLRUキャッシュです。
+ * キャッシュから返されるステートメントの {@link PreparedStatement#close()} はパラメータを消去するだけで、実際には閉じられません。
+ * 貸し出しごとに別のプロキシが返され、閉じた後のプロキシは使用できません。
+ * 貸し出し中のステートメントは共有されず、同じSQL文を再度準備した場合はキャッシュしないステートメントが準備されます。
+ * フェッチサイズなどのクエリごとの設定は、閉じたとき、または再利用するときに初期値に戻されます。
+ * 貸し出し中のステートメントは、最大件数を超えても追い出されません。
+ */
+class StatementCache
+{
+    private final Connection physical;
+    private final Supplier<Connection> owner;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final int capacity;
+    private final LinkedHashMap<String, CachedStatement> statements;
+
+    /**
+     * キャッシュを生成します。
+     *
+     * @param physical 物理コネクション
+     * @param owner    {@link PreparedStatement#getConnection()} で返すコネクション
+     * @param capacity 最大件数
+     * @param hits     ヒット数のカウンタ
+     * @param misses   ミス数のカウンタ
+     */
+    StatementCache(Connection physical, Supplier<Connection> owner, int capacity, LongAdder hits, LongAdder misses)
+    {
+        this.physical = physical;
+        this.owner = owner;
+        this.hits = hits;
+        this.misses = misses;
+        this.capacity = capacity;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * ステートメントを準備します。キャッシュに存在する場合は、パラメータを消去して再利用します。
+     *
+     * @param sql               SQL文
+     * @param autoGeneratedKeys {@link java.sql.Statement#RETURN_GENERATED_KEYS} または {@link java.sql.Statement#NO_GENERATED_KEYS}
+     * @return ステートメント
+     * @throws SQLException ステートメントの準備に失敗した場合
+     */
+    PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException
+    {
+        CachedStatement cached = this.statements.get(sql);
+        if (cached != null && !cached.inUse && cached.autoGeneratedKeys == autoGeneratedKeys && !cached.statement.isClosed())
+        {
+            if (cached.tuned)
+                cached.resetTuning();
+            this.hits.increment();
+            return this.lease(cached);
+        }
+
+        this.misses.increment();
+        // 貸し出し中のステートメントを共有すると、利用中のパラメータや結果が失われるため、キャッシュしないものを準備する
+        if (cached != null && cached.inUse)
+            return this.physical.prepareStatement(sql, autoGeneratedKeys);
+
+        if (cached != null)
+        {
+            this.statements.remove(sql);
+            cached.closePhysical();
+        }
+
+        PreparedStatement statement = this.physical.prepareStatement(sql, autoGeneratedKeys);
+        cached = new CachedStatement(statement, autoGeneratedKeys);
+        PreparedStatement lease = this.lease(cached);
+        this.statements.put(sql, cached);
+        this.evict();
+        return lease;
+    }
+
+    /**
+     * 最大件数を超えた分を、最も長く使用されていないものから閉じます。
+     * 貸し出し中のステートメントは、結果を読み込んでいる可能性があるため追い出しません。
+     */
+    private void evict()
+    {
+        Iterator<Map.Entry<String, CachedStatement>> iterator = this.statements.entrySet().iterator();
+        while (this.statements.size() > this.capacity && iterator.hasNext())
+        {
+            CachedStatement cached = iterator.next().getValue();
+            if (cached.inUse)
+                continue;
+
+            iterator.remove();
+            cached.closePhysical();
+        }
+    }
+
+    private PreparedStatement lease(CachedStatement cached)
+    {
+        cached.inUse = true;
+        return (PreparedStatement) Proxy.newProxyInstance(
+                StatementCache.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class},
+                new Lease(cached)
+        );
+    }
+
+    /**
+     * キャッシュしているステートメントをすべて閉じます。
+     */
+    void closeAll()
+    {
+        List<CachedStatement> cached = new ArrayList<>(this.statements.values());
+        this.statements.clear();
+        cached.forEach(CachedStatement::closePhysical);
+    }
+
+    private static class CachedStatement
+    {
+        private final PreparedStatement statement;
+        private final int autoGeneratedKeys;
+        // フェッチサイズなどが変更され、返却時に初期値に戻す必要があるか
+        private boolean tuned;
+        // 貸し出されてから閉じられていないか
+        private boolean inUse;
+
+        CachedStatement(PreparedStatement statement, int autoGeneratedKeys)
+        {
+            this.statement = statement;
+            this.autoGeneratedKeys = autoGeneratedKeys;
+        }
+
+        void closePhysical()
+        {
+            try
+            {
+                this.statement.close();
+            }
+            catch (SQLException e)
+            {
+                e.printStackTrace();
+            }
+        }
+
+        private void resetTuning() throws SQLException
+        {
+            this.statement.setFetchSize(0);
+            this.statement.setFetchDirection(ResultSet.FETCH_FORWARD);
+            this.statement.setMaxRows(0);
+            this.statement.setQueryTimeout(0);
+            this.tuned = false;
+        }
+    }
+
+    /**
+     * 1回の貸し出しを表すプロキシです。閉じた後は、同じステートメントが次の利用者に貸し出されていても操作できません。
+     */
+    private class Lease implements InvocationHandler
+    {
+        private final CachedStatement cached;
+        private boolean closed;
+
+        Lease(CachedStatement cached)
+        {
+            this.cached = cached;
+        }
+
+        private void release() throws SQLException
+        {
+            this.closed = true;
+            this.cached.inUse = false;
+
+            PreparedStatement statement = this.cached.statement;
+            if (statement.isClosed())
+                return;
+
+            statement.clearParameters();
+            statement.clearBatch();
+            if (this.cached.tuned)
+                this.cached.resetTuning();
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            switch (method.getName())
+            {
+                case "close":
+                    if (!this.closed)
+                        this.release();
+                    return null;
+                case "isClosed":
+                    return this.closed || this.cached.statement.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "CachedStatement[" + this.cached.statement + "]";
+                case "unwrap":
+                case "isWrapperFor":
+                    break;
+                default:
+                    if (this.closed)
+                        throw new SQLException("Statement is closed.");
+            }
+
+            switch (method.getName())
+            {
+                case "setFetchSize":
+                case "setFetchDirection":
+                case "setMaxRows":
+                case "setLargeMaxRows":
+                case "setQueryTimeout":
+                    this.cached.tuned = true;
+                    break;
+                case "getConnection":
+                    return StatementCache.this.owner.get();
+            }
+
+            try
+            {
+                return method.invoke(this.cached.statement, args);
+            }
+            catch (InvocationTargetException e)
+            {
+                throw e.getCause();
+            }
+        }
+    }
+}
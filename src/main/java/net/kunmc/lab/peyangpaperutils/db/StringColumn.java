@@ -0,0 +1,23 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+/**
+ * 文字列の列を表すクラスです。
+ */
+public final class StringColumn extends Column
+{
+    StringColumn(String label, int index)
+    {
+        super(label, index);
+    }
+
+    /**
+     * 行からこの列の値を取得します。
+     *
+     * @param row 行
+     * @return 値
+     */
+    public String get(ResultRow row)
+    {
+        return row.getString(this.getIndex());
+    }
+}
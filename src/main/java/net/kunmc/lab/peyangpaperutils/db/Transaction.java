@@ -5,36 +5,109 @@ import org.intellij.lang.annotations.Language;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
 
 /**
  * DBのトランザクションを簡単に行うためのクラスです。
  */
 public class Transaction implements AutoCloseable
 {
+    private static final int STREAMING_FETCH_SIZE = 1000;
+
     /**
      * Dbのコネクションです。
      */
     @Getter
     private final Connection connection;
 
+    @Nullable
+    private final String query;
     @Nullable
     private final PreparedStatement preparedStatement;
 
+    private final boolean returnGeneratedKeys;
+    private final boolean nested;
+    @Nullable
+    private Savepoint savepoint;
+    // 名前付きステートメントの場合、コミットとクローズを受け持つトランザクション
+    @Nullable
+    private final Transaction owner;
+    @Nullable
+    private LinkedHashMap<String, Transaction> statements;
+
     private TransactionRun beforeCommit;
+    private int queryTimeout;
+    @Nullable
+    private DatabaseExecutor executor;
+
+    private int batchSize;
+    private int pendingBatchCount;
+    private int[] batchUpdateCounts;
+    private int batchUpdateCountsSize;
+    private long[] batchGeneratedKeys;
+    private int batchGeneratedKeysSize;
+
+    @Nullable
+    private QueryCache cache;
+    private String[] cacheTables;
+    // キャッシュのキーとスロークエリログに使用する、セットされた値
+    private Object[] boundParameters;
+    private int boundParameterCount;
+    // 同じコネクションのトランザクション間で共有される、コミット時にキャッシュを破棄するテーブル
+    @Nullable
+    private Set<String> touchedTables;
+    // 結果を読み込み中のクエリ。コネクションを共有するトランザクション間で共有し、コネクションを閉じるときに登録を解除する
+    private Set<DatabaseLifecycle.RunningStatement> openQueries;
+    // LeakDetector が有効な場合の登録。同じコネクションのトランザクション間で共有される
+    @Nullable
+    private LeakDetector.Handle leakHandle;
+    @Nullable
+    private final QueryMetrics metrics;
+    // 閉じられないまま終了した場合にも読み込んだ行数を記録するための、最後に実行したクエリの結果
+    @Nullable
+    private QueryResult<?> lastResult;
+
+    private Transaction(Connection connection, String query, boolean returnGeneratedKeys) throws SQLException
+    {
+        this(connection, query, returnGeneratedKeys, false, null);
+    }
 
-    private Transaction(Connection connection, String query) throws SQLException
+    private Transaction(Connection connection, String query, boolean returnGeneratedKeys, boolean nested,
+                        @Nullable Transaction owner) throws SQLException
     {
         this.connection = connection;
-        this.connection.setAutoCommit(false);
+        if (!nested && owner == null)
+            this.connection.setAutoCommit(false);
+        this.query = query;
+        this.returnGeneratedKeys = returnGeneratedKeys;
+        this.nested = nested;
+        this.owner = owner;
+        this.metrics = QueryMetrics.getActive();
 
-        if (query != null)
-            this.preparedStatement = this.connection.prepareStatement(query);
-        else
+        if (query == null)
             this.preparedStatement = null;
+        else if (returnGeneratedKeys)
+            this.preparedStatement = this.connection.prepareStatement(query, Statement.RETURN_GENERATED_KEYS);
+        else
+            this.preparedStatement = this.connection.prepareStatement(query);
     }
 
     /**
@@ -46,56 +119,713 @@ public class Transaction implements AutoCloseable
      */
     public static Transaction create(@NotNull Connection connection, @Nullable @Language("sql") String sql)
     {
+        return create(connection, sql, false);
+    }
+
+    /**
+     * トランザクションを開始します。
+     *
+     * @param connection          コネクション
+     * @param sql                 SQL文
+     * @param returnGeneratedKeys 生成されたキーを取得するかどうか
+     * @return トランザクション
+     */
+    public static Transaction create(@NotNull Connection connection, @Nullable @Language("sql") String sql, boolean returnGeneratedKeys)
+    {
+        try
+        {
+            return new Transaction(connection, sql, returnGeneratedKeys).trackLeak();
+        }
+        catch (SQLException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * {@link DataSource} からコネクションを取得し、トランザクションを開始します。
+     * {@link ConnectionPool} を指定した場合、終了時にコネクションはプールへ返却されます。
+     *
+     * @param dataSource データソース
+     * @param sql        SQL文
+     * @return トランザクション
+     */
+    public static Transaction create(@NotNull DataSource dataSource, @Nullable @Language("sql") String sql)
+    {
+        return create(dataSource, sql, false);
+    }
+
+    /**
+     * {@link DataSource} からコネクションを取得し、トランザクションを開始します。
+     * {@link ConnectionPool} を指定した場合、終了時にコネクションはプールへ返却されます。
+     *
+     * @param dataSource          データソース
+     * @param sql                 SQL文
+     * @param returnGeneratedKeys 生成されたキーを取得するかどうか
+     * @return トランザクション
+     */
+    public static Transaction create(@NotNull DataSource dataSource, @Nullable @Language("sql") String sql, boolean returnGeneratedKeys)
+    {
+        Connection connection;
+        try
+        {
+            connection = dataSource.getConnection();
+        }
+        catch (SQLException e)
+        {
+            throw new IllegalStateException(e);
+        }
+
         try
         {
-            return new Transaction(connection, sql);
+            return new Transaction(connection, sql, returnGeneratedKeys).trackLeak();
         }
         catch (SQLException e)
         {
+            try
+            {
+                connection.close();
+            }
+            catch (SQLException e1)
+            {
+                e.addSuppressed(e1);
+            }
             throw new IllegalStateException(e);
         }
     }
 
-    /**
-     * トランザクションを開始します。
-     *
-     * @param transaction 既存のトランザクション
-     * @param sql         SQL文
-     * @return トランザクション
-     */
-    public static Transaction create(@NotNull Transaction transaction, @Nullable @Language("sql") String sql)
+    /**
+     * トランザクションを開始します。
+     * 既存のトランザクションとコネクションを共有するため、コミットやロールバックはコネクション全体に対して行われます。
+     * 変更の一部のみを取り消せるようにする場合は {@link #nest(String)} を使用してください。
+     * <p>
+     * 既存のトランザクションが入れ子のトランザクションや名前付きステートメントの場合は、
+     * 新しいセーブポイントを作らずに入れ子として開始され、コミット、ロールバック、終了は何もしません。
+     * 変更は外側のトランザクションでまとめてコミットまたはロールバックされます。
+     *
+     * @param transaction 既存のトランザクション
+     * @param sql         SQL文
+     * @return トランザクション
+     */
+    public static Transaction create(@NotNull Transaction transaction, @Nullable @Language("sql") String sql)
+    {
+        return create(transaction, sql, false);
+    }
+
+    /**
+     * トランザクションを開始します。
+     *
+     * @param transaction         既存のトランザクション
+     * @param sql                 SQL文
+     * @param returnGeneratedKeys 生成されたキーを取得するかどうか
+     * @return トランザクション
+     */
+    public static Transaction create(@NotNull Transaction transaction, @Nullable @Language("sql") String sql, boolean returnGeneratedKeys)
+    {
+        try
+        {
+            // 外側がコネクションを所有していない場合に、コミットや終了で外側のトランザクションを終わらせないよう入れ子として扱う
+            boolean nested = transaction.nested || transaction.owner != null;
+            Transaction created = new Transaction(transaction.getConnection(), sql, returnGeneratedKeys, nested, null);
+
+            if (transaction.touchedTables == null)
+                transaction.touchedTables = new HashSet<>();
+            created.touchedTables = transaction.touchedTables;
+            created.openQueries = transaction.getOpenQueries();
+            created.leakHandle = transaction.leakHandle;
+
+            return created;
+        }
+        catch (SQLException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * トランザクションを再生成します。
+     * {@link ConnectionPool.Settings#setStatementCacheSize(int)} でステートメントキャッシュを有効にしている場合、
+     * 同じSQL文のステートメントはパラメータを消去したうえで再利用されます。
+     * ループの中で複数のSQL文を繰り返し実行する場合は、{@link #statement(String, String)} を使用してください。
+     *
+     * @param newQuery 新しいSQL文
+     * @return トランザクション
+     */
+    public Transaction renew(@Language("sql") @Nullable String newQuery)
+    {
+        return create(this, newQuery);
+    }
+
+    /**
+     * トランザクションを再生成します。
+     *
+     * @param newQuery            新しいSQL文
+     * @param returnGeneratedKeys 生成されたキーを取得するかどうか
+     * @return トランザクション
+     */
+    public Transaction renew(@Language("sql") @Nullable String newQuery, boolean returnGeneratedKeys)
+    {
+        return create(this, newQuery, returnGeneratedKeys);
+    }
+
+    /**
+     * このトランザクションの中に、セーブポイントを使用した入れ子のトランザクションを開始します。
+     * <p>
+     * 入れ子のトランザクションでのコミットはセーブポイントを解放するだけで、実際のコミットは外側のトランザクションで行われます。
+     * ロールバックはセーブポイントまでの変更のみを取り消し、外側のトランザクションは続行できます。
+     * また、コネクションは閉じられません。
+     *
+     * <pre>
+     *     Transaction.create(pool, null).doTransaction(outer -&gt; {
+     *         outer.nest("UPDATE players SET coins = coins - ? WHERE uuid = ?")
+     *                 .set(1, price).set(2, uuid.toString())
+     *                 .executeUpdate();  // セーブポイントを解放するのみ
+     *
+     *         try
+     *         {
+     *             outer.nest(null).doTransaction(inner -&gt; grantReward(inner));
+     *         }
+     *         catch (IllegalStateException e)
+     *         {
+     *             // grantReward の変更のみが取り消されている
+     *         }
+     *     });  // ここでまとめてコミットされる
+     * </pre>
+     *
+     * @param sql SQL文
+     * @return 入れ子のトランザクション
+     */
+    public Transaction nest(@Language("sql") @Nullable String sql)
+    {
+        return this.nest(sql, false);
+    }
+
+    /**
+     * このトランザクションの中に、セーブポイントを使用した入れ子のトランザクションを開始します。
+     *
+     * @param sql                 SQL文
+     * @param returnGeneratedKeys 生成されたキーを取得するかどうか
+     * @return 入れ子のトランザクション
+     * @see #nest(String)
+     */
+    public Transaction nest(@Language("sql") @Nullable String sql, boolean returnGeneratedKeys)
+    {
+        try
+        {
+            Transaction nested = new Transaction(this.connection, sql, returnGeneratedKeys, true, null);
+            nested.savepoint = this.connection.setSavepoint();
+
+            if (this.touchedTables == null)
+                this.touchedTables = new HashSet<>();
+            nested.touchedTables = this.touchedTables;
+            nested.openQueries = this.getOpenQueries();
+
+            return nested;
+        }
+        catch (SQLException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * このトランザクションのコネクションで、名前付きのステートメントを取得します。まだ準備されていない場合は準備します。
+     * <p>
+     * {@link #renew(String)} と異なり、同じ名前のステートメントは繰り返し再利用されます。
+     * 名前付きステートメントでのコミットや終了は何も行わず、このトランザクションの終了時にまとめてステートメントが閉じられます。
+     * 例外が発生した場合は、このトランザクション全体がロールバックされます。
+     *
+     * <pre>
+     *     Transaction.create(pool, null).doTransaction(transaction -&gt; {
+     *         for (Purchase purchase : purchases)
+     *         {
+     *             transaction.statement("debit", "UPDATE players SET coins = coins - ? WHERE uuid = ?")
+     *                     .set(1, purchase.price).set(2, purchase.uuid.toString())
+     *                     .executeUpdate();
+     *             transaction.statement("log", "INSERT INTO purchases (uuid, item) VALUES (?, ?)")
+     *                     .set(1, purchase.uuid.toString()).set(2, purchase.item)
+     *                     .addBatch();
+     *         }
+     *         transaction.statement("log").executeBatch();
+     *     });  // ここでコミットされ、両方のステートメントが閉じられる
+     * </pre>
+     *
+     * @param name 名前
+     * @param sql  SQL文。同じ名前で異なるSQL文を指定した場合は、以前のステートメントを閉じて準備し直します。
+     * @return 名前付きステートメント
+     */
+    public Transaction statement(@NotNull String name, @NotNull @Language("sql") String sql)
+    {
+        return this.statement(name, sql, false);
+    }
+
+    /**
+     * このトランザクションのコネクションで、名前付きのステートメントを取得します。まだ準備されていない場合は準備します。
+     *
+     * @param name                名前
+     * @param sql                 SQL文
+     * @param returnGeneratedKeys 生成されたキーを取得するかどうか
+     * @return 名前付きステートメント
+     * @see #statement(String, String)
+     */
+    public Transaction statement(@NotNull String name, @NotNull @Language("sql") String sql, boolean returnGeneratedKeys)
+    {
+        if (this.owner != null)
+            return this.owner.statement(name, sql, returnGeneratedKeys);
+
+        if (this.statements == null)
+            this.statements = new LinkedHashMap<>();
+
+        Transaction statement = this.statements.get(name);
+        if (statement != null && sql.equals(statement.query) && statement.returnGeneratedKeys == returnGeneratedKeys)
+            return statement;
+
+        try
+        {
+            if (statement != null && statement.preparedStatement != null)
+                statement.preparedStatement.close();
+
+            statement = new Transaction(this.connection, sql, returnGeneratedKeys, false, this);
+        }
+        catch (SQLException e)
+        {
+            this.statements.remove(name);
+            throw new IllegalStateException(e);
+        }
+
+        if (this.touchedTables == null)
+            this.touchedTables = new HashSet<>();
+        statement.touchedTables = this.touchedTables;
+        statement.openQueries = this.getOpenQueries();
+
+        this.statements.put(name, statement);
+        return statement;
+    }
+
+    /**
+     * 準備済みの名前付きステートメントを取得します。
+     *
+     * @param name 名前
+     * @return 名前付きステートメント
+     * @throws IllegalStateException 準備されていない場合
+     * @see #statement(String, String)
+     */
+    public Transaction statement(@NotNull String name)
+    {
+        if (this.owner != null)
+            return this.owner.statement(name);
+
+        Transaction statement = this.statements == null ? null : this.statements.get(name);
+        if (statement == null)
+            throw new IllegalStateException("Statement " + name + " is not prepared.");
+        return statement;
+    }
+
+    /**
+     * 入れ子のトランザクションかどうかを返します。
+     *
+     * @return {@link #nest(String)} で開始されたか、入れ子のトランザクションから {@link #create(Transaction, String)} などで開始されたかどうか
+     */
+    public boolean isNested()
+    {
+        return this.nested;
+    }
+
+    /**
+     * コミット前に実行する処理を登録します。
+     *
+     * @param beforeCommit コミット前に実行する処理
+     * @return トランザクション
+     */
+    public Transaction beforeCommit(TransactionRun beforeCommit)
+    {
+        this.beforeCommit = beforeCommit;
+        return this;
+    }
+
+    /**
+     * {@link #addBatch()} で自動的にバッチを送信する件数を設定します。
+     * 0 以下の場合は {@link #executeBatch(boolean)} を呼び出すまで送信しません。
+     *
+     * @param batchSize 自動送信する件数
+     * @return トランザクション
+     */
+    public Transaction batchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * 非同期実行に使用するスレッドプールを設定します。
+     * 設定しない場合は {@link DatabaseExecutor#getDefault()} が使用されます。
+     *
+     * @param executor スレッドプール
+     * @return トランザクション
+     */
+    public Transaction executor(@NotNull DatabaseExecutor executor)
+    {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * このクエリの結果をキャッシュするよう設定します。
+     * キャッシュのキーにはセットされた値が含まれるため、値をセットする前に呼び出してください。
+     *
+     * @param cache  キャッシュ
+     * @param tables 結果が依存するテーブル。これらのテーブルへの更新がコミットされると、結果は破棄されます。
+     * @return トランザクション
+     * @see QueryCache
+     */
+    public Transaction cache(@NotNull QueryCache cache, @NotNull String... tables)
+    {
+        if (this.query == null)
+            throw new IllegalStateException("This TransactionHelper is not prepared.");
+
+        this.cache = cache;
+        this.cacheTables = new String[tables.length];
+        for (int i = 0; i < tables.length; i++)
+            this.cacheTables[i] = QueryCache.normalizeTable(tables[i]);
+        this.boundParameters = new Object[8];
+        this.boundParameterCount = 0;
+        return this;
+    }
+
+    /**
+     * ドライバが一度に読み込む行数を設定します。0 の場合はドライバのデフォルトです。
+     * ステートメントは種類と並行性を指定せずに準備されるため、JDBCのデフォルトである {@link ResultSet#TYPE_FORWARD_ONLY}、{@link ResultSet#CONCUR_READ_ONLY} になります。
+     *
+     * @param fetchSize 一度に読み込む行数
+     * @return トランザクション
+     * @see #streaming()
+     */
+    public Transaction fetchSize(int fetchSize)
+    {
+        if (!this.checkPrepareCondition())
+            throw new IllegalStateException("This TransactionHelper is not prepared.");
+
+        try
+        {
+            this.preparedStatement.setFetchSize(fetchSize);
+            return this;
+        }
+        catch (SQLException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 実行のタイムアウトを設定します。0 の場合は無制限です。
+     * SQL文を指定せずに開始したトランザクションでは、{@link BulkUpsert#execute(Transaction)} などで実行される文に適用されます。
+     *
+     * @param seconds タイムアウトの秒数
+     * @return トランザクション
+     */
+    public Transaction queryTimeout(int seconds)
+    {
+        this.queryTimeout = seconds;
+        if (!this.checkPrepareCondition())
+            return this;
+
+        try
+        {
+            this.preparedStatement.setQueryTimeout(seconds);
+            return this;
+        }
+        catch (SQLException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 結果の最大行数を設定します。超えた行は返されません。0 の場合は無制限です。
+     *
+     * @param maxRows 最大行数
+     * @return トランザクション
+     */
+    public Transaction maxRows(int maxRows)
+    {
+        if (!this.checkPrepareCondition())
+            throw new IllegalStateException("This TransactionHelper is not prepared.");
+
+        try
+        {
+            this.preparedStatement.setMaxRows(maxRows);
+            return this;
+        }
+        catch (SQLException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 結果をすべてメモリに読み込まず、少しずつ読み込むよう設定します。
+     * MySQL Connector/J では行ごとのストリーミング、それ以外のドライバでは
+     * 1000 行ずつのカーソル読み込みになります。
+     * <p>
+     * MySQL Connector/J では結果を読み終えるか閉じるまで、同じコネクションで他の文を実行できません。
+     * また、{@link #cache(QueryCache, String...)} を設定している場合は、結果がキャッシュに読み込まれるため効果がありません。
+     *
+     * @return トランザクション
+     */
+    public Transaction streaming()
+    {
+        try
+        {
+            String driver = this.connection.getMetaData().getDriverName();
+            // Connector/J は Integer.MIN_VALUE のときだけ行ごとに読み込み、正の値は useCursorFetch=true の場合のみ有効
+            if (driver != null && driver.startsWith("MySQL Connector"))
+                return this.fetchSize(Integer.MIN_VALUE);
+            return this.fetchSize(STREAMING_FETCH_SIZE);
+        }
+        catch (SQLException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void recordParameter(int index, @Nullable Object value)
+    {
+        if (this.cache == null && this.metrics == null)
+            return;
+
+        if (this.boundParameters == null)
+            this.boundParameters = new Object[8];
+
+        if (this.boundParameters.length < index)
+            this.boundParameters = Arrays.copyOf(this.boundParameters, Math.max(this.boundParameters.length << 1, index));
+        this.boundParameters[index - 1] = value;
+        this.boundParameterCount = Math.max(this.boundParameterCount, index);
+    }
+
+    private void markTouched()
+    {
+        if (this.query == null || !QueryCache.isActive())
+            return;
+
+        String table = QueryCache.getUpdateTarget(this.query);
+        if (table != null)
+            this.touch(table);
+    }
+
+    /**
+     * コミット時に {@link QueryCache} を破棄するテーブルとして記録します。
+     *
+     * @param table 正規化済みのテーブル名
+     */
+    void touch(@NotNull String table)
+    {
+        if (this.touchedTables == null)
+            this.touchedTables = new HashSet<>();
+        this.touchedTables.add(table);
+    }
+
+    /**
+     * このトランザクションのタイムアウトと統計情報で、パッケージ内で準備したステートメントの更新系SQL文を実行します。
+     * 実行中は {@link DatabaseLifecycle#shutdown(long, java.util.concurrent.TimeUnit)} で取り消せるように登録されます。
+     *
+     * @param statement このトランザクションのコネクションで準備したステートメント
+     * @param sql       統計情報に記録するSQL文
+     * @return 更新件数
+     * @throws SQLException 実行に失敗した場合
+     */
+    int executeUpdate(PreparedStatement statement, String sql) throws SQLException
+    {
+        long startedAt = this.startTiming();
+        DatabaseLifecycle.RunningStatement running = DatabaseLifecycle.begin(statement, this.queryTimeout);
+        try
+        {
+            int result = statement.executeUpdate();
+            if (this.metrics != null)
+                this.metrics.record(sql, startedAt, result, false, null, 0);
+            return result;
+        }
+        catch (SQLException e)
+        {
+            if (this.metrics != null)
+                this.metrics.record(sql, startedAt, 0, true, null, 0);
+            throw e;
+        }
+        finally
+        {
+            running.end();
+        }
+    }
+
+    private long startTiming()
+    {
+        return this.metrics == null ? 0L: System.nanoTime();
+    }
+
+    private void recordTiming(@Nullable String sql, long startedAt, long rows, boolean failed)
+    {
+        if (this.metrics != null)
+            this.metrics.record(sql, startedAt, rows, failed, this.boundParameters, this.boundParameterCount);
+    }
+
+    private Transaction trackLeak()
+    {
+        this.leakHandle = LeakDetector.track(LeakDetector.Kind.TRANSACTION, this.query, this.connection::isClosed, this::abortManually);
+        return this;
+    }
+
+    private void commit() throws SQLException
+    {
+        if (this.owner != null)
+            return;
+
+        if (this.nested)
+        {
+            if (this.savepoint != null)
+            {
+                try
+                {
+                    this.connection.releaseSavepoint(this.savepoint);
+                }
+                catch (SQLFeatureNotSupportedException ignored)
+                {
+                    // 解放に対応していないドライバでは、外側のコミットまで残しておく
+                }
+                this.savepoint = null;
+            }
+            return;
+        }
+
+        this.connection.commit();
+
+        if (this.touchedTables != null && !this.touchedTables.isEmpty())
+        {
+            QueryCache.invalidateTables(this.touchedTables);
+            this.touchedTables.clear();
+        }
+    }
+
+    private void rollback() throws SQLException
+    {
+        if (this.owner != null)
+        {
+            this.owner.rollback();
+            return;
+        }
+
+        if (!this.nested)
+        {
+            this.connection.rollback();
+            return;
+        }
+
+        if (this.savepoint != null)
+        {
+            this.connection.rollback(this.savepoint);
+            this.savepoint = null;
+        }
+    }
+
+    private void release() throws SQLException
+    {
+        if (this.owner != null)
+            return;
+
+        this.reportRows();
+
+        try
+        {
+            this.closeStatements();
+        }
+        finally
+        {
+            try
+            {
+                // プールされたコネクションは閉じても物理的には閉じられないため、ステートメントを明示的に閉じる
+                if (this.preparedStatement != null)
+                    this.preparedStatement.close();
+            }
+            finally
+            {
+                // 入れ子のトランザクションはコネクションを所有しないため、ステートメントのみを閉じる
+                if (!this.nested)
+                {
+                    this.connection.close();
+                    if (this.leakHandle != null)
+                        this.leakHandle.release();
+                    if (this.openQueries != null)
+                        new ArrayList<>(this.openQueries).forEach(DatabaseLifecycle.RunningStatement::end);
+                }
+            }
+        }
+    }
+
+    private void reportRows()
+    {
+        if (this.lastResult == null)
+            return;
+
+        this.lastResult.reportRows();
+        this.lastResult = null;
+    }
+
+    private Set<DatabaseLifecycle.RunningStatement> getOpenQueries()
     {
-        try
-        {
-            return new Transaction(transaction.getConnection(), sql);
-        }
-        catch (SQLException e)
+        if (this.openQueries == null)
+            this.openQueries = ConcurrentHashMap.newKeySet();
+        return this.openQueries;
+    }
+
+    private void closeStatements() throws SQLException
+    {
+        if (this.statements == null)
+            return;
+
+        SQLException failure = null;
+        for (Transaction statement : this.statements.values())
         {
-            throw new IllegalStateException(e);
+            statement.reportRows();
+            try
+            {
+                if (statement.preparedStatement != null)
+                    statement.preparedStatement.close();
+            }
+            catch (SQLException e)
+            {
+                if (failure == null)
+                    failure = e;
+                else
+                    failure.addSuppressed(e);
+            }
         }
+        this.statements.clear();
+
+        if (failure != null)
+            throw failure;
     }
 
-    /**
-     * トランザクションを再生成します。
-     *
-     * @param newQuery 新しいSQL文
-     * @return トランザクション
-     */
-    public Transaction renew(@Language("sql") @Nullable String newQuery)
+    private DatabaseExecutor getExecutor()
     {
-        return create(this, newQuery);
+        return this.executor != null ? this.executor : DatabaseExecutor.getDefault();
     }
 
     /**
-     * コミット前に実行する処理を登録します。
+     * タスクを非同期で実行します。
+     * キューが一杯などで実行されなかった場合、タスクの中で行われるはずだった終了処理の代わりにトランザクションを閉じます。
      *
-     * @param beforeCommit コミット前に実行する処理
-     * @return トランザクション
+     * @param task          タスク
+     * @param closeOnReject 実行されなかった場合にトランザクションを閉じるかどうか
+     * @param <T>           結果の型
+     * @return タスクの結果
      */
-    public Transaction beforeCommit(TransactionRun beforeCommit)
+    private <T> CompletableFuture<T> submit(DatabaseExecutor.Task<? extends T> task, boolean closeOnReject)
     {
-        this.beforeCommit = beforeCommit;
-        return this;
+        CompletableFuture<T> future = this.getExecutor().submit(task);
+        if (closeOnReject)
+            future.whenComplete((result, throwable) -> {
+                if (throwable instanceof RejectedExecutionException)
+                    this.close();
+            });
+        return future;
     }
 
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
@@ -119,6 +849,7 @@ public class Transaction implements AutoCloseable
         try
         {
             this.preparedStatement.setString(index, value);
+            this.recordParameter(index, value);
             return this;
         }
         catch (SQLException e)
@@ -143,6 +874,7 @@ public class Transaction implements AutoCloseable
         try
         {
             this.preparedStatement.setInt(index, value);
+            this.recordParameter(index, value);
             return this;
         }
         catch (SQLException e)
@@ -166,6 +898,7 @@ public class Transaction implements AutoCloseable
         try
         {
             this.preparedStatement.setBoolean(index, value);
+            this.recordParameter(index, value);
             return this;
         }
         catch (SQLException e)
@@ -189,6 +922,7 @@ public class Transaction implements AutoCloseable
         try
         {
             this.preparedStatement.setLong(index, value);
+            this.recordParameter(index, value);
             return this;
         }
         catch (SQLException e)
@@ -212,6 +946,7 @@ public class Transaction implements AutoCloseable
         try
         {
             this.preparedStatement.setDouble(index, value);
+            this.recordParameter(index, value);
             return this;
         }
         catch (SQLException e)
@@ -235,6 +970,7 @@ public class Transaction implements AutoCloseable
         try
         {
             this.preparedStatement.setFloat(index, value);
+            this.recordParameter(index, value);
             return this;
         }
         catch (SQLException e)
@@ -258,6 +994,7 @@ public class Transaction implements AutoCloseable
         try
         {
             this.preparedStatement.setByte(index, value);
+            this.recordParameter(index, value);
             return this;
         }
         catch (SQLException e)
@@ -281,6 +1018,7 @@ public class Transaction implements AutoCloseable
         try
         {
             this.preparedStatement.setShort(index, value);
+            this.recordParameter(index, value);
             return this;
         }
         catch (SQLException e)
@@ -304,6 +1042,7 @@ public class Transaction implements AutoCloseable
         try
         {
             this.preparedStatement.setBytes(index, value);
+            this.recordParameter(index, value == null ? null : value.clone());
             return this;
         }
         catch (SQLException e)
@@ -327,6 +1066,46 @@ public class Transaction implements AutoCloseable
         try
         {
             this.preparedStatement.setNull(index, type);
+            this.recordParameter(index, null);
+            return this;
+        }
+        catch (SQLException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * SQL文に値をセットします。値の型に応じたメソッドでセットし、対応していない型はドライバに任せます。
+     *
+     * @param index インデックス
+     * @param value 値
+     * @return トランザクション
+     */
+    public Transaction setObject(int index, @Nullable Object value)
+    {
+        if (value == null)
+            return this.setNull(index, Types.NULL);
+        else if (value instanceof String)
+            return this.set(index, (String) value);
+        else if (value instanceof Integer)
+            return this.set(index, (int) value);
+        else if (value instanceof Long)
+            return this.set(index, (long) value);
+        else if (value instanceof Double)
+            return this.set(index, (double) value);
+        else if (value instanceof Boolean)
+            return this.set(index, (boolean) value);
+        else if (value instanceof byte[])
+            return this.set(index, (byte[]) value);
+
+        if (!this.checkPrepareCondition())
+            throw new IllegalStateException("This TransactionHelper is not prepared.");
+
+        try
+        {
+            this.preparedStatement.setObject(index, value);
+            this.recordParameter(index, value);
             return this;
         }
         catch (SQLException e)
@@ -346,25 +1125,42 @@ public class Transaction implements AutoCloseable
         if (!this.checkPrepareCondition())
             throw new IllegalStateException("This TransactionHelper is not prepared.");
 
+        long startedAt = this.startTiming();
+        boolean executed = false;
         try
         {
-            int result = this.preparedStatement.executeUpdate();
+            int result;
+            DatabaseLifecycle.RunningStatement running = DatabaseLifecycle.begin(this.preparedStatement, this.queryTimeout);
+            try
+            {
+                result = this.preparedStatement.executeUpdate();
+            }
+            finally
+            {
+                running.end();
+            }
+            executed = true;
+            this.recordTiming(this.query, startedAt, result, false);
+            this.markTouched();
 
             if (autoFinish)
             {
                 if (this.beforeCommit != null)
                     this.beforeCommit.run(this);
 
-                this.connection.commit();
+                this.commit();
             }
 
             return result;
         }
         catch (SQLException e)
         {
+            if (!executed)
+                this.recordTiming(this.query, startedAt, 0, true);
+
             try
             {
-                this.connection.rollback();
+                this.rollback();
             }
             catch (SQLException e1)
             {
@@ -379,7 +1175,7 @@ public class Transaction implements AutoCloseable
             if (autoFinish)
                 try
                 {
-                    this.connection.close();
+                    this.release();
                 }
                 catch (SQLException e)
                 {
@@ -398,6 +1194,218 @@ public class Transaction implements AutoCloseable
         return this.executeUpdate(true);
     }
 
+    /**
+     * 更新系SQL文を非同期で実行します。
+     *
+     * @param autoFinish 自動終了するかどうか
+     * @return 更新件数
+     * @see #executeUpdate(boolean)
+     */
+    public CompletableFuture<Integer> executeUpdateAsync(boolean autoFinish)
+    {
+        return this.submit(() -> this.executeUpdate(autoFinish), autoFinish);
+    }
+
+    /**
+     * 更新系SQL文を非同期で実行し、トランザクションを終了します。
+     *
+     * @return 更新件数
+     * @see #executeUpdate()
+     */
+    public CompletableFuture<Integer> executeUpdateAsync()
+    {
+        return this.executeUpdateAsync(true);
+    }
+
+    /**
+     * 現在セットされている値をバッチに追加します。
+     * {@link #batchSize(int)} で設定した件数に達した場合は、バッチを送信します(コミットはしません)。
+     *
+     * @return トランザクション
+     */
+    public Transaction addBatch()
+    {
+        if (!this.checkPrepareCondition())
+            throw new IllegalStateException("This TransactionHelper is not prepared.");
+
+        try
+        {
+            this.preparedStatement.addBatch();
+            this.pendingBatchCount++;
+
+            if (this.batchSize > 0 && this.pendingBatchCount >= this.batchSize)
+                this.flushBatch();
+
+            return this;
+        }
+        catch (SQLException e)
+        {
+            this.clearBatchState();
+            try
+            {
+                this.rollback();
+            }
+            catch (SQLException e1)
+            {
+                throw new IllegalStateException(e1);
+            }
+
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void flushBatch() throws SQLException
+    {
+        if (this.pendingBatchCount == 0)
+            return;
+
+        long startedAt = this.startTiming();
+        int[] counts;
+        DatabaseLifecycle.RunningStatement running = DatabaseLifecycle.begin(this.preparedStatement, this.queryTimeout);
+        try
+        {
+            counts = this.preparedStatement.executeBatch();
+        }
+        catch (SQLException e)
+        {
+            this.recordTiming(this.query, startedAt, 0, true);
+            throw e;
+        }
+        finally
+        {
+            running.end();
+        }
+        this.pendingBatchCount = 0;
+        if (this.metrics != null)
+            this.recordTiming(this.query, startedAt, sumUpdateCounts(counts), false);
+        this.markTouched();
+
+        if (this.batchUpdateCounts == null)
+            this.batchUpdateCounts = new int[Math.max(counts.length, 16)];
+        else if (this.batchUpdateCounts.length < this.batchUpdateCountsSize + counts.length)
+            this.batchUpdateCounts = Arrays.copyOf(
+                    this.batchUpdateCounts,
+                    Math.max(this.batchUpdateCounts.length << 1, this.batchUpdateCountsSize + counts.length)
+            );
+        System.arraycopy(counts, 0, this.batchUpdateCounts, this.batchUpdateCountsSize, counts.length);
+        this.batchUpdateCountsSize += counts.length;
+
+        if (!this.returnGeneratedKeys)
+            return;
+
+        try (ResultSet keys = this.preparedStatement.getGeneratedKeys())
+        {
+            while (keys.next())
+            {
+                if (this.batchGeneratedKeys == null)
+                    this.batchGeneratedKeys = new long[Math.max(counts.length, 16)];
+                else if (this.batchGeneratedKeys.length == this.batchGeneratedKeysSize)
+                    this.batchGeneratedKeys = Arrays.copyOf(this.batchGeneratedKeys, this.batchGeneratedKeysSize << 1);
+
+                this.batchGeneratedKeys[this.batchGeneratedKeysSize++] = keys.getLong(1);
+            }
+        }
+    }
+
+    private static long sumUpdateCounts(int[] counts)
+    {
+        long sum = 0;
+        for (int count : counts)
+            if (count > 0)
+                sum += count;
+        return sum;
+    }
+
+    private BatchResult takeBatchResult()
+    {
+        BatchResult result = new BatchResult(
+                this.batchUpdateCounts == null ? new int[0] : Arrays.copyOf(this.batchUpdateCounts, this.batchUpdateCountsSize),
+                this.batchGeneratedKeys == null ? new long[0] : Arrays.copyOf(this.batchGeneratedKeys, this.batchGeneratedKeysSize)
+        );
+        this.clearBatchState();
+        return result;
+    }
+
+    private void clearBatchState()
+    {
+        this.pendingBatchCount = 0;
+        this.batchUpdateCountsSize = 0;
+        this.batchGeneratedKeysSize = 0;
+
+        try
+        {
+            if (this.preparedStatement != null)
+                this.preparedStatement.clearBatch();
+        }
+        catch (SQLException ignored)
+        {
+        }
+    }
+
+    /**
+     * 溜まっているバッチを送信し、結果を返します。
+     * 例外が発生した場合は {@link #doTransaction(TransactionRun)} と同様にロールバックされます。
+     *
+     * @param autoFinish 自動終了するかどうか
+     * @return 自動送信分も含めた、前回の実行以降のすべてのバッチの結果
+     */
+    public BatchResult executeBatch(boolean autoFinish)
+    {
+        if (!this.checkPrepareCondition())
+            throw new IllegalStateException("This TransactionHelper is not prepared.");
+
+        try
+        {
+            this.flushBatch();
+
+            if (autoFinish)
+            {
+                if (this.beforeCommit != null)
+                    this.beforeCommit.run(this);
+
+                this.commit();
+            }
+
+            return this.takeBatchResult();
+        }
+        catch (SQLException e)
+        {
+            this.clearBatchState();
+            try
+            {
+                this.rollback();
+            }
+            catch (SQLException e1)
+            {
+                throw new IllegalStateException(e1);
+            }
+
+            throw new IllegalStateException(e);
+        }
+        finally
+        {
+            if (autoFinish)
+                try
+                {
+                    this.release();
+                }
+                catch (SQLException e)
+                {
+                    e.printStackTrace();
+                }
+        }
+    }
+
+    /**
+     * 溜まっているバッチを送信してコミットし、トランザクションを終了します。
+     *
+     * @return 自動送信分も含めた、すべてのバッチの結果
+     */
+    public BatchResult executeBatch()
+    {
+        return this.executeBatch(true);
+    }
+
     /**
      * クエリ系SQL文を実行します。
      *
@@ -408,18 +1416,53 @@ public class Transaction implements AutoCloseable
         if (!this.checkPrepareCondition())
             throw new IllegalStateException("This TransactionHelper is not prepared.");
 
+        long startedAt = this.startTiming();
         try
         {
-            ResultSet resultSet = this.preparedStatement.executeQuery();
+            ResultSet resultSet;
+            DatabaseLifecycle.RunningStatement running = DatabaseLifecycle.begin(this.preparedStatement, this.queryTimeout);
+            try
+            {
+                if (this.cache == null)
+                    resultSet = this.preparedStatement.executeQuery();
+                else
+                    resultSet = this.cache.query(
+                            this.query,
+                            Arrays.copyOf(this.boundParameters, this.boundParameterCount),
+                            this.cacheTables,
+                            this.preparedStatement::executeQuery
+                    );
+            }
+            catch (SQLException | RuntimeException e)
+            {
+                running.end();
+                throw e;
+            }
+            this.recordTiming(this.query, startedAt, 0, false);
 
-            return new QueryResult<>(resultSet);
+            QueryResult<T> result = new QueryResult<>(resultSet, this.connection);
+            result.metrics = this.metrics;
+            result.query = this.query;
+            if (this.metrics != null)
+                this.lastResult = result;
+            if (this.cache == null)
+            {
+                result.leakHandle = LeakDetector.track(LeakDetector.Kind.RESULT_SET, this.query, resultSet::isClosed, resultSet::close);
+                // 行の読み込み中もフェッチが発生するため、結果を閉じるまで取り消せるように登録を残す
+                running.executed(this.getOpenQueries());
+                result.running = running;
+            }
+            else
+                running.end();
+            return result;
         }
         catch (SQLException e)
         {
+            this.recordTiming(this.query, startedAt, 0, true);
             try
             {
-                this.connection.rollback();
-                this.connection.close();
+                this.rollback();
+                this.release();
             }
             catch (SQLException e1)
             {
@@ -430,6 +1473,54 @@ public class Transaction implements AutoCloseable
         }
     }
 
+    /**
+     * クエリ系SQL文を非同期で実行し、すべての行をマップして返します。
+     * 結果は非同期スレッド上で読み込まれ、{@link java.sql.ResultSet} は閉じられます。
+     *
+     * @param mapper          マッピング関数。非同期スレッド上で呼び出されます。
+     * @param closeConnection 終了時にコネクションを閉じるかどうか
+     * @param <T>             マップ後の型
+     * @return マップされた行のList
+     */
+    public <T> CompletableFuture<List<T>> executeQueryAsync(@NotNull Function<? super ResultRow, ? extends T> mapper,
+                                                            boolean closeConnection)
+    {
+        return this.submit(() -> {
+            QueryResult<T> result = this.executeQuery();
+            try
+            {
+                return result.mapToList(mapper, -1);
+            }
+            finally
+            {
+                try
+                {
+                    result.close();
+                }
+                catch (SQLException e)
+                {
+                    e.printStackTrace();
+                }
+
+                if (closeConnection)
+                    this.close();
+            }
+        }, closeConnection);
+    }
+
+    /**
+     * クエリ系SQL文を非同期で実行し、すべての行をマップして返します。
+     * 終了時にコネクションは閉じられます。
+     *
+     * @param mapper マッピング関数。非同期スレッド上で呼び出されます。
+     * @param <T>    マップ後の型
+     * @return マップされた行のList
+     */
+    public <T> CompletableFuture<List<T>> executeQueryAsync(@NotNull Function<? super ResultRow, ? extends T> mapper)
+    {
+        return this.executeQueryAsync(mapper, true);
+    }
+
     /**
      * トランザクションを実行し、コミットします。
      *
@@ -437,19 +1528,22 @@ public class Transaction implements AutoCloseable
      */
     public void doTransaction(TransactionRun transactionRun)
     {
+        long startedAt = this.startTiming();
+        boolean failed = true;
         try
         {
             transactionRun.run(this);
 
             if (this.beforeCommit != null)
                 this.beforeCommit.run(this);
-            this.connection.commit();
+            this.commit();
+            failed = false;
         }
         catch (SQLException e)
         {
             try
             {
-                this.connection.rollback();
+                this.rollback();
             }
             catch (SQLException e1)
             {
@@ -458,11 +1552,39 @@ public class Transaction implements AutoCloseable
 
             throw new IllegalStateException(e);
         }
+        catch (RuntimeException e)
+        {
+            // 入れ子の場合は外側で例外が捕捉されても変更が残らないよう、セーブポイントまで戻す
+            if (this.nested)
+            {
+                try
+                {
+                    this.rollback();
+                }
+                catch (SQLException e1)
+                {
+                    e.addSuppressed(e1);
+                }
+            }
+
+            throw e;
+        }
         finally
         {
+            // 中で実行されたSQL文とは別に、トランザクション全体の時間として記録する
+            if (this.metrics != null)
+                this.metrics.record(
+                        this.query == null ? "TRANSACTION": "TRANSACTION " + this.query,
+                        startedAt,
+                        0,
+                        failed,
+                        null,
+                        0
+                );
+
             try
             {
-                this.connection.close();
+                this.release();
             }
             catch (SQLException e)
             {
@@ -471,6 +1593,21 @@ public class Transaction implements AutoCloseable
         }
     }
 
+    /**
+     * トランザクションを非同期で実行し、コミットします。
+     *
+     * @param transactionRun トランザクションを処理する関数。非同期スレッド上で呼び出されます。
+     * @return 完了を表すFuture
+     * @see #doTransaction(TransactionRun)
+     */
+    public CompletableFuture<Void> doTransactionAsync(@NotNull TransactionRun transactionRun)
+    {
+        return this.submit(() -> {
+            this.doTransaction(transactionRun);
+            return null;
+        }, true);
+    }
+
     /**
      * 手動でトランザクションをコミットし終了します。
      */
@@ -480,13 +1617,13 @@ public class Transaction implements AutoCloseable
         {
             if (this.beforeCommit != null)
                 this.beforeCommit.run(this);
-            this.connection.commit();
+            this.commit();
         }
         catch (SQLException e)
         {
             try
             {
-                this.connection.rollback();
+                this.rollback();
             }
             catch (SQLException e1)
             {
@@ -499,7 +1636,7 @@ public class Transaction implements AutoCloseable
         {
             try
             {
-                this.connection.close();
+                this.release();
             }
             catch (SQLException e)
             {
@@ -515,7 +1652,7 @@ public class Transaction implements AutoCloseable
     {
         try
         {
-            this.connection.rollback();
+            this.rollback();
         }
         catch (SQLException e1)
         {
@@ -524,7 +1661,7 @@ public class Transaction implements AutoCloseable
 
         try
         {
-            this.connection.close();
+            this.release();
         }
         catch (SQLException e)
         {
@@ -543,18 +1680,30 @@ public class Transaction implements AutoCloseable
         if (!this.checkPrepareCondition())
             throw new IllegalStateException("This TransactionHelper is not prepared.");
 
+        long startedAt = this.startTiming();
         try
         {
-            ResultSet resultSet = this.preparedStatement.executeQuery();
+            boolean result;
+            DatabaseLifecycle.RunningStatement running = DatabaseLifecycle.begin(this.preparedStatement, this.queryTimeout);
+            try
+            {
+                ResultSet resultSet = this.preparedStatement.executeQuery();
 
-            boolean result = resultSet.next();
+                result = resultSet.next();
 
-            resultSet.close();
+                resultSet.close();
+            }
+            finally
+            {
+                running.end();
+            }
 
+            this.recordTiming(this.query, startedAt, result ? 1: 0, false);
             return result;
         }
         catch (SQLException e)
         {
+            this.recordTiming(this.query, startedAt, 0, true);
             throw new IllegalStateException(e);
         }
         finally
@@ -562,7 +1711,7 @@ public class Transaction implements AutoCloseable
             try
             {
                 if (closeConnection)
-                    this.connection.close();
+                    this.release();
             }
             catch (SQLException e)
             {
@@ -587,7 +1736,7 @@ public class Transaction implements AutoCloseable
         try
         {
             if (!this.connection.isClosed())
-                this.connection.close();
+                this.release();
         }
         catch (SQLException ignored)
         {
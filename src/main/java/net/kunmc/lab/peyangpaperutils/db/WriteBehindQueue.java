@@ -0,0 +1,510 @@
+package net.kunmc.lab.peyangpaperutils.db;
+
+import net.kunmc.lab.peyangpaperutils.lib.utils.Runner;
+import org.bukkit.scheduler.BukkitTask;
+import org.intellij.lang.annotations.Language;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BinaryOperator;
+
+/**
+ * 同じ行への頻繁な更新をキーごとにまとめ、後から一括で書き込むキューです。
+ * 書き込みは1回の {@link Transaction#doTransaction(TransactionRun)} の中でバッチとして実行されます。
+ * {@link net.kunmc.lab.peyangpaperutils.PeyangPaperUtils#dispose()} の呼び出し時に、すべてのキューは書き込まれてから閉じられます。
+ *
+ * <pre>
+ *     WriteBehindQueue&lt;UUID, Integer&gt; coins = new WriteBehindQueue&lt;UUID, Integer&gt;(pool,
+ *             "UPDATE players SET coins = coins + ? WHERE uuid = ?",
+ *             (transaction, uuid, delta) -&gt; transaction.set(1, delta).set(2, uuid.toString()))
+ *             .merge(Integer::sum)
+ *             .flushThreshold(1000)
+ *             .start(100L);  // 5秒ごとに書き込み
+ *
+ *     coins.put(player.getUniqueId(), 1);
+ * </pre>
+ *
+ * @param <K> キーの型
+ * @param <V> 値の型
+ */
+public class WriteBehindQueue<K, V> implements AutoCloseable
+{
+    private static final Set<WriteBehindQueue<?, ?>> QUEUES = ConcurrentHashMap.newKeySet();
+
+    private final DataSource dataSource;
+    private final String sql;
+    private final Binder<? super K, ? super V> binder;
+
+    private final Object pendingLock;
+    private final ReentrantLock flushLock;
+    private LinkedHashMap<K, V> pending;
+
+    private final LongAdder enqueuedCount;
+    private final LongAdder coalescedCount;
+    private final LongAdder writtenCount;
+    private final LongAdder flushCount;
+    private final LongAdder failedFlushCount;
+
+    @Nullable
+    private BinaryOperator<V> merger;
+    private int flushThreshold;
+    @Nullable
+    private DatabaseExecutor executor;
+    @Nullable
+    private RetryPolicy retryPolicy;
+    @Nullable
+    private BukkitTask timer;
+    private volatile boolean closed;
+    private final AtomicBoolean thresholdFlushing = new AtomicBoolean();
+
+    /**
+     * キューを生成します。
+     *
+     * @param dataSource 書き込み先のデータソース
+     * @param sql        1件分の更新系SQL文
+     * @param binder     1件分の値をSQL文にセットする関数
+     */
+    public WriteBehindQueue(@NotNull DataSource dataSource, @NotNull @Language("sql") String sql,
+                            @NotNull Binder<? super K, ? super V> binder)
+    {
+        this.dataSource = dataSource;
+        this.sql = sql;
+        this.binder = binder;
+
+        this.pendingLock = new Object();
+        this.flushLock = new ReentrantLock();
+        this.pending = new LinkedHashMap<>();
+
+        this.enqueuedCount = new LongAdder();
+        this.coalescedCount = new LongAdder();
+        this.writtenCount = new LongAdder();
+        this.flushCount = new LongAdder();
+        this.failedFlushCount = new LongAdder();
+
+        QUEUES.add(this);
+    }
+
+    /**
+     * 登録されているすべてのキューを書き込んでから閉じます。
+     */
+    public static void closeAll()
+    {
+        for (WriteBehindQueue<?, ?> queue : new ArrayList<>(QUEUES))
+        {
+            try
+            {
+                queue.close();
+            }
+            catch (Exception e)
+            {
+                System.out.println("An exception has occurred during flushing a write-behind queue.");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 登録されているすべてのキューを閉じ、書き込みの完了を指定した時間まで待ちます。
+     * 時間内に終わらなかったキューは、このスレッドで時間の制限なく書き込まれます。
+     *
+     * @param timeout すべてのキューで合計して非同期での書き込みを待機する最大時間
+     * @param unit    時間の単位
+     * @return 時間内にすべての非同期での書き込みが完了したかどうか
+     * @see #close(long, TimeUnit)
+     */
+    public static boolean closeAll(long timeout, @NotNull TimeUnit unit)
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean completed = true;
+        for (WriteBehindQueue<?, ?> queue : new ArrayList<>(QUEUES))
+        {
+            try
+            {
+                if (!queue.close(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS))
+                {
+                    System.out.println("Timed out flushing a write-behind queue on close. The rest was written synchronously.");
+                    completed = false;
+                }
+            }
+            catch (Exception e)
+            {
+                System.out.println("An exception has occurred during flushing a write-behind queue.");
+                e.printStackTrace();
+                completed = false;
+            }
+        }
+        return completed;
+    }
+
+    /**
+     * 同じキーの値をまとめる関数を設定します。
+     * 設定しない場合は、後から追加した値で上書きされます。
+     *
+     * @param merger 古い値と新しい値をまとめる関数
+     * @return このキュー
+     */
+    public WriteBehindQueue<K, V> merge(@Nullable BinaryOperator<V> merger)
+    {
+        this.merger = merger;
+        return this;
+    }
+
+    /**
+     * 溜まった件数がこの数に達したときに、非同期で書き込みを開始するよう設定します。
+     * 0 以下の場合は件数による書き込みを行いません。
+     *
+     * @param flushThreshold 書き込みを開始する件数
+     * @return このキュー
+     */
+    public WriteBehindQueue<K, V> flushThreshold(int flushThreshold)
+    {
+        this.flushThreshold = flushThreshold;
+        return this;
+    }
+
+    /**
+     * 非同期の書き込みに使用するスレッドプールを設定します。
+     * 設定しない場合は {@link DatabaseExecutor#getDefault()} が使用されます。
+     *
+     * @param executor スレッドプール
+     * @return このキュー
+     */
+    public WriteBehindQueue<K, V> executor(@NotNull DatabaseExecutor executor)
+    {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * ロック競合などで書き込みに失敗した場合に再試行するよう設定します。
+     * 再試行の上限に達した場合は、これまでと同様に値はキューに戻されます。
+     *
+     * @param retryPolicy 再試行の設定
+     * @return このキュー
+     */
+    public WriteBehindQueue<K, V> retryPolicy(@Nullable RetryPolicy retryPolicy)
+    {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * 定期的な書き込みを開始します。
+     *
+     * @param periodTicks 書き込みの間隔(チック)
+     * @return このキュー
+     */
+    public WriteBehindQueue<K, V> start(long periodTicks)
+    {
+        if (this.timer != null)
+            this.timer.cancel();
+
+        this.timer = Runner.runTimerAsync(this::flush, (e, task) -> {
+            System.out.println("An exception has occurred during flushing a write-behind queue.");
+            e.printStackTrace();
+        }, periodTicks, periodTicks);
+        return this;
+    }
+
+    /**
+     * 値を追加します。同じキーの値が既に溜まっている場合はまとめられます。
+     *
+     * @param key   キー
+     * @param value 値
+     */
+    public void put(@NotNull K key, @NotNull V value)
+    {
+        int size;
+        synchronized (this.pendingLock)
+        {
+            // close() と同じロックで確認し、最後の書き込みの後に追加されないようにする
+            if (this.closed)
+                throw new IllegalStateException("This WriteBehindQueue is closed.");
+
+            V old = this.pending.get(key);
+            if (old == null)
+                this.pending.put(key, value);
+            else
+            {
+                this.pending.put(key, this.merger == null ? value : this.merger.apply(old, value));
+                this.coalescedCount.increment();
+            }
+            size = this.pending.size();
+        }
+        this.enqueuedCount.increment();
+
+        // 書き込みが失敗したり受け付けられなかったりした場合も、次の追加で再び書き込みを試みる
+        if (this.flushThreshold > 0 && size >= this.flushThreshold && this.thresholdFlushing.compareAndSet(false, true))
+            this.flushAsync().whenComplete((written, e) -> {
+                this.thresholdFlushing.set(false);
+                if (e == null)
+                    return;
+
+                System.out.println("An exception has occurred during flushing a write-behind queue.");
+                e.printStackTrace();
+            });
+    }
+
+    /**
+     * 溜まっている値を書き込みます。
+     * 失敗した場合、値はキューに戻されます。
+     *
+     * @return 書き込んだ件数
+     * @throws IllegalStateException 書き込みに失敗した場合
+     */
+    public int flush()
+    {
+        this.flushLock.lock();
+        try
+        {
+            LinkedHashMap<K, V> entries;
+            synchronized (this.pendingLock)
+            {
+                if (this.pending.isEmpty())
+                    return 0;
+
+                entries = this.pending;
+                this.pending = new LinkedHashMap<>();
+            }
+
+            try
+            {
+                TransactionRun write = transaction -> {
+                    for (Map.Entry<K, V> entry : entries.entrySet())
+                    {
+                        this.binder.bind(transaction, entry.getKey(), entry.getValue());
+                        transaction.addBatch();
+                    }
+                    transaction.executeBatch(false);
+                };
+
+                if (this.retryPolicy != null)
+                    this.retryPolicy.doTransaction(this.dataSource, this.sql, write);
+                else
+                    Transaction.create(this.dataSource, this.sql).doTransaction(write);
+            }
+            catch (RuntimeException e)
+            {
+                this.failedFlushCount.increment();
+                this.requeue(entries);
+                throw e;
+            }
+
+            this.flushCount.increment();
+            this.writtenCount.add(entries.size());
+            return entries.size();
+        }
+        finally
+        {
+            this.flushLock.unlock();
+        }
+    }
+
+    private void requeue(LinkedHashMap<K, V> failed)
+    {
+        synchronized (this.pendingLock)
+        {
+            LinkedHashMap<K, V> newer = this.pending;
+            this.pending = failed;
+
+            for (Map.Entry<K, V> entry : newer.entrySet())
+            {
+                V old = this.pending.get(entry.getKey());
+                if (old == null || this.merger == null)
+                    this.pending.put(entry.getKey(), entry.getValue());
+                else
+                    this.pending.put(entry.getKey(), this.merger.apply(old, entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * 溜まっている値を非同期で書き込みます。
+     *
+     * @return 書き込んだ件数
+     */
+    public CompletableFuture<Integer> flushAsync()
+    {
+        DatabaseExecutor executor = this.executor != null ? this.executor : DatabaseExecutor.getDefault();
+        return executor.submit(this::flush);
+    }
+
+    /**
+     * 溜まっている値の件数を取得します。
+     *
+     * @return 溜まっている値の件数
+     */
+    public int getPendingCount()
+    {
+        synchronized (this.pendingLock)
+        {
+            return this.pending.size();
+        }
+    }
+
+    /**
+     * {@link #put(Object, Object)} された回数を取得します。
+     *
+     * @return 追加された回数
+     */
+    public long getEnqueuedCount()
+    {
+        return this.enqueuedCount.sum();
+    }
+
+    /**
+     * 既に溜まっている値とまとめられた回数を取得します。
+     *
+     * @return まとめられた回数
+     */
+    public long getCoalescedCount()
+    {
+        return this.coalescedCount.sum();
+    }
+
+    /**
+     * DBに書き込んだ行数を取得します。
+     *
+     * @return 書き込んだ行数
+     */
+    public long getWrittenCount()
+    {
+        return this.writtenCount.sum();
+    }
+
+    /**
+     * 書き込みに成功した回数を取得します。
+     *
+     * @return 書き込みに成功した回数
+     */
+    public long getFlushCount()
+    {
+        return this.flushCount.sum();
+    }
+
+    /**
+     * 書き込みに失敗した回数を取得します。
+     *
+     * @return 書き込みに失敗した回数
+     */
+    public long getFailedFlushCount()
+    {
+        return this.failedFlushCount.sum();
+    }
+
+    /**
+     * 定期的な書き込みを停止し、溜まっている値を書き込んでから閉じます。
+     */
+    @Override
+    public void close()
+    {
+        if (!this.markClosed())
+            return;
+
+        try
+        {
+            // 閉じた後は追加されないため、ここで書き込めば溜まっている値はすべて書き込まれる
+            this.flush();
+        }
+        finally
+        {
+            QUEUES.remove(this);
+        }
+    }
+
+    /**
+     * 定期的な書き込みを停止して閉じ、溜まっている値の非同期での書き込みを指定した時間まで待ちます。
+     * 時間内に終わらなかった場合や失敗した場合は、このスレッドで時間の制限なく書き込みを続け、すべての値を書き込んでから戻ります。
+     *
+     * @param timeout 非同期での書き込みを待機する最大時間
+     * @param unit    時間の単位
+     * @return 時間内に非同期での書き込みが完了したかどうか
+     * @throws IllegalStateException このスレッドでの書き込みにも失敗した場合
+     */
+    public boolean close(long timeout, @NotNull TimeUnit unit)
+    {
+        if (!this.markClosed())
+            return true;
+
+        boolean completed = false;
+        try
+        {
+            this.flushAsync().get(timeout, unit);
+            completed = true;
+        }
+        catch (TimeoutException | ExecutionException e)
+        {
+            // 失敗した書き込みの値はキューに戻されているため、下で書き込まれる
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        try
+        {
+            // 閉じた後は追加されないため、時間内に終わらなかった書き込みを待ってから残りを書き込めば、すべての値が書き込まれる
+            if (!completed)
+                this.flushRemaining();
+            return completed;
+        }
+        finally
+        {
+            QUEUES.remove(this);
+        }
+    }
+
+    private void flushRemaining()
+    {
+        try
+        {
+            this.flush();
+        }
+        catch (RuntimeException e)
+        {
+            throw new IllegalStateException("Failed to write " + this.getPendingCount() + " pending values on close.", e);
+        }
+    }
+
+    private boolean markClosed()
+    {
+        synchronized (this.pendingLock)
+        {
+            if (this.closed)
+                return false;
+            this.closed = true;
+        }
+
+        if (this.timer != null)
+            this.timer.cancel();
+        return true;
+    }
+
+    /**
+     * 1件分の値をSQL文にセットする関数です。
+     *
+     * @param <K> キーの型
+     * @param <V> 値の型
+     */
+    @FunctionalInterface
+    public interface Binder<K, V>
+    {
+        void bind(Transaction transaction, K key, V value) throws SQLException;
+    }
+}
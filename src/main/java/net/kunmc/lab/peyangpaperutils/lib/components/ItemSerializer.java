@@ -1,10 +1,27 @@
 package net.kunmc.lab.peyangpaperutils.lib.components;
 
 import lombok.experimental.UtilityClass;
+import net.kunmc.lab.peyangpaperutils.db.DatabaseExecutor;
 import org.bukkit.Bukkit;
 import org.bukkit.inventory.ItemStack;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.InflaterInputStream;
 
 @UtilityClass
 public class ItemSerializer
@@ -21,6 +38,15 @@ public class ItemSerializer
     private static final Method mAsNMSCopy = getMethod(cCraftItemStack, "asNMSCopy", ItemStack.class);
     //
 
+    // データバージョンを持たない以前の形式。読み込みのみに対応する
+    static final int FORMAT_RAW = 1;
+    static final int FORMAT_DEFLATE = 2;
+    // 形式の後に、保存したサーバのデータバージョンを4バイトで持つ形式
+    static final int FORMAT_VERSIONED_RAW = 3;
+    static final int FORMAT_VERSIONED_DEFLATE = 4;
+    // 破損したデータで巨大な配列を確保しないための、スロット数の上限
+    private static final int MAX_SLOTS = 1 << 16;
+
     public String serializeItemStack(ItemStack itemStack)
     {
         Object nmsItemStack = copyCraftItemStackToNMS(itemStack);
@@ -28,6 +54,343 @@ public class ItemSerializer
         return nbtTagCompoundSaved.toString();
     }
 
+    /**
+     * アイテムの並びを NMS の ItemStack に複製します。メインスレッドから呼び出してください。
+     * 空のスロット(null または空気)はそのまま空として保持されます。
+     *
+     * @param itemStacks アイテムの並び。インベントリの {@code getContents()} など
+     * @return 非同期で変換できるスナップショット
+     */
+    public ItemStackSnapshot snapshot(@Nullable ItemStack... itemStacks)
+    {
+        Object[] items = new Object[itemStacks.length];
+        for (int i = 0; i < itemStacks.length; i++)
+        {
+            ItemStack itemStack = itemStacks[i];
+            if (itemStack != null && !itemStack.getType().isAir() && itemStack.getAmount() > 0)
+                items[i] = copyCraftItemStackToNMS(itemStack);
+        }
+        return new ItemStackSnapshot(items);
+    }
+
+    /**
+     * アイテムの並びを一つのバイナリNBTに変換します。メインスレッドから呼び出してください。
+     * DBには {@code Transaction#set(int, byte[])} でそのまま保存できます。
+     *
+     * @param itemStacks アイテムの並び
+     * @param compress   Deflate で圧縮するかどうか
+     * @return 変換されたバイト列
+     */
+    public byte[] serializeItemStacks(@Nullable ItemStack[] itemStacks, boolean compress)
+    {
+        return snapshot(itemStacks).encode(compress);
+    }
+
+    /**
+     * アイテムの並びをメインスレッドで複製し、バイナリNBTへの変換と圧縮を非同期で行います。
+     * メインスレッドから呼び出してください。
+     *
+     * @param itemStacks アイテムの並び
+     * @param compress   Deflate で圧縮するかどうか
+     * @return 変換されたバイト列
+     */
+    public CompletableFuture<byte[]> serializeItemStacksAsync(@Nullable ItemStack[] itemStacks, boolean compress)
+    {
+        ItemStackSnapshot snapshot = snapshot(itemStacks);
+        return DatabaseExecutor.getDefault().submit(() -> snapshot.encode(compress));
+    }
+
+    /**
+     * {@link #serializeItemStacks(ItemStack[], boolean)} で変換したバイト列から、アイテムの並びを復元します。
+     * 非同期スレッドから呼び出せます。空のスロットは null になります。
+     * <p>
+     * 以前のバージョンのサーバで保存されたアイテムは、DataFixer で現在のバージョンに変換してから復元されます。
+     * データバージョンを持たない以前の形式のバイト列は、変換せずに復元されます。
+     *
+     * @param data バイト列
+     * @return アイテムの並び
+     * @throws IllegalArgumentException 形式が不明な場合、またはバイト列が破損している場合
+     * @throws IllegalStateException    より新しいバージョンのサーバで保存された場合、または復元に失敗した場合
+     */
+    public ItemStack[] deserializeItemStacks(byte[] data)
+    {
+        int format = data.length == 0 ? 0: data[0];
+        if (format < FORMAT_RAW || format > FORMAT_VERSIONED_DEFLATE)
+            throw new IllegalArgumentException("Unknown ItemStack format");
+
+        boolean versioned = format == FORMAT_VERSIONED_RAW || format == FORMAT_VERSIONED_DEFLATE;
+        boolean deflate = format == FORMAT_DEFLATE || format == FORMAT_VERSIONED_DEFLATE;
+        int headerSize = versioned ? 5: 1;
+        if (data.length < headerSize)
+            throw new IllegalArgumentException("Truncated ItemStack header");
+
+        int dataVersion = versioned ? (data[1] & 0xFF) << 24 | (data[2] & 0xFF) << 16 | (data[3] & 0xFF) << 8 | data[4] & 0xFF: -1;
+        int currentVersion = getDataVersion();
+        if (dataVersion > currentVersion)
+            throw new IllegalStateException("ItemStacks were saved by a newer server (data version "
+                    + dataVersion + ", current " + currentVersion + ")");
+
+        InputStream body = new ByteArrayInputStream(data, headerSize, data.length - headerSize);
+        if (deflate)
+            body = new BufferedInputStream(new InflaterInputStream(body), 8192);
+
+        try (DataInputStream in = new DataInputStream(body))
+        {
+            int size = in.readInt();
+            // 空のスロットも1バイトを使うため、圧縮していない場合は残りのバイト数を超えることはない
+            if (size < 0 || size > MAX_SLOTS || (!deflate && size > data.length - headerSize - 4))
+                throw new IllegalArgumentException("Invalid ItemStack count: " + size);
+
+            ItemStack[] itemStacks = new ItemStack[size];
+            for (int i = 0; i < itemStacks.length; i++)
+                if (in.readBoolean())
+                    itemStacks[i] = readItemStack(in, dataVersion, currentVersion);
+            return itemStacks;
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Failed to decode ItemStacks", e);
+        }
+    }
+
+    /**
+     * バイト列からアイテムの並びを非同期で復元します。
+     * インベントリへの反映はメインスレッドで行ってください。
+     *
+     * @param data バイト列
+     * @return アイテムの並び
+     * @see net.kunmc.lab.peyangpaperutils.db.DatabaseExecutor#acceptOnMainThread(CompletableFuture, java.util.function.Consumer)
+     */
+    public CompletableFuture<ItemStack[]> deserializeItemStacksAsync(byte[] data)
+    {
+        return DatabaseExecutor.getDefault().submit(() -> deserializeItemStacks(data));
+    }
+
+    /**
+     * アイテムを一つのバイナリNBTに変換します。メインスレッドから呼び出してください。
+     *
+     * @param itemStack アイテム
+     * @param compress  Deflate で圧縮するかどうか
+     * @return 変換されたバイト列
+     */
+    public byte[] serializeItemStackBytes(@Nullable ItemStack itemStack, boolean compress)
+    {
+        return serializeItemStacks(new ItemStack[]{itemStack}, compress);
+    }
+
+    /**
+     * {@link #serializeItemStackBytes(ItemStack, boolean)} で変換したバイト列から、アイテムを復元します。
+     *
+     * @param data バイト列
+     * @return アイテム。空の場合は null
+     */
+    @Nullable
+    public ItemStack deserializeItemStackBytes(byte[] data)
+    {
+        ItemStack[] itemStacks = deserializeItemStacks(data);
+        return itemStacks.length == 0 ? null: itemStacks[0];
+    }
+
+    static void writeNMSItemStack(Object nmsItemStack, DataOutput out) throws IOException
+    {
+        try
+        {
+            Object nbtTagCompound = Binary.NEW_COMPOUND.invokeExact();
+            Object saved = Binary.SAVE.invokeExact(nmsItemStack, nbtTagCompound);
+            Binary.WRITE.invokeExact(saved, out);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Throwable e)
+        {
+            throw new IllegalStateException("Failed to write NMS ItemStack NBT", e);
+        }
+    }
+
+    /**
+     * サーバのデータバージョンを取得します。
+     *
+     * @return データバージョン
+     */
+    static int getDataVersion()
+    {
+        return Bukkit.getUnsafe().getDataVersion();
+    }
+
+    private static ItemStack readItemStack(DataInput in, int dataVersion, int currentVersion) throws IOException
+    {
+        try
+        {
+            Object nbtTagCompound = Binary.READ.invokeExact(in);
+            if (dataVersion >= 0 && dataVersion < currentVersion)
+                nbtTagCompound = Upgrade.upgrade(nbtTagCompound, dataVersion, currentVersion);
+            Object nmsItemStack = Binary.LOAD.invokeExact(nbtTagCompound);
+            return (ItemStack) Binary.AS_BUKKIT_COPY.invokeExact(nmsItemStack);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Throwable e)
+        {
+            throw new IllegalStateException("Failed to read NMS ItemStack NBT", e);
+        }
+    }
+
+    private static MethodHandle findStaticBySignature(Class<?> clazz, Class<?> returnType, Class<?>... parameterTypes)
+    {
+        // 難読化された名前はバージョンごとに変わるため、シグネチャで探す
+        for (Method method : clazz.getDeclaredMethods())
+        {
+            if (!Modifier.isStatic(method.getModifiers()) || method.getReturnType() != returnType
+                    || !Arrays.equals(method.getParameterTypes(), parameterTypes))
+                continue;
+
+            try
+            {
+                method.setAccessible(true);
+                return MethodHandles.lookup().unreflect(method);
+            }
+            catch (IllegalAccessException e)
+            {
+                throw new IllegalStateException("Failed to get method", e);
+            }
+        }
+
+        throw new IllegalStateException("Failed to get method: " + clazz.getName() + Arrays.toString(parameterTypes));
+    }
+
+    /**
+     * バイナリNBTの変換に使用するメソッドです。
+     * 取得に失敗しても {@link #serializeItemStack(ItemStack)} は使えるよう、初めて使用したときに取得します。
+     */
+    private static class Binary
+    {
+        // Lnet/minecraft/server/<version>/NBTCompressedStreamTools;
+        private static final Class<?> cNBTCompressedStreamTools = getNMSClass("NBTCompressedStreamTools");
+
+        // ()Lnet/minecraft/server/<version>/NBTTagCompound;
+        private static final MethodHandle NEW_COMPOUND;
+        // (Lnet/minecraft/server/<version>/ItemStack;Lnet/minecraft/server/<version>/NBTTagCompound;)Lnet/minecraft/server/<version>/NBTTagCompound;
+        private static final MethodHandle SAVE;
+        // (Lnet/minecraft/server/<version>/NBTTagCompound;Ljava/io/DataOutput;)V
+        private static final MethodHandle WRITE;
+        // (Ljava/io/DataInput;)Lnet/minecraft/server/<version>/NBTTagCompound;
+        private static final MethodHandle READ;
+        // (Lnet/minecraft/server/<version>/NBTTagCompound;)Lnet/minecraft/server/<version>/ItemStack;
+        private static final MethodHandle LOAD;
+        // (Lnet/minecraft/server/<version>/ItemStack;)Lorg/bukkit/inventory/ItemStack;
+        private static final MethodHandle AS_BUKKIT_COPY;
+
+        static
+        {
+            try
+            {
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                NEW_COMPOUND = lookup.findConstructor(cNBTTagCompound, MethodType.methodType(void.class))
+                        .asType(MethodType.methodType(Object.class));
+                SAVE = lookup.unreflect(mSave)
+                        .asType(MethodType.methodType(Object.class, Object.class, Object.class));
+                WRITE = findStaticBySignature(cNBTCompressedStreamTools, void.class, cNBTTagCompound, DataOutput.class)
+                        .asType(MethodType.methodType(void.class, Object.class, DataOutput.class));
+                READ = findStaticBySignature(cNBTCompressedStreamTools, cNBTTagCompound, DataInput.class)
+                        .asType(MethodType.methodType(Object.class, DataInput.class));
+                LOAD = findStaticBySignature(cNMSItemStack, cNMSItemStack, cNBTTagCompound)
+                        .asType(MethodType.methodType(Object.class, Object.class));
+                AS_BUKKIT_COPY = lookup.unreflect(getMethod(cCraftItemStack, "asBukkitCopy", cNMSItemStack))
+                        .asType(MethodType.methodType(ItemStack.class, Object.class));
+            }
+            catch (ReflectiveOperationException e)
+            {
+                throw new IllegalStateException("Failed to get NBT methods", e);
+            }
+        }
+    }
+
+    /**
+     * 以前のデータバージョンで保存されたアイテムのNBTを、DataFixer で現在のバージョンに変換するメソッドです。
+     * 変換が必要になったときに初めて取得します。
+     */
+    private static class Upgrade
+    {
+        // DataFixer
+        private static final Object DATA_FIXER;
+        // DSL.TypeReference
+        private static final Object ITEM_STACK;
+        // DynamicOps<NBTBase>
+        private static final Object NBT_OPS;
+
+        // (Lcom/mojang/serialization/DynamicOps;Ljava/lang/Object;)V
+        private static final MethodHandle NEW_DYNAMIC;
+        // (Lcom/mojang/datafixers/DSL$TypeReference;Lcom/mojang/serialization/Dynamic;II)Lcom/mojang/serialization/Dynamic;
+        private static final MethodHandle UPDATE;
+        // ()Ljava/lang/Object;
+        private static final MethodHandle GET_VALUE;
+
+        static
+        {
+            try
+            {
+                Class<?> cDataFixer = Class.forName("com.mojang.datafixers.DataFixer");
+                Class<?> cTypeReference = Class.forName("com.mojang.datafixers.DSL$TypeReference");
+                Class<?> cDynamicOpsNBT = getNMSClass("DynamicOpsNBT");
+                // 1.16 から Dynamic と DynamicOps は com.mojang.serialization に移動している
+                Class<?> cDynamic;
+                Class<?> cDynamicOps;
+                try
+                {
+                    cDynamic = Class.forName("com.mojang.serialization.Dynamic");
+                    cDynamicOps = Class.forName("com.mojang.serialization.DynamicOps");
+                }
+                catch (ClassNotFoundException e)
+                {
+                    cDynamic = Class.forName("com.mojang.datafixers.Dynamic");
+                    cDynamicOps = Class.forName("com.mojang.datafixers.types.DynamicOps");
+                }
+
+                DATA_FIXER = findStaticBySignature(getNMSClass("DataConverterRegistry"), cDataFixer).invoke();
+                ITEM_STACK = getNMSClass("DataConverterTypes").getField("ITEM_STACK").get(null);
+                NBT_OPS = getStaticFieldByType(cDynamicOpsNBT, cDynamicOpsNBT);
+
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                NEW_DYNAMIC = lookup.findConstructor(cDynamic, MethodType.methodType(void.class, cDynamicOps, Object.class))
+                        .asType(MethodType.methodType(Object.class, Object.class, Object.class));
+                UPDATE = lookup.findVirtual(cDataFixer, "update", MethodType.methodType(cDynamic, cTypeReference, cDynamic, int.class, int.class))
+                        .asType(MethodType.methodType(Object.class, Object.class, Object.class, Object.class, int.class, int.class));
+                GET_VALUE = lookup.findVirtual(cDynamic, "getValue", MethodType.methodType(Object.class))
+                        .asType(MethodType.methodType(Object.class, Object.class));
+            }
+            catch (Throwable e)
+            {
+                throw new IllegalStateException("Failed to get DataFixer methods", e);
+            }
+        }
+
+        private static Object upgrade(Object nbtTagCompound, int dataVersion, int currentVersion) throws Throwable
+        {
+            Object dynamic = NEW_DYNAMIC.invokeExact(NBT_OPS, nbtTagCompound);
+            Object upgraded = UPDATE.invokeExact(DATA_FIXER, ITEM_STACK, dynamic, dataVersion, currentVersion);
+            return GET_VALUE.invokeExact(upgraded);
+        }
+    }
+
+    private static Object getStaticFieldByType(Class<?> clazz, Class<?> type) throws IllegalAccessException
+    {
+        // 難読化された名前はバージョンごとに変わるため、型で探す
+        for (Field field : clazz.getDeclaredFields())
+        {
+            if (!Modifier.isStatic(field.getModifiers()) || field.getType() != type)
+                continue;
+
+            field.setAccessible(true);
+            return field.get(null);
+        }
+
+        throw new IllegalStateException("Failed to get field: " + clazz.getName() + " of " + type.getName());
+    }
+
     private static Object saveNMSItemStackNBT(Object nmsItemStack)
     {
         try
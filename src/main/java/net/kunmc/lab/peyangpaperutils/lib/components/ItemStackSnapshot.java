@@ -0,0 +1,77 @@
+package net.kunmc.lab.peyangpaperutils.lib.components;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * メインスレッドで複製した、アイテムの並びのスナップショットです。
+ * {@link ItemSerializer#snapshot(org.bukkit.inventory.ItemStack...)} で生成します。
+ * <p>
+ * 複製済みのため、{@link #encode(boolean)} は非同期スレッドから呼び出せます。
+ */
+public final class ItemStackSnapshot
+{
+    // NMS の ItemStack の複製。空のスロットは null
+    private final Object[] items;
+
+    ItemStackSnapshot(Object[] items)
+    {
+        this.items = items;
+    }
+
+    /**
+     * スロットの数を取得します。
+     *
+     * @return スロットの数
+     */
+    public int size()
+    {
+        return this.items.length;
+    }
+
+    /**
+     * バイナリNBTに変換します。
+     * 結果は {@link ItemSerializer#deserializeItemStacks(byte[])} で元に戻せます。
+     * 先頭にはサーバのデータバージョンが書き込まれ、以降のバージョンのサーバで読み込むときに変換されます。
+     *
+     * @param compress Deflate で圧縮するかどうか
+     * @return 変換されたバイト列
+     */
+    public byte[] encode(boolean compress)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + this.items.length * 64);
+        bytes.write(compress ? ItemSerializer.FORMAT_VERSIONED_DEFLATE: ItemSerializer.FORMAT_VERSIONED_RAW);
+        int dataVersion = ItemSerializer.getDataVersion();
+        bytes.write(dataVersion >>> 24);
+        bytes.write(dataVersion >>> 16);
+        bytes.write(dataVersion >>> 8);
+        bytes.write(dataVersion);
+
+        OutputStream body = compress ? new BufferedOutputStream(new DeflaterOutputStream(bytes), 8192): bytes;
+        try (DataOutputStream out = new DataOutputStream(body))
+        {
+            out.writeInt(this.items.length);
+            for (Object item : this.items)
+                this.writeSlot(out, item);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Failed to encode ItemStacks", e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private void writeSlot(DataOutputStream out, @Nullable Object item) throws IOException
+    {
+        out.writeBoolean(item != null);
+        if (item != null)
+            ItemSerializer.writeNMSItemStack(item, out);
+    }
+}